@@ -3,6 +3,8 @@ package com.lody.virtual.client;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
+import android.util.LruCache;
 
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.VirtualRuntime;
@@ -29,6 +31,20 @@ public class NativeEngine {
 
     private static final String VESCAPE = "/6decacfa7aad11e8a718985aebe4663a";
 
+    /**
+     * Indexes in {@link #getRedirectStats()}.
+     */
+    public static final int STAT_LOOKUPS = 0;
+    public static final int STAT_CACHE_HITS = 1;
+    public static final int STAT_AVERAGE_NANOS = 2;
+
+    /**
+     * Escaped paths, shared by the cursors of this process. An entry is only trusted
+     * for a short while, since the file may be created or removed meanwhile.
+     */
+    private static final LruCache<String, EscapedPath> sEscapeCache = new LruCache<>(1024);
+    private static final long ESCAPE_CACHE_TTL = 5 * 1000;
+
     private static Map<String, InstalledAppInfo> sDexOverrideMap;
 
     private static boolean sFlag = false;
@@ -76,6 +92,19 @@ public class NativeEngine {
         return origPath;
     }
 
+    /**
+     * Counters of the native path redirection in this process, see the STAT_ indexes.
+     * The average cost is measured on a sample of the lookups.
+     */
+    public static long[] getRedirectStats() {
+        try {
+            return nativeGetRedirectStats();
+        } catch (Throwable e) {
+            VLog.e(TAG, VLog.getStackTraceString(e));
+        }
+        return new long[3];
+    }
+
     public static void redirectDirectory(String origPath, String newPath) {
         if (!origPath.endsWith("/")) {
             origPath = origPath + "/";
@@ -101,6 +130,40 @@ public class NativeEngine {
         return new File(VESCAPE, path).getAbsolutePath();
     }
 
+    /**
+     * Bulk {@link #getEscapePath(String)}, for a whole column of paths.
+     *
+     * @return the escaped paths, null where the path is null
+     */
+    public static String[] getEscapePaths(String[] paths) {
+        String[] escaped = new String[paths.length];
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < paths.length; i++) {
+            String path = paths[i];
+            if (path == null) {
+                continue;
+            }
+            EscapedPath cached = sEscapeCache.get(path);
+            if (cached != null && now - cached.time < ESCAPE_CACHE_TTL) {
+                escaped[i] = cached.path;
+                continue;
+            }
+            escaped[i] = getEscapePath(path);
+            sEscapeCache.put(path, new EscapedPath(escaped[i], now));
+        }
+        return escaped;
+    }
+
+    private static final class EscapedPath {
+        final String path;
+        final long time;
+
+        EscapedPath(String path, long time) {
+            this.path = path;
+            this.time = time;
+        }
+    }
+
     public static void redirectFile(String origPath, String newPath) {
         if (origPath.endsWith("/")) {
             origPath = origPath.substring(0, origPath.length() - 1);
@@ -216,6 +279,8 @@ public class NativeEngine {
 
     private static native void nativeIORedirect(String origPath, String newPath);
 
+    private static native long[] nativeGetRedirectStats();
+
     private static native void nativeIOWhitelist(String path);
 
     private static native void nativeIOForbid(String path);
@@ -50,6 +50,7 @@ import com.lody.virtual.os.VEnvironment;
 import com.lody.virtual.os.VUserHandle;
 import com.lody.virtual.remote.InstalledAppInfo;
 import com.lody.virtual.remote.PendingResultData;
+import com.lody.virtual.remote.ReceiverDelivery;
 import com.lody.virtual.remote.VDeviceInfo;
 import com.lody.virtual.server.interfaces.IUiCallback;
 import com.salton123.hook.ClassLoaderHook;
@@ -734,6 +735,13 @@ public final class VClientImpl extends IVClient.Stub {
         sendMessage(RECEIVER, receiverData);
     }
 
+    @Override
+    public void scheduleReceivers(List<ReceiverDelivery> deliveries) {
+        for (ReceiverDelivery delivery : deliveries) {
+            scheduleReceiver(delivery.processName, delivery.component, delivery.intent, delivery.resultData);
+        }
+    }
+
     private void handleReceiver(ReceiverData data) {
         BroadcastReceiver.PendingResult result = data.resultData.build();
         try {
@@ -770,7 +778,10 @@ public final class VClientImpl extends IVClient.Stub {
     public String getDebugInfo() {
         return "process : " + VirtualRuntime.getProcessName() + "\n" +
                 "initialPkg : " + VirtualRuntime.getInitialPackageName() + "\n" +
-                "vuid : " + vuid;
+                "vuid : " + vuid + "\n" +
+                "uidCache : " + VActivityManager.get().getUidCacheHits() + " hits, "
+                + VActivityManager.get().getUidCacheMisses() + " misses\n" +
+                "packageCache : " + VPackageManager.get().getCacheStats();
     }
 
     private static class RootThreadGroup extends ThreadGroup {
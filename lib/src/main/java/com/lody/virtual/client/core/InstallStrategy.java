@@ -12,4 +12,12 @@ public interface InstallStrategy {
 	int IGNORE_NEW_VERSION = 0x01 << 4;
 	int DEPEND_SYSTEM_IF_EXIST = 0x01 << 5;
 	int SKIP_DEX_OPT = 0x01 << 6;
+	/**
+	 * The source apk will not be rewritten in place, so it may be hard linked instead of copied.
+	 */
+	int ALLOW_HARD_LINK = 0x01 << 7;
+	/**
+	 * The source apk is handed over, it is moved in place instead of copied.
+	 */
+	int MOVE_SOURCE = 0x01 << 8;
 }
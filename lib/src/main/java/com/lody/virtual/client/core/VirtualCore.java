@@ -48,6 +48,7 @@ import com.lody.virtual.remote.InstallResult;
 import com.lody.virtual.remote.InstalledAppInfo;
 import com.lody.virtual.server.IAppManager;
 import com.lody.virtual.server.interfaces.IAppRequestListener;
+import com.lody.virtual.server.interfaces.IPackageInstallCallback;
 import com.lody.virtual.server.interfaces.IPackageObserver;
 import com.lody.virtual.server.interfaces.IUiCallback;
 
@@ -357,6 +358,19 @@ public final class VirtualCore {
         }
     }
 
+    /**
+     * Install a batch of apks, much faster than one by one. It returns once the
+     * batch is installed, the copy progress and the result of each apk are
+     * reported to the callback.
+     */
+    public void installPackages(List<String> apkPaths, int flags, IPackageInstallCallback callback) {
+        try {
+            getService().installPackages(apkPaths, flags, callback);
+        } catch (RemoteException e) {
+            VirtualRuntime.crash(e);
+        }
+    }
+
     public boolean clearPackage(String packageName) {
         try {
             return getService().clearPackage(packageName);
@@ -689,6 +703,33 @@ public final class VirtualCore {
         }
     }
 
+    /**
+     * @return the background compilation state of a package, one of DexOptScheduler.STATE_*
+     */
+    public int getPackageCompileState(String packageName) {
+        try {
+            return getService().getCompileState(packageName);
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
+    public void prioritizePackageCompile(String packageName) {
+        try {
+            getService().prioritizeCompile(packageName);
+        } catch (RemoteException e) {
+            VirtualRuntime.crash(e);
+        }
+    }
+
+    public void cancelPackageCompile(String packageName) {
+        try {
+            getService().cancelCompile(packageName);
+        } catch (RemoteException e) {
+            VirtualRuntime.crash(e);
+        }
+    }
+
     public boolean isStartup() {
         return isStartUp;
     }
@@ -874,6 +915,9 @@ public final class VirtualCore {
     }
 
     public abstract static class PackageObserver extends IPackageObserver.Stub {
+        @Override
+        public void onPackageGenerationChanged(long generation) {
+        }
     }
 
     public void registerObserver(IPackageObserver observer) {
@@ -884,6 +928,19 @@ public final class VirtualCore {
         }
     }
 
+    /**
+     * Register an observer of package generation changes.
+     *
+     * @return the current package generation
+     */
+    public long registerGenerationObserver(IPackageObserver observer) {
+        try {
+            return getService().registerGenerationObserver(observer);
+        } catch (RemoteException e) {
+            return VirtualRuntime.crash(e);
+        }
+    }
+
     public void unregisterObserver(IPackageObserver observer) {
         try {
             getService().unregisterObserver(observer);
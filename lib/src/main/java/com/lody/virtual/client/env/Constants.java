@@ -31,6 +31,10 @@ public class Constants {
 	public static final String ACTION_USER_REMOVED = "virtual." + "android.intent.action.USER_REMOVED";
 	public static final String ACTION_USER_INFO_CHANGED = "virtual." + "android.intent.action.USER_CHANGED";
 	public static final String ACTION_USER_STARTED = "Virtual." + "android.intent.action.USER_STARTED";
+	/**
+	 * Action of the explicit broadcasts redirected to the host, the component is in an extra.
+	 */
+	public static final String ACTION_COMPONENT_BROADCAST = "_VA_|_component_broadcast_";
 	public static String META_KEY_IDENTITY = "X-Identity";
 	public static String META_VALUE_STUB = "Stub-User";
 
@@ -0,0 +1,89 @@
+package com.lody.virtual.client.hook.base;
+
+import com.lody.virtual.client.core.InvocationStubManager;
+import com.lody.virtual.client.hook.proxies.am.ActivityManagerStub;
+import com.lody.virtual.client.hook.proxies.pm.PackageManagerStub;
+import com.lody.virtual.helper.utils.VLog;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Times the proxy lookup of {@link MethodInvocationStub}, by slot against by name,
+ * over the methods of the package manager and activity manager interfaces.
+ * <p>
+ * The methods are fetched again for every round, as ART hands the invocation
+ * handler a new Method object on every call.
+ */
+public final class MethodDispatchBenchmark {
+
+    private static final String TAG = MethodDispatchBenchmark.class.getSimpleName();
+
+    private static final int ROUNDS = 200;
+
+    private MethodDispatchBenchmark() {
+    }
+
+    /**
+     * Run the benchmark on the injected package manager and activity manager stubs.
+     *
+     * @return the report, also logged
+     */
+    public static String run() {
+        InvocationStubManager manager = InvocationStubManager.getInstance();
+        MethodInvocationStub packageStub = manager.getInvocationStub(PackageManagerStub.class);
+        MethodInvocationStub activityStub = manager.getInvocationStub(ActivityManagerStub.class);
+        StringBuilder report = new StringBuilder();
+        report.append(run("package", packageStub)).append('\n');
+        report.append(run("activity", activityStub));
+        VLog.d(TAG, report.toString());
+        return report.toString();
+    }
+
+    private static String run(String name, MethodInvocationStub<?> stub) {
+        if (stub == null || stub.getProxyInterface() == null) {
+            return name + ": not injected";
+        }
+        Class<?>[] interfaces = stub.getProxyInterface().getClass().getInterfaces();
+        List<Method[]> rounds = new ArrayList<>(ROUNDS);
+        for (int i = 0; i < ROUNDS; i++) {
+            List<Method> methods = new ArrayList<>();
+            for (Class<?> anInterface : interfaces) {
+                Collections.addAll(methods, anInterface.getMethods());
+            }
+            rounds.add(methods.toArray(new Method[methods.size()]));
+        }
+        int calls = 0;
+        int found = 0;
+        // warm up both paths before timing them
+        for (Method method : rounds.get(0)) {
+            if (stub.findMethodProxy(method) != stub.findMethodProxyByName(method)) {
+                return name + ": slot and name lookups disagree on " + method.getName();
+            }
+        }
+        long start = System.nanoTime();
+        for (Method[] methods : rounds) {
+            for (Method method : methods) {
+                if (stub.findMethodProxy(method) != null) {
+                    found++;
+                }
+                calls++;
+            }
+        }
+        long bySlot = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (Method[] methods : rounds) {
+            for (Method method : methods) {
+                if (stub.findMethodProxyByName(method) != null) {
+                    found--;
+                }
+            }
+        }
+        long byName = System.nanoTime() - start;
+        return String.format("%s: %d lookups, %d ns/lookup by slot, %d ns/lookup by name%s",
+                name, calls, bySlot / Math.max(calls, 1), byName / Math.max(calls, 1),
+                found != 0 ? " (results differ)" : "");
+    }
+}
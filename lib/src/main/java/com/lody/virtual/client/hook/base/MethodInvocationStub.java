@@ -11,6 +11,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -30,6 +31,17 @@ public class MethodInvocationStub<T> {
     private static final String TAG = MethodInvocationStub.class.getSimpleName();
 
     private Map<String, MethodProxy> mInternalMethodProxies = new HashMap<>();
+    /**
+     * Copy of the proxies by name, republished on every add/remove, so that
+     * the binder threads read it without locking.
+     */
+    private volatile Map<String, MethodProxy> mPublishedProxies = Collections.emptyMap();
+    /**
+     * The slots of the methods of the proxy interfaces, and the proxy of each
+     * slot, rebuilt like {@link #mPublishedProxies}.
+     */
+    private MethodSlots mSlots;
+    private volatile MethodProxy[] mSlotProxies;
     private T mBaseInterface;
     private T mProxyInterface;
     private String mIdentityName;
@@ -37,7 +49,7 @@ public class MethodInvocationStub<T> {
 
 
     public Map<String, MethodProxy> getAllHooks() {
-        return mInternalMethodProxies;
+        return Collections.unmodifiableMap(mInternalMethodProxies);
     }
 
 
@@ -47,12 +59,49 @@ public class MethodInvocationStub<T> {
             if (proxyInterfaces == null) {
                 proxyInterfaces = MethodParameterUtils.getAllInterface(baseInterface.getClass());
             }
+            mSlots = new MethodSlots(proxyInterfaces);
+            mSlotProxies = new MethodProxy[mSlots.size()];
             mProxyInterface = (T) Proxy.newProxyInstance(baseInterface.getClass().getClassLoader(), proxyInterfaces, new HookInvocationHandler());
         } else {
             VLog.w(TAG, "Unable to build HookDelegate: %s.", getIdentityName());
         }
     }
 
+    /**
+     * Publish a copy of the proxies for the invocation handler.
+     * Readers either see the old or the new map, never one being filled.
+     */
+    private void publishProxies() {
+        mPublishedProxies = new HashMap<>(mInternalMethodProxies);
+        if (mSlots != null) {
+            MethodProxy[] slotProxies = new MethodProxy[mSlots.size()];
+            for (int slot = 0; slot < slotProxies.length; slot++) {
+                slotProxies[slot] = mInternalMethodProxies.get(mSlots.getName(slot));
+            }
+            mSlotProxies = slotProxies;
+        }
+    }
+
+    /**
+     * Find the proxy for a method called on the proxy interface.
+     * <p>
+     * The method is found by its slot, see {@link MethodSlots}. The methods
+     * without one, those of Object, are found by name.
+     */
+    MethodProxy findMethodProxy(Method method) {
+        if (mSlots != null) {
+            int slot = mSlots.slotOf(method);
+            if (slot >= 0) {
+                return mSlotProxies[slot];
+            }
+        }
+        return findMethodProxyByName(method);
+    }
+
+    MethodProxy findMethodProxyByName(Method method) {
+        return mPublishedProxies.get(method.getName());
+    }
+
     public LogInvocation.Condition getInvocationLoggingCondition() {
         return mInvocationLoggingCondition;
     }
@@ -83,6 +132,7 @@ public class MethodInvocationStub<T> {
      */
     public void copyMethodProxies(MethodInvocationStub from) {
         this.mInternalMethodProxies.putAll(from.getAllHooks());
+        publishProxies();
     }
 
     /**
@@ -98,6 +148,7 @@ public class MethodInvocationStub<T> {
                 return methodProxy;
             }
             mInternalMethodProxies.put(methodProxy.getMethodName(), methodProxy);
+            publishProxies();
         }
         return methodProxy;
     }
@@ -109,7 +160,11 @@ public class MethodInvocationStub<T> {
      * @return The proxy you removed
      */
     public MethodProxy removeMethodProxy(String hookName) {
-        return mInternalMethodProxies.remove(hookName);
+        MethodProxy removed = mInternalMethodProxies.remove(hookName);
+        if (removed != null) {
+            publishProxies();
+        }
+        return removed;
     }
 
     /**
@@ -128,6 +183,7 @@ public class MethodInvocationStub<T> {
      */
     public void removeAllMethodProxies() {
         mInternalMethodProxies.clear();
+        publishProxies();
     }
 
     /**
@@ -166,7 +222,7 @@ public class MethodInvocationStub<T> {
     private class HookInvocationHandler implements InvocationHandler {
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            MethodProxy methodProxy = getMethodProxy(method.getName());
+            MethodProxy methodProxy = findMethodProxy(method);
             boolean useProxy = (methodProxy != null && methodProxy.isEnable());
             boolean mightLog = (mInvocationLoggingCondition != LogInvocation.Condition.NEVER) ||
                     (methodProxy != null && methodProxy.getInvocationLoggingCondition() != LogInvocation.Condition.NEVER);
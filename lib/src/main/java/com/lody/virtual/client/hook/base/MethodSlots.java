@@ -0,0 +1,145 @@
+package com.lody.virtual.client.hook.base;
+
+import com.lody.virtual.helper.utils.VLog;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The slots of the methods of the proxied interfaces, assigned once when the
+ * proxy is created and never changed afterwards.
+ * <p>
+ * ART hands the invocation handler a new {@link Method} object on every call, all
+ * of them backed by the same runtime method, whose address the object holds. The
+ * slot is found by that address, a binary search over a sorted array, without
+ * hashing a name or a Method. Android 5.x holds an ArtMethod object instead,
+ * found by identity, as are the Method objects Dalvik hands out, which are the
+ * ones of the interfaces.
+ */
+final class MethodSlots {
+
+    private static final String TAG = MethodSlots.class.getSimpleName();
+
+    /**
+     * The field that identifies the runtime method of a Method, null on Dalvik.
+     */
+    private static final Field sArtMethod = findArtMethodField();
+
+    private final String[] mNames;
+    /**
+     * The runtime method addresses, sorted, and the slot of each.
+     */
+    private final long[] mAddresses;
+    private final int[] mAddressSlots;
+    /**
+     * The slots by runtime method object, or by Method when there is none.
+     */
+    private final Map<Object, Integer> mIdentitySlots;
+
+    MethodSlots(Class<?>[] interfaces) {
+        Map<Method, Integer> slots = new HashMap<>();
+        for (Class<?> anInterface : interfaces) {
+            for (Method method : anInterface.getMethods()) {
+                if (!slots.containsKey(method)) {
+                    slots.put(method, slots.size());
+                }
+            }
+        }
+        mNames = new String[slots.size()];
+        for (Map.Entry<Method, Integer> entry : slots.entrySet()) {
+            mNames[entry.getValue()] = entry.getKey().getName();
+        }
+        long[] addresses = null;
+        int[] addressSlots = null;
+        Map<Object, Integer> identitySlots = null;
+        try {
+            if (sArtMethod != null && sArtMethod.getType() == long.class) {
+                addresses = new long[slots.size()];
+                addressSlots = new int[slots.size()];
+                final long[] unsorted = new long[slots.size()];
+                for (Map.Entry<Method, Integer> entry : slots.entrySet()) {
+                    unsorted[entry.getValue()] = sArtMethod.getLong(entry.getKey());
+                }
+                Integer[] order = new Integer[unsorted.length];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                        long l = unsorted[lhs];
+                        long r = unsorted[rhs];
+                        return l < r ? -1 : (l == r ? 0 : 1);
+                    }
+                });
+                for (int i = 0; i < order.length; i++) {
+                    addresses[i] = unsorted[order[i]];
+                    addressSlots[i] = order[i];
+                }
+            } else {
+                identitySlots = new IdentityHashMap<>(slots.size());
+                for (Map.Entry<Method, Integer> entry : slots.entrySet()) {
+                    identitySlots.put(keyOf(entry.getKey()), entry.getValue());
+                }
+            }
+        } catch (IllegalAccessException e) {
+            VLog.w(TAG, "Unable to read the runtime methods: %s", e.getMessage());
+            addresses = null;
+            addressSlots = null;
+            identitySlots = null;
+        }
+        mAddresses = addresses;
+        mAddressSlots = addressSlots;
+        mIdentitySlots = identitySlots;
+    }
+
+    private static Field findArtMethodField() {
+        for (Class<?> clazz = Method.class; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            try {
+                Field field = clazz.getDeclaredField("artMethod");
+                field.setAccessible(true);
+                return field;
+            } catch (Throwable e) {
+                // declared higher up, or not on this runtime
+            }
+        }
+        return null;
+    }
+
+    private static Object keyOf(Method method) throws IllegalAccessException {
+        return sArtMethod != null ? sArtMethod.get(method) : method;
+    }
+
+    int size() {
+        return mNames.length;
+    }
+
+    String getName(int slot) {
+        return mNames[slot];
+    }
+
+    /**
+     * @return the slot of a method of the proxied interfaces, -1 for any other
+     * method or if the runtime methods could not be read.
+     */
+    int slotOf(Method method) {
+        try {
+            if (mAddresses != null) {
+                int i = Arrays.binarySearch(mAddresses, sArtMethod.getLong(method));
+                return i >= 0 ? mAddressSlots[i] : -1;
+            }
+            if (mIdentitySlots != null) {
+                Integer slot = mIdentitySlots.get(keyOf(method));
+                return slot != null ? slot : -1;
+            }
+        } catch (IllegalAccessException e) {
+            // not expected once the slots were built
+        }
+        return -1;
+    }
+}
@@ -1,18 +1,35 @@
 package com.lody.virtual.client.hook.providers;
 
+import android.database.AbstractWindowedCursor;
 import android.database.CharArrayBuffer;
 import android.database.CrossProcessCursorWrapper;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
 
 import com.lody.virtual.client.NativeEngine;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
+ * Escapes the paths of a data column.
+ * <p>
+ * The paths are resolved a window at a time, the first time a row of the window
+ * is read, and remembered for the life of the cursor.
+ *
  * @author weishu
  * @date 2018/6/29.
  */
 class QueryRedirectCursor extends CrossProcessCursorWrapper {
 
+    /**
+     * The memo is dropped beyond this many paths.
+     */
+    private static final int MAX_RESOLVED = 4096;
+
     private int dataIndex;
+    private final Map<String, String> resolved = new HashMap<>();
 
     /**
      * Creates a cross process cursor wrapper.
@@ -37,18 +54,105 @@ class QueryRedirectCursor extends CrossProcessCursorWrapper {
             return;
         }
 
-        char[] chars = path.toCharArray();
-        int v1 = Math.min(chars.length, buffer.data.length);
-        System.arraycopy(chars, 0, buffer.data, 0, v1);
-        buffer.sizeCopied = v1;
+        int length = path.length();
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        path.getChars(0, length, buffer.data, 0);
+        buffer.sizeCopied = length;
     }
 
     @Override
     public String getString(int columnIndex) {
         String originalPath = super.getString(columnIndex);
-        if (columnIndex < 0 || columnIndex != this.dataIndex) {
+        if (columnIndex < 0 || columnIndex != this.dataIndex || originalPath == null) {
             return originalPath;
         }
-        return NativeEngine.getEscapePath(originalPath);
+        String path = resolved.get(originalPath);
+        if (path == null) {
+            resolveWindow(originalPath);
+            path = resolved.get(originalPath);
+        }
+        return path;
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        super.fillWindow(position, window);
+        if (dataIndex < 0) {
+            return;
+        }
+        // The window is read by another process, which doesn't go through getString.
+        String[] paths = readColumn(window);
+        String[] escaped = resolve(paths);
+        for (int row = 0; row < paths.length; row++) {
+            if (escaped[row] != null) {
+                window.putString(escaped[row], window.getStartPosition() + row, dataIndex);
+            }
+        }
+    }
+
+    /**
+     * Resolve every path of the window holding the current row, or just the
+     * given one if the rows are not windowed.
+     */
+    private void resolveWindow(String originalPath) {
+        if (resolved.size() >= MAX_RESOLVED) {
+            resolved.clear();
+        }
+        CursorWindow window = findWindow();
+        if (window != null) {
+            int row = getPosition() - window.getStartPosition();
+            // the wrappers below may have remapped the columns
+            if (row >= 0 && row < window.getNumRows()
+                    && originalPath.equals(window.getString(getPosition(), dataIndex))) {
+                resolve(readColumn(window));
+                return;
+            }
+        }
+        resolve(new String[]{originalPath});
+    }
+
+    private String[] resolve(String[] paths) {
+        int missing = 0;
+        for (String path : paths) {
+            if (path != null && !resolved.containsKey(path)) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            String[] escaped = new String[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                escaped[i] = paths[i] != null ? resolved.get(paths[i]) : null;
+            }
+            return escaped;
+        }
+        String[] escaped = NativeEngine.getEscapePaths(paths);
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] != null) {
+                resolved.put(paths[i], escaped[i]);
+            }
+        }
+        return escaped;
+    }
+
+    private String[] readColumn(CursorWindow window) {
+        int start = window.getStartPosition();
+        String[] paths = new String[window.getNumRows()];
+        for (int row = 0; row < paths.length; row++) {
+            paths[row] = window.getString(start + row, dataIndex);
+        }
+        return paths;
+    }
+
+    private CursorWindow findWindow() {
+        Cursor cursor = getWrappedCursor();
+        while (cursor instanceof CursorWrapper) {
+            cursor = ((CursorWrapper) cursor).getWrappedCursor();
+        }
+        if (cursor instanceof AbstractWindowedCursor) {
+            return ((AbstractWindowedCursor) cursor).getWindow();
+        }
+        return null;
     }
 }
@@ -3,25 +3,32 @@ package com.lody.virtual.client.hook.proxies.location;
 import android.location.Location;
 import android.os.Build.VERSION;
 import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.lody.virtual.client.ipc.VirtualLocationManager;
 import com.lody.virtual.remote.vloc.VLocation;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import mirror.RefObject;
 import mirror.android.location.LocationManager;
 
 
-public class GPSListenerThread extends TimerTask {
+/**
+ * Emits the mock fixes to the listeners of the LocationManagers of this process,
+ * every second and only while some of them have listeners.
+ */
+public class GPSListenerThread implements Runnable {
+    private static final long INTERVAL = 1000;
+
     private static GPSListenerThread INSTANCE;
-    private Handler handler = new Handler();
+    private final Handler handler;
     private boolean isRunning = false;
-    private HashMap<Object, Long> listeners = new HashMap<>();
-    private Timer timer = new Timer();
+    private final HashMap<Object, Long> listeners = new HashMap<>();
 
     static {
         INSTANCE = new GPSListenerThread();
@@ -89,32 +96,42 @@ public class GPSListenerThread extends TimerTask {
     }
 
     public void addListenerTransport(Object transport) {
-        this.listeners.put(transport, System.currentTimeMillis());
-        if (!isRunning) {
-            synchronized (this) {
-                if (!isRunning) {
-                    isRunning = true;
-                    timer.schedule(this, 1000, 1000);
-                }
+        synchronized (listeners) {
+            listeners.put(transport, System.currentTimeMillis());
+            if (!isRunning) {
+                isRunning = true;
+                handler.postDelayed(this, INTERVAL);
             }
         }
     }
 
     public void removeListenerTransport(Object transport) {
         if (transport != null) {
-            listeners.remove(transport);
+            synchronized (listeners) {
+                listeners.remove(transport);
+            }
         }
     }
 
     public void run() {
-        if (!listeners.isEmpty()) {
-            if (VirtualLocationManager.get().getMode() == VirtualLocationManager.MODE_CLOSE) {
+        List<Object> transports;
+        // answered from the config pushed to this process
+        boolean closed = VirtualLocationManager.get().getMode() == VirtualLocationManager.MODE_CLOSE;
+        synchronized (listeners) {
+            if (listeners.isEmpty() || closed) {
                 listeners.clear();
+                isRunning = false;
                 return;
             }
-            for (Map.Entry entry : this.listeners.entrySet()) {
+            transports = new ArrayList<>(listeners.keySet());
+        }
+        if (!transports.isEmpty()) {
+            for (Object transport : transports) {
+                if (!hasListeners(transport)) {
+                    removeListenerTransport(transport);
+                    continue;
+                }
                 try {
-                    Object transport = entry.getKey();
                     Map gpsStatusListeners;
                     if (VERSION.SDK_INT >= 24) {
                         Map nmeaListeners = LocationManager.mGnssNmeaListeners.get(transport);
@@ -146,10 +163,48 @@ public class GPSListenerThread extends TimerTask {
                 }
             }
         }
+        synchronized (listeners) {
+            if (listeners.isEmpty()) {
+                isRunning = false;
+            } else {
+                handler.postDelayed(this, INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * @return whether the LocationManager still has any listener to feed.
+     */
+    private static boolean hasListeners(Object transport) {
+        if (!isEmpty(LocationManager.mListeners, transport)
+                || !isEmpty(LocationManager.mGpsStatusListeners, transport)
+                || !isEmpty(LocationManager.mNmeaListeners, transport)) {
+            return true;
+        }
+        return VERSION.SDK_INT >= 24
+                && (!isEmpty(LocationManager.mGnssStatusListeners, transport)
+                || !isEmpty(LocationManager.mGnssNmeaListeners, transport)
+                || !isEmpty(LocationManager.mGpsNmeaListeners, transport));
+    }
+
+    private static boolean isEmpty(RefObject<HashMap> field, Object transport) {
+        if (field == null) {
+            return true;
+        }
+        try {
+            Map map = field.get(transport);
+            return map == null || map.isEmpty();
+        } catch (Throwable e) {
+            return true;
+        }
     }
 
     public void stop() {
-        this.timer.cancel();
+        handler.removeCallbacks(this);
+        synchronized (listeners) {
+            listeners.clear();
+            isRunning = false;
+        }
     }
 
     public static GPSListenerThread get() {
@@ -157,5 +212,8 @@ public class GPSListenerThread extends TimerTask {
     }
 
     private GPSListenerThread() {
+        HandlerThread thread = new HandlerThread("va-mock-location");
+        thread.start();
+        handler = new Handler(thread.getLooper());
     }
 }
\ No newline at end of file
@@ -0,0 +1,241 @@
+package com.lody.virtual.client.ipc;
+
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.util.LruCache;
+
+import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.server.interfaces.IPackageObserver;
+
+/**
+ * Guest-side cache of the package metadata answered by VPackageManagerService.
+ * <p>
+ * Entries are stored marshalled, so every hit hands out a fresh object that the
+ * caller (and the hooks) may modify freely. Negative answers are cached as well.
+ * The whole cache is dropped whenever VAppManagerService publishes a new package
+ * generation, which happens on every install, uninstall and per-user state change.
+ */
+class PackageInfoCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final byte[] NULL_ENTRY = new byte[0];
+
+    private final LruCache<Object, byte[]> mEntries = new LruCache<>(MAX_ENTRIES);
+    private final Object mLock = new Object();
+    /**
+     * Registering takes a lock of its own, the server may call the observer
+     * back before the registration returns.
+     */
+    private final Object mObserverLock = new Object();
+    private volatile IPackageObserver mObserver;
+    private long mGeneration = -1;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Hold the generation we observed before the IPC, so that a result computed
+     * against an older package set is never stored.
+     */
+    static final class Ticket {
+        final Object key;
+        final long generation;
+
+        Ticket(Object key, long generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+
+    static Object packageKey(String kind, String packageName, int flags, int userId) {
+        return kind + '|' + packageName + '|' + flags + '|' + userId;
+    }
+
+    static Object intentKey(String kind, Intent intent, String resolvedType, int flags, int userId) {
+        return new IntentKey(kind, intent, resolvedType, flags, userId);
+    }
+
+    boolean isEnabled() {
+        return VirtualCore.get().isVAppProcess();
+    }
+
+    /**
+     * @return the cached entry, {@link #NULL_ENTRY} for a cached null, or null on a miss.
+     */
+    <T extends Parcelable> Object get(Object key, Parcelable.Creator<T> creator) {
+        ensureObserver();
+        byte[] data;
+        synchronized (mLock) {
+            data = mEntries.get(key);
+            if (data == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        if (data == NULL_ENTRY) {
+            return NULL_ENTRY;
+        }
+        Parcel p = Parcel.obtain();
+        try {
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            return creator.createFromParcel(p);
+        } finally {
+            p.recycle();
+        }
+    }
+
+    static boolean isNull(Object entry) {
+        return entry == NULL_ENTRY;
+    }
+
+    Ticket begin(Object key) {
+        synchronized (mLock) {
+            return new Ticket(key, mGeneration);
+        }
+    }
+
+    void put(Ticket ticket, Parcelable value) {
+        byte[] data = NULL_ENTRY;
+        if (value != null) {
+            Parcel p = Parcel.obtain();
+            try {
+                value.writeToParcel(p, 0);
+                data = p.marshall();
+            } finally {
+                p.recycle();
+            }
+        }
+        synchronized (mLock) {
+            if (ticket.generation != -1 && ticket.generation == mGeneration) {
+                mEntries.put(ticket.key, data);
+            }
+        }
+    }
+
+    private void ensureObserver() {
+        if (mObserver != null) {
+            return;
+        }
+        synchronized (mObserverLock) {
+            if (mObserver != null) {
+                return;
+            }
+            IPackageObserver observer = new IPackageObserver.Stub() {
+                @Override
+                public void onPackageInstalled(String packageName) {
+                }
+
+                @Override
+                public void onPackageUninstalled(String packageName) {
+                }
+
+                @Override
+                public void onPackageInstalledAsUser(int userId, String packageName) {
+                }
+
+                @Override
+                public void onPackageUninstalledAsUser(int userId, String packageName) {
+                }
+
+                @Override
+                public void onPackageGenerationChanged(long generation) {
+                    onGenerationChanged(generation);
+                }
+            };
+            final IBinder server = ServiceManagerNative.getService(ServiceManagerNative.APP);
+            if (server == null) {
+                return;
+            }
+            try {
+                server.linkToDeath(new IBinder.DeathRecipient() {
+                    @Override
+                    public void binderDied() {
+                        server.unlinkToDeath(this, 0);
+                        // registered again with the next lookup
+                        mObserver = null;
+                        onServerDied();
+                    }
+                }, 0);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                return;
+            }
+            onGenerationChanged(VirtualCore.get().registerGenerationObserver(observer));
+            mObserver = observer;
+        }
+    }
+
+    /**
+     * Nothing tells the cache about the changes until it registers again with the
+     * new server, whose generations start over.
+     */
+    private void onServerDied() {
+        synchronized (mLock) {
+            mGeneration = -1;
+            mEntries.evictAll();
+        }
+    }
+
+    private void onGenerationChanged(long generation) {
+        synchronized (mLock) {
+            if (generation > mGeneration) {
+                mGeneration = generation;
+                mEntries.evictAll();
+            }
+        }
+    }
+
+    String getStats() {
+        synchronized (mLock) {
+            return "generation " + mGeneration + ", " + mEntries.size() + " entries, "
+                    + mHits + " hits, " + mMisses + " misses";
+        }
+    }
+
+    private static final class IntentKey {
+        final String kind;
+        final Intent intent;
+        final String resolvedType;
+        final int flags;
+        final int userId;
+        final int hash;
+
+        IntentKey(String kind, Intent intent, String resolvedType, int flags, int userId) {
+            this.kind = kind;
+            this.intent = intent.cloneFilter();
+            this.resolvedType = resolvedType;
+            this.flags = flags;
+            this.userId = userId;
+            int h = kind.hashCode();
+            h = 31 * h + this.intent.filterHashCode();
+            h = 31 * h + (resolvedType != null ? resolvedType.hashCode() : 0);
+            h = 31 * h + flags;
+            h = 31 * h + userId;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof IntentKey)) {
+                return false;
+            }
+            IntentKey other = (IntentKey) o;
+            return flags == other.flags && userId == other.userId
+                    && kind.equals(other.kind)
+                    && (resolvedType != null ? resolvedType.equals(other.resolvedType) : other.resolvedType == null)
+                    && intent.filterEquals(other.intent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.IInterface;
 import android.os.RemoteException;
+import android.util.SparseIntArray;
 
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.VirtualRuntime;
@@ -43,6 +44,19 @@ public class VActivityManager {
     private static final VActivityManager sAM = new VActivityManager();
     private final Map<IBinder, ActivityClientRecord> mActivities = new HashMap<IBinder, ActivityClientRecord>(6);
     private IActivityManager mRemote;
+    /**
+     * pid -> vuid of other virtual processes, filled on first lookup and by
+     * {@link IProcessObserver#onProcessAttached}, dropped when the process dies.
+     */
+    private final SparseIntArray mUidByPid = new SparseIntArray();
+    /**
+     * Published once registered with the current server, the cache is only used then.
+     */
+    private volatile IProcessObserver mUidCacheObserver;
+    private final Object mUidCacheLock = new Object();
+    private int mUidCacheGeneration;
+    private long mUidCacheHits;
+    private long mUidCacheMisses;
 
     public static VActivityManager get() {
         return sAM;
@@ -384,6 +398,35 @@ public class VActivityManager {
     }
 
     public int getUidByPid(int pid) {
+        if (VirtualCore.get().isServerProcess()) {
+            return queryUidByPid(pid);
+        }
+        if (!ensureUidCacheObserver()) {
+            return queryUidByPid(pid);
+        }
+        int generation;
+        synchronized (mUidByPid) {
+            int vuid = mUidByPid.get(pid, -1);
+            if (vuid != -1) {
+                mUidCacheHits++;
+                return vuid;
+            }
+            mUidCacheMisses++;
+            generation = mUidCacheGeneration;
+        }
+        int vuid = queryUidByPid(pid);
+        // The server answers with its own uid for pids it doesn't know, don't remember those.
+        if (vuid != VirtualCore.get().myUid()) {
+            synchronized (mUidByPid) {
+                if (generation == mUidCacheGeneration) {
+                    mUidByPid.put(pid, vuid);
+                }
+            }
+        }
+        return vuid;
+    }
+
+    private int queryUidByPid(int pid) {
         try {
             return getService().getUidByPid(pid);
         } catch (RemoteException e) {
@@ -391,6 +434,88 @@ public class VActivityManager {
         }
     }
 
+    /**
+     * @return whether the cache is kept up to date by the current server.
+     */
+    private boolean ensureUidCacheObserver() {
+        if (mUidCacheObserver != null) {
+            return true;
+        }
+        synchronized (mUidCacheLock) {
+            if (mUidCacheObserver != null) {
+                return true;
+            }
+            IProcessObserver observer = new IProcessObserver.Stub() {
+                @Override
+                public void onProcessCreated(String pkg, String processName) {
+                }
+
+                @Override
+                public void onProcessDied(String pkg, String processName) {
+                }
+
+                @Override
+                public void onProcessAttached(int pid, int vuid) {
+                    synchronized (mUidByPid) {
+                        mUidByPid.put(pid, vuid);
+                    }
+                }
+
+                @Override
+                public void onProcessDetached(int pid) {
+                    synchronized (mUidByPid) {
+                        mUidByPid.delete(pid);
+                        mUidCacheGeneration++;
+                    }
+                }
+
+                @Override
+                public void onProcessEvicted(int pid, int vuid, int importance) {
+                }
+            };
+            try {
+                IActivityManager service = getService();
+                service.registerProcessObserver(observer);
+                final IBinder server = service.asBinder();
+                server.linkToDeath(new IBinder.DeathRecipient() {
+                    @Override
+                    public void binderDied() {
+                        server.unlinkToDeath(this, 0);
+                        // registered again with the next lookup
+                        mUidCacheObserver = null;
+                        clearUidCache();
+                    }
+                }, 0);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                return false;
+            }
+            // nothing invalidated what may have been cached before
+            clearUidCache();
+            mUidCacheObserver = observer;
+            return true;
+        }
+    }
+
+    private void clearUidCache() {
+        synchronized (mUidByPid) {
+            mUidByPid.clear();
+            mUidCacheGeneration++;
+        }
+    }
+
+    public long getUidCacheHits() {
+        synchronized (mUidByPid) {
+            return mUidCacheHits;
+        }
+    }
+
+    public long getUidCacheMisses() {
+        synchronized (mUidByPid) {
+            return mUidCacheMisses;
+        }
+    }
+
     public int getSystemPid() {
         try {
             return getService().getSystemPid();
@@ -27,6 +27,7 @@ import java.util.List;
 public class VPackageManager {
 
     private static final VPackageManager sMgr = new VPackageManager();
+    private final PackageInfoCache mCache = new PackageInfoCache();
     private IPackageManager mRemote;
 
     public static VPackageManager get() {
@@ -83,16 +84,42 @@ public class VPackageManager {
     }
 
     public PackageInfo getPackageInfo(String packageName, int flags, int userId) {
+        PackageInfoCache.Ticket ticket = null;
+        if (mCache.isEnabled()) {
+            Object key = PackageInfoCache.packageKey("pkg", packageName, flags, userId);
+            Object cached = mCache.get(key, PackageInfo.CREATOR);
+            if (cached != null) {
+                return PackageInfoCache.isNull(cached) ? null : (PackageInfo) cached;
+            }
+            ticket = mCache.begin(key);
+        }
         try {
-            return getInterface().getPackageInfo(packageName, flags, userId);
+            PackageInfo info = getInterface().getPackageInfo(packageName, flags, userId);
+            if (ticket != null) {
+                mCache.put(ticket, info);
+            }
+            return info;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
     }
 
     public ResolveInfo resolveIntent(Intent intent, String resolvedType, int flags, int userId) {
+        PackageInfoCache.Ticket ticket = null;
+        if (mCache.isEnabled() && intent != null) {
+            Object key = PackageInfoCache.intentKey("resolve", intent, resolvedType, flags, userId);
+            Object cached = mCache.get(key, ResolveInfo.CREATOR);
+            if (cached != null) {
+                return PackageInfoCache.isNull(cached) ? null : (ResolveInfo) cached;
+            }
+            ticket = mCache.begin(key);
+        }
         try {
-            return getInterface().resolveIntent(intent, resolvedType, flags, userId);
+            ResolveInfo info = getInterface().resolveIntent(intent, resolvedType, flags, userId);
+            if (ticket != null) {
+                mCache.put(ticket, info);
+            }
+            return info;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
@@ -139,8 +166,21 @@ public class VPackageManager {
     }
 
     public ActivityInfo getActivityInfo(ComponentName componentName, int flags, int userId) {
+        PackageInfoCache.Ticket ticket = null;
+        if (mCache.isEnabled() && componentName != null) {
+            Object key = PackageInfoCache.packageKey("activity", componentName.flattenToShortString(), flags, userId);
+            Object cached = mCache.get(key, ActivityInfo.CREATOR);
+            if (cached != null) {
+                return PackageInfoCache.isNull(cached) ? null : (ActivityInfo) cached;
+            }
+            ticket = mCache.begin(key);
+        }
         try {
-            return getInterface().getActivityInfo(componentName, flags, userId);
+            ActivityInfo info = getInterface().getActivityInfo(componentName, flags, userId);
+            if (ticket != null) {
+                mCache.put(ticket, info);
+            }
+            return info;
         } catch (RemoteException e) {
             return VirtualRuntime.crash(e);
         }
@@ -179,8 +219,26 @@ public class VPackageManager {
     }
 
     public ApplicationInfo getApplicationInfo(String packageName, int flags, int userId) {
+        PackageInfoCache.Ticket ticket = null;
+        ApplicationInfo info = null;
+        if (mCache.isEnabled()) {
+            Object key = PackageInfoCache.packageKey("app", packageName, flags, userId);
+            Object cached = mCache.get(key, ApplicationInfo.CREATOR);
+            if (PackageInfoCache.isNull(cached)) {
+                return null;
+            }
+            info = (ApplicationInfo) cached;
+            if (info == null) {
+                ticket = mCache.begin(key);
+            }
+        }
         try {
-            ApplicationInfo info = getInterface().getApplicationInfo(packageName, flags, userId);
+            if (info == null) {
+                info = getInterface().getApplicationInfo(packageName, flags, userId);
+                if (ticket != null) {
+                    mCache.put(ticket, info);
+                }
+            }
             if (info == null) {
                 return null;
             }
@@ -281,6 +339,13 @@ public class VPackageManager {
     }
 
 
+    /**
+     * @return hit/miss statistics of the guest-side package metadata cache.
+     */
+    public String getCacheStats() {
+        return mCache.getStats();
+    }
+
     public IPackageInstaller getPackageInstaller() {
         try {
             return getInterface().getPackageInstaller();
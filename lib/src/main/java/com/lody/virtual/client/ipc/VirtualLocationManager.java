@@ -7,8 +7,10 @@ import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.VirtualRuntime;
 import com.lody.virtual.client.hook.base.MethodProxy;
 import com.lody.virtual.remote.vloc.VCell;
+import com.lody.virtual.remote.vloc.VLocConfig;
 import com.lody.virtual.remote.vloc.VLocation;
 import com.lody.virtual.server.IVirtualLocationManager;
+import com.lody.virtual.server.interfaces.ILocationObserver;
 
 import java.util.List;
 
@@ -21,6 +23,15 @@ public class VirtualLocationManager {
     private static final VirtualLocationManager sInstance = new VirtualLocationManager();
     private IVirtualLocationManager mRemote;
 
+    /**
+     * The config of the package of this process, pushed by the server on every change.
+     */
+    private final Object mConfigLock = new Object();
+    private ILocationObserver mObserver;
+    private int mConfigUserId;
+    private String mConfigPkg;
+    private volatile VLocConfig mConfig;
+
     public static final int MODE_CLOSE = 0;
     public static final int MODE_USE_GLOBAL = 1;
     public static final int MODE_USE_SELF = 2;
@@ -47,7 +58,62 @@ public class VirtualLocationManager {
         return IVirtualLocationManager.Stub.asInterface(binder);
     }
 
+    /**
+     * @return the config pushed to this process, or null if it doesn't hold the
+     * one of that package.
+     */
+    private VLocConfig getCachedConfig(int userId, String pkg) {
+        if (pkg == null || !VirtualCore.get().isVAppProcess()) {
+            return null;
+        }
+        VLocConfig config = mConfig;
+        if (config == null) {
+            synchronized (mConfigLock) {
+                if (mConfig == null) {
+                    if (userId != MethodProxy.getAppUserId() || !pkg.equals(MethodProxy.getAppPkg())) {
+                        return null;
+                    }
+                    observeConfigLocked(userId, pkg);
+                }
+                config = mConfig;
+            }
+        }
+        if (config == null || userId != mConfigUserId || !pkg.equals(mConfigPkg)) {
+            return null;
+        }
+        return config;
+    }
+
+    /**
+     * The lock is held across the call, so that a change pushed meanwhile is
+     * applied after the config it replaces.
+     */
+    private void observeConfigLocked(int userId, String pkg) {
+        if (mObserver == null) {
+            mObserver = new ILocationObserver.Stub() {
+                @Override
+                public void onLocationConfigChanged(VLocConfig config) {
+                    synchronized (mConfigLock) {
+                        mConfig = config;
+                    }
+                }
+            };
+        }
+        try {
+            VLocConfig config = getRemote().observeConfig(userId, pkg, mObserver);
+            mConfigUserId = userId;
+            mConfigPkg = pkg;
+            mConfig = config;
+        } catch (RemoteException e) {
+            // retried by the next call
+        }
+    }
+
     public int getMode(int userId, String pkg) {
+        VLocConfig config = getCachedConfig(userId, pkg);
+        if (config != null) {
+            return config.mode;
+        }
         try {
             return getRemote().getMode(userId, pkg);
         } catch (RemoteException e) {
@@ -92,6 +158,10 @@ public class VirtualLocationManager {
     }
 
     public VCell getCell(int userId, String pkg) {
+        VLocConfig config = getCachedConfig(userId, pkg);
+        if (config != null) {
+            return config.cell;
+        }
         try {
             return getRemote().getCell(userId, pkg);
         } catch (RemoteException e) {
@@ -100,6 +170,10 @@ public class VirtualLocationManager {
     }
 
     public List<VCell> getAllCell(int userId, String pkg) {
+        VLocConfig config = getCachedConfig(userId, pkg);
+        if (config != null) {
+            return config.allCell;
+        }
         try {
             return getRemote().getAllCell(userId, pkg);
         } catch (RemoteException e) {
@@ -108,6 +182,10 @@ public class VirtualLocationManager {
     }
 
     public List<VCell> getNeighboringCell(int userId, String pkg) {
+        VLocConfig config = getCachedConfig(userId, pkg);
+        if (config != null) {
+            return config.neighboringCell;
+        }
         try {
             return getRemote().getNeighboringCell(userId, pkg);
         } catch (RemoteException e) {
@@ -149,6 +227,10 @@ public class VirtualLocationManager {
     }
 
     public VLocation getLocation(int userId, String pkg) {
+        VLocConfig config = getCachedConfig(userId, pkg);
+        if (config != null) {
+            return config.location;
+        }
         try {
             return getRemote().getLocation(userId, pkg);
         } catch (RemoteException e) {
@@ -28,6 +28,8 @@ public class StubCP extends ContentProvider {
 	public Bundle call(String method, String arg, Bundle extras) {
 		if ("_VA_|_init_process_".equals(method)) {
 			return initProcess(extras);
+		} else if ("_VA_|_warm_up_".equals(method)) {
+			return warmUp();
 		}
 		return null;
 	}
@@ -47,6 +49,21 @@ public class StubCP extends ContentProvider {
 		return res;
 	}
 
+	/**
+	 * Called by the server to keep this process warm: the host startup has
+	 * already run when we get here, the process waits to be claimed by an app.
+	 */
+	private Bundle warmUp() {
+		ConditionVariable lock = VirtualCore.get().getInitLock();
+		if (lock != null) {
+			lock.block();
+		}
+		Bundle res = new Bundle();
+		BundleCompat.putBinder(res, "_VA_|_client_", VClientImpl.get().asBinder());
+		res.putInt("_VA_|_pid_", Process.myPid());
+		return res;
+	}
+
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
 		return null;
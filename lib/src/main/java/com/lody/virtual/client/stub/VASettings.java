@@ -17,6 +17,17 @@ public class VASettings {
     public static String STUB_EXCLUDE_FROM_RECENT_ACTIVITY = StubExcludeFromRecentActivity.class.getName();
     public static String STUB_CP_AUTHORITY = "virtual_stub_";
     public static int STUB_COUNT = 50;
+    /**
+     * Number of stub processes kept started ahead of time, 0 to disable.
+     */
+    public static int WARM_STUB_COUNT = 2;
+    /**
+     * If enable,
+     * static receivers of the apps share one host registration per action (and data spec),
+     * and the broadcasts are matched against their filters inside VA.
+     * Otherwise every intent filter is registered to the system on its own.
+     */
+    public static boolean MULTIPLEX_STATIC_RECEIVERS = true;
     public static String[] PRIVILEGE_APPS = new String[]{
             "com.google.android.gms"
     };
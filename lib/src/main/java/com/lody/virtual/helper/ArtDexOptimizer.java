@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import mirror.dalvik.system.VMRuntime;
 
@@ -19,6 +20,8 @@ import mirror.dalvik.system.VMRuntime;
  */
 public class ArtDexOptimizer {
 
+    public static final String FILTER_EVERYTHING = "everything";
+
     /**
      * Optimize the dex in compile mode.
      *
@@ -27,6 +30,23 @@ public class ArtDexOptimizer {
      * @throws IOException
      */
     public static void compileDex2Oat(String dexFilePath, String oatFilePath) throws IOException {
+        compileDex2Oat(dexFilePath, oatFilePath, FILTER_EVERYTHING, null);
+    }
+
+    /**
+     * @return a compiler filter that only verifies the dex, fast enough for the install path.
+     */
+    public static String getQuickCompilerFilter() {
+        return Build.VERSION.SDK_INT >= 26 ? "quicken" : "interpret-only";
+    }
+
+    /**
+     * Optimize the dex with the given compiler filter.
+     *
+     * @param running receives the dex2oat process while it runs, so that it can be destroyed
+     */
+    public static void compileDex2Oat(String dexFilePath, String oatFilePath, String compilerFilter,
+                                      AtomicReference<Process> running) throws IOException {
         final File oatFile = new File(oatFilePath);
         if (!oatFile.exists()) {
             oatFile.getParentFile().mkdirs();
@@ -44,7 +64,7 @@ public class ArtDexOptimizer {
         commandAndParams.add("--dex-file=" + dexFilePath);
         commandAndParams.add("--oat-file=" + oatFilePath);
         commandAndParams.add("--instruction-set=" + VMRuntime.getCurrentInstructionSet.call());
-        commandAndParams.add("--compiler-filter=everything");
+        commandAndParams.add("--compiler-filter=" + compilerFilter);
         if (Build.VERSION.SDK_INT >= 22 && !BuildCompat.isQ()) {
             commandAndParams.add("--compile-pic");
         }
@@ -61,6 +81,9 @@ public class ArtDexOptimizer {
         final ProcessBuilder pb = new ProcessBuilder(commandAndParams);
         pb.redirectErrorStream(true);
         final Process dex2oatProcess = pb.start();
+        if (running != null) {
+            running.set(dex2oatProcess);
+        }
         StreamConsumer.consumeInputStream(dex2oatProcess.getInputStream());
         StreamConsumer.consumeInputStream(dex2oatProcess.getErrorStream());
         try {
@@ -70,6 +93,10 @@ public class ArtDexOptimizer {
             }
         } catch (InterruptedException e) {
             throw new IOException("dex2oat is interrupted, msg: " + e.getMessage(), e);
+        } finally {
+            if (running != null) {
+                running.set(null);
+            }
         }
     }
 
@@ -1,22 +1,96 @@
 package com.lody.virtual.helper;
 
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Parcel;
+import android.os.SystemClock;
 
+import com.lody.virtual.helper.utils.AtomicFile;
+import com.lody.virtual.helper.utils.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
+ * A state saved as a whole into one Parcel file.
+ * <p>
+ * {@link #save()} writes it right away. Frequent changes should rather use
+ * {@link #scheduleSave()}, which coalesces them into one write on a background
+ * thread, so {@link #writePersistenceData(Parcel)} must guard the state itself.
+ * Small changes can also be appended to a journal with {@link #appendDelta(Delta)},
+ * which is replayed by {@link #read()} through {@link #readDelta(Parcel)} and
+ * compacted into a full save once it grows. The file is replaced atomically.
+ * Every journal record is numbered and a full save records the last number it
+ * includes, so that a journal which outlives the save is not replayed over it.
+ *
  * @author Lody
  */
 public abstract class PersistenceLayer {
 
+    /**
+     * Delay of a scheduled save, the changes made meanwhile are written with it.
+     */
+    private static final long SAVE_DELAY = 1000;
+    /**
+     * New changes don't push a scheduled save back beyond this.
+     */
+    private static final long MAX_SAVE_DELAY = 5000;
+    /**
+     * The journal is compacted into a full save beyond this size.
+     */
+    private static final long MAX_JOURNAL_SIZE = 64 * 1024;
+
+    private static final Set<PersistenceLayer> sScheduled = new HashSet<>();
+    private static Handler sHandler;
+
     private File mPersistenceFile;
+    private final AtomicFile mAtomicFile;
+    private final File mJournalFile;
+    /**
+     * Held while writing the files. The state of the schedule is guarded by
+     * mPendingDeltas instead, so that it may be touched under the locks of the
+     * subclass without ever waiting for a write.
+     */
+    private final Object mLock = new Object();
+    private final List<byte[]> mPendingDeltas = new ArrayList<>();
+    /**
+     * Number of the last record written to the journal. Guarded by mLock.
+     */
+    private long mJournalSequence;
+    private boolean mDirty;
+    private long mFirstScheduleTime;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * A change recorded in the journal, replayed over the last full save
+     * that does not include it.
+     */
+    public interface Delta {
+        void writeToParcel(Parcel p);
+    }
 
     public PersistenceLayer(File persistenceFile) {
         this.mPersistenceFile = persistenceFile;
+        this.mAtomicFile = new AtomicFile(persistenceFile);
+        this.mJournalFile = new File(persistenceFile.getPath() + ".journal");
     }
 
     public final File getPersistenceFile() {
@@ -34,8 +108,23 @@ public abstract class PersistenceLayer {
 
     public abstract void writePersistenceData(Parcel p);
 
+    /**
+     * @return the lock the state is mutated under, held around every write and
+     * read of the files, or null if {@link #writePersistenceData(Parcel)} guards
+     * the state itself.
+     */
+    protected Object getStateLock() {
+        return null;
+    }
+
     public abstract void readPersistenceData(Parcel p);
 
+    /**
+     * Apply a change written by {@link #appendDelta(Delta)}.
+     */
+    public void readDelta(Parcel p) {
+    }
+
     public boolean onVersionConflict(int fileVersion, int currentVersion) {
         return false;
     }
@@ -43,33 +132,234 @@ public abstract class PersistenceLayer {
     public void onPersistenceFileDamage() {
     }
 
+    /**
+     * Write the whole state now.
+     */
     public void save() {
+        Object stateLock = getStateLock();
+        if (stateLock == null) {
+            saveLocked();
+            return;
+        }
+        synchronized (stateLock) {
+            saveLocked();
+        }
+    }
+
+    private void saveLocked() {
+        synchronized (mLock) {
+            synchronized (mPendingDeltas) {
+                unscheduleLocked();
+                mDirty = false;
+                mPendingDeltas.clear();
+            }
+            writeSnapshotLocked();
+        }
+    }
+
+    /**
+     * Write the whole state soon, on a background thread.
+     */
+    public void scheduleSave() {
+        synchronized (mPendingDeltas) {
+            mDirty = true;
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Record a small change in the journal instead of writing the whole state.
+     */
+    public void appendDelta(Delta delta) {
+        byte[] data;
+        Parcel p = Parcel.obtain();
+        try {
+            delta.writeToParcel(p);
+            data = p.marshall();
+        } finally {
+            p.recycle();
+        }
+        synchronized (mPendingDeltas) {
+            mPendingDeltas.add(data);
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Write what is pending now, on the calling thread.
+     */
+    public void flush() {
+        Object stateLock = getStateLock();
+        if (stateLock == null) {
+            flushLocked();
+            return;
+        }
+        // The state lock always comes first, the writers hold it when they save.
+        synchronized (stateLock) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        synchronized (mLock) {
+            boolean snapshot;
+            List<byte[]> deltas;
+            synchronized (mPendingDeltas) {
+                unscheduleLocked();
+                snapshot = mDirty || mJournalFile.length() > MAX_JOURNAL_SIZE;
+                deltas = new ArrayList<>(mPendingDeltas);
+                mDirty = false;
+                mPendingDeltas.clear();
+            }
+            if (snapshot || (!deltas.isEmpty() && !appendJournalLocked(deltas))) {
+                writeSnapshotLocked();
+            }
+        }
+    }
+
+    /**
+     * Barrier for the shutdown: write what is pending in every layer.
+     */
+    public static void flushAll() {
+        List<PersistenceLayer> layers;
+        synchronized (sScheduled) {
+            layers = new ArrayList<>(sScheduled);
+        }
+        for (PersistenceLayer layer : layers) {
+            layer.flush();
+        }
+    }
+
+    private static Handler getHandler() {
+        synchronized (sScheduled) {
+            if (sHandler == null) {
+                HandlerThread thread = new HandlerThread("va-persistence");
+                thread.start();
+                sHandler = new Handler(thread.getLooper());
+            }
+            return sHandler;
+        }
+    }
+
+    /**
+     * Should guard by mPendingDeltas.
+     */
+    private void scheduleLocked() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstScheduleTime == 0) {
+            mFirstScheduleTime = now;
+            synchronized (sScheduled) {
+                sScheduled.add(this);
+            }
+        }
+        Handler handler = getHandler();
+        handler.removeCallbacks(mFlush);
+        handler.postAtTime(mFlush, Math.min(now + SAVE_DELAY, mFirstScheduleTime + MAX_SAVE_DELAY));
+    }
+
+    private void unscheduleLocked() {
+        if (mFirstScheduleTime != 0) {
+            mFirstScheduleTime = 0;
+            getHandler().removeCallbacks(mFlush);
+            synchronized (sScheduled) {
+                sScheduled.remove(this);
+            }
+        }
+    }
+
+    private void writeSnapshotLocked() {
         Parcel p = Parcel.obtain();
+        FileOutputStream fos = null;
         try {
             writeMagic(p);
             p.writeInt(getCurrentVersion());
             writePersistenceData(p);
-            FileOutputStream fos = new FileOutputStream(mPersistenceFile);
+            // Everything journaled is part of the state written, should the
+            // journal survive it, its records up to this one are skipped.
+            p.writeLong(mJournalSequence);
+            fos = mAtomicFile.startWrite();
             fos.write(p.marshall());
-            fos.close();
+            mAtomicFile.finishWrite(fos);
+            mJournalFile.delete();
         } catch (Exception e) {
             e.printStackTrace();
+            mAtomicFile.failWrite(fos);
+            synchronized (mPendingDeltas) {
+                // retried with the next change or flush
+                mDirty = true;
+            }
         } finally {
             p.recycle();
         }
     }
 
+    /**
+     * Each record is its length, its number, the CRC32 of both the number and
+     * the marshalled delta, and the marshalled delta.
+     */
+    private boolean appendJournalLocked(List<byte[]> deltas) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mJournalFile, true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            CRC32 crc = new CRC32();
+            long sequence = mJournalSequence;
+            for (byte[] data : deltas) {
+                sequence++;
+                out.writeInt(data.length);
+                out.writeLong(sequence);
+                out.writeLong(checksum(crc, sequence, data));
+                out.write(data);
+            }
+            out.flush();
+            fos.getFD().sync();
+            mJournalSequence = sequence;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            FileUtils.closeQuietly(fos);
+        }
+    }
+
+    private static long checksum(CRC32 crc, long sequence, byte[] data) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (sequence >>> shift));
+        }
+        crc.update(data);
+        return crc.getValue();
+    }
+
     public void read() {
-        File file = mPersistenceFile;
+        Object stateLock = getStateLock();
+        if (stateLock == null) {
+            readLocked();
+            return;
+        }
+        synchronized (stateLock) {
+            readLocked();
+        }
+    }
+
+    private void readLocked() {
+        synchronized (mLock) {
+            mJournalSequence = readSnapshotLocked();
+            if (mJournalFile.exists() && replayJournalLocked()) {
+                // Fold the journal, and drop its torn tail if any, before appending to it again.
+                scheduleSave();
+            }
+        }
+    }
+
+    /**
+     * @return the number of the last journal record the snapshot includes.
+     */
+    private long readSnapshotLocked() {
         Parcel p = Parcel.obtain();
         try {
-            FileInputStream fis = new FileInputStream(file);
-            byte[] bytes = new byte[(int) file.length()];
-            int len = fis.read(bytes);
-            fis.close();
-            if (len != bytes.length) {
-                throw new IOException("Unable to read Persistence file.");
-            }
+            byte[] bytes = mAtomicFile.readFully();
             p.unmarshall(bytes, 0, bytes.length);
             p.setDataPosition(0);
             if (!verifyMagic(p)) {
@@ -84,12 +374,68 @@ public abstract class PersistenceLayer {
                 }
             }
             readPersistenceData(p);
+            // absent from the files written before the journal was numbered
+            return p.dataAvail() >= 8 ? p.readLong() : 0;
         } catch (Exception e) {
             if (!(e instanceof FileNotFoundException)) {
                 e.printStackTrace();
             }
+            return 0;
         } finally {
             p.recycle();
         }
     }
+
+    /**
+     * Apply the records newer than the snapshot, and continue their numbering.
+     *
+     * @return whether the journal had anything in it.
+     */
+    private boolean replayJournalLocked() {
+        DataInputStream in = null;
+        int count = 0;
+        try {
+            in = new DataInputStream(new FileInputStream(mJournalFile));
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long sequence = in.readLong();
+                long checksum = in.readLong();
+                if (length < 0 || length > MAX_JOURNAL_SIZE) {
+                    throw new IOException("Bad journal record length " + length);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                if (checksum(crc, sequence, data) != checksum) {
+                    throw new IOException("Bad journal record checksum");
+                }
+                count++;
+                if (sequence <= mJournalSequence) {
+                    // already in the snapshot
+                    continue;
+                }
+                mJournalSequence = sequence;
+                Parcel p = Parcel.obtain();
+                try {
+                    p.unmarshall(data, 0, data.length);
+                    p.setDataPosition(0);
+                    readDelta(p);
+                } finally {
+                    p.recycle();
+                }
+            }
+        } catch (Exception e) {
+            // A torn write at the end of the journal, the records before it are good.
+            e.printStackTrace();
+            return true;
+        } finally {
+            FileUtils.closeQuietly(in);
+        }
+        return count > 0;
+    }
 }
@@ -10,6 +10,7 @@ import android.os.Parcelable;
 
 import com.lody.virtual.GmsSupport;
 import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.client.env.Constants;
 import com.lody.virtual.client.env.SpecialComponentList;
 import com.lody.virtual.client.ipc.VActivityManager;
 import com.lody.virtual.client.stub.StubPendingActivity;
@@ -113,7 +114,7 @@ public class ComponentUtils {
         String pkg = intent.getPackage();
         if (component != null) {
             newIntent.putExtra("_VA_|_user_id_", userId);
-            newIntent.setAction(String.format("_VA_%s_%s", component.getPackageName(), component.getClassName()));
+            newIntent.setAction(Constants.ACTION_COMPONENT_BROADCAST);
             newIntent.putExtra("_VA_|_component_", component);
             newIntent.putExtra("_VA_|_intent_", new Intent(intent));
         } else if (pkg != null) {
@@ -0,0 +1,149 @@
+package com.lody.virtual.helper.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copy engine for large files such as apks.
+ * <p>
+ * It tries, in order: a hard link when both files live on the same filesystem,
+ * {@link FileChannel#transferTo} (sendfile in the kernel), and finally a copy
+ * through one large direct buffer. A source that is not needed afterwards can
+ * be {@link #move(File, File, ProgressListener) moved} instead.
+ */
+public class FileCopier {
+
+    private static final String TAG = FileCopier.class.getSimpleName();
+
+    /**
+     * Size of the direct buffer, also the granularity of progress callbacks.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    public static final int METHOD_LINK = 0;
+    public static final int METHOD_TRANSFER = 1;
+    public static final int METHOD_BUFFER = 2;
+    public static final int METHOD_RENAME = 3;
+
+    public interface ProgressListener {
+        void onProgress(long copied, long total);
+    }
+
+    /**
+     * @return how the file was copied, one of METHOD_*
+     */
+    public static int copy(File source, File target, boolean allowLink, ProgressListener listener) throws IOException {
+        long total = source.length();
+        if (allowLink && link(source, target)) {
+            if (listener != null) {
+                listener.onProgress(total, total);
+            }
+            return METHOD_LINK;
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(target);
+            FileChannel iChannel = in.getChannel();
+            FileChannel oChannel = out.getChannel();
+            if (transfer(iChannel, oChannel, total, listener)) {
+                return METHOD_TRANSFER;
+            }
+            iChannel.position(0);
+            oChannel.position(0);
+            oChannel.truncate(0);
+            copyBuffered(iChannel, oChannel, total, listener);
+            return METHOD_BUFFER;
+        } finally {
+            FileUtils.closeQuietly(in);
+            FileUtils.closeQuietly(out);
+        }
+    }
+
+    public static int copy(File source, File target, ProgressListener listener) throws IOException {
+        return copy(source, target, false, listener);
+    }
+
+    /**
+     * Rename the source onto the target, or copy it and delete it when they are
+     * on different filesystems.
+     *
+     * @return how the file was moved, one of METHOD_*
+     */
+    public static int move(File source, File target, ProgressListener listener) throws IOException {
+        long total = source.length();
+        if (source.renameTo(target)) {
+            if (listener != null) {
+                listener.onProgress(total, total);
+            }
+            return METHOD_RENAME;
+        }
+        int method = copy(source, target, true, listener);
+        if (!source.delete()) {
+            VLog.w(TAG, "Unable to delete %s", source.getPath());
+        }
+        return method;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean link(File source, File target) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            if (target.exists() && !target.delete()) {
+                return false;
+            }
+            Os.link(source.getPath(), target.getPath());
+            return true;
+        } catch (Exception e) {
+            // EXDEV, EPERM (protected_hardlinks) and friends: fall back to a real copy.
+            VLog.d(TAG, "Unable to link %s: %s", source.getPath(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean transfer(FileChannel in, FileChannel out, long total, ProgressListener listener) {
+        long copied = 0;
+        try {
+            while (copied < total) {
+                long n = in.transferTo(copied, Math.min(CHUNK_SIZE, total - copied), out);
+                if (n <= 0) {
+                    break;
+                }
+                copied += n;
+                if (listener != null) {
+                    listener.onProgress(copied, total);
+                }
+            }
+        } catch (IOException e) {
+            VLog.d(TAG, "transferTo failed: %s", e.getMessage());
+            return false;
+        }
+        return copied == total;
+    }
+
+    private static void copyBuffered(FileChannel in, FileChannel out, long total, ProgressListener listener) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        long copied = 0;
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                copied += out.write(buffer);
+            }
+            buffer.clear();
+            if (listener != null) {
+                listener.onProgress(copied, total);
+            }
+        }
+    }
+}
@@ -4,7 +4,9 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Parcel;
+import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 
 import java.io.BufferedOutputStream;
@@ -12,13 +14,13 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
@@ -63,6 +65,25 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Flush a directory and the entries written to it, once for all of them.
+     * Only supported since Lollipop, a no-op before.
+     */
+    public static void syncDir(File dir) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+                try {
+                    Os.fsync(fd);
+                } finally {
+                    Os.close(fd);
+                }
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
     public static boolean isSymlink(File file) throws IOException {
         if (file == null)
             throw new NullPointerException("File must not be null");
@@ -201,29 +222,7 @@ public class FileUtils {
     }
 
     public static void copyFile(File source, File target) throws IOException {
-
-        FileInputStream inputStream = null;
-        FileOutputStream outputStream = null;
-        try {
-            inputStream = new FileInputStream(source);
-            outputStream = new FileOutputStream(target);
-            FileChannel iChannel = inputStream.getChannel();
-            FileChannel oChannel = outputStream.getChannel();
-
-            ByteBuffer buffer = ByteBuffer.allocate(1024);
-            while (true) {
-                buffer.clear();
-                int r = iChannel.read(buffer);
-                if (r == -1)
-                    break;
-                buffer.limit(buffer.position());
-                buffer.position(0);
-                oChannel.write(buffer);
-            }
-        } finally {
-            closeQuietly(inputStream);
-            closeQuietly(outputStream);
-        }
+        FileCopier.copy(source, target, null);
     }
 
     public static void copyFile(String source, String target) throws IOException {
@@ -20,10 +20,25 @@ public class InstallResult implements Parcelable {
 			return new InstallResult[size];
 		}
 	};
+	/**
+	 * The failures, with the values of the matching PackageManager codes.
+	 */
+	public static final int INSTALL_FAILED_ALREADY_EXISTS = -1;
+	public static final int INSTALL_FAILED_INVALID_APK = -2;
+	public static final int INSTALL_FAILED_INVALID_URI = -3;
+	public static final int INSTALL_FAILED_VERSION_DOWNGRADE = -25;
+	public static final int INSTALL_FAILED_NO_CERTIFICATES = -103;
+	public static final int INSTALL_FAILED_INTERNAL_ERROR = -110;
+	public static final int INSTALL_FAILED_NO_MATCHING_ABIS = -113;
+
 	public boolean isSuccess;
 	public boolean isUpdate;
 	public String packageName;
 	public String error;
+	/**
+	 * One of the INSTALL_FAILED_* codes if the install failed.
+	 */
+	public int errorCode;
 
 	public InstallResult() {
 	}
@@ -33,11 +48,17 @@ public class InstallResult implements Parcelable {
 		this.isUpdate = in.readByte() != 0;
 		this.packageName = in.readString();
 		this.error = in.readString();
+		this.errorCode = in.readInt();
 	}
 
 	public static InstallResult makeFailure(String error) {
+		return makeFailure(INSTALL_FAILED_INTERNAL_ERROR, error);
+	}
+
+	public static InstallResult makeFailure(int errorCode, String error) {
 		InstallResult res = new InstallResult();
 		res.error = error;
+		res.errorCode = errorCode;
 		return res;
 	}
 
@@ -47,6 +68,7 @@ public class InstallResult implements Parcelable {
 		dest.writeByte((byte) (isUpdate ? 1 : 0));
 		dest.writeString(packageName);
 		dest.writeString(error);
+		dest.writeInt(errorCode);
 	}
 
 	@Override
@@ -61,6 +83,7 @@ public class InstallResult implements Parcelable {
 				", isUpdate=" + isUpdate +
 				", packageName='" + packageName + '\'' +
 				", error='" + error + '\'' +
+				", errorCode=" + errorCode +
 				'}';
 	}
 }
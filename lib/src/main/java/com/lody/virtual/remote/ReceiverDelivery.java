@@ -0,0 +1,54 @@
+package com.lody.virtual.remote;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One static receiver call of a batch sent to a guest process.
+ */
+public class ReceiverDelivery implements Parcelable {
+    public static final Creator<ReceiverDelivery> CREATOR = new Creator<ReceiverDelivery>() {
+        @Override
+        public ReceiverDelivery createFromParcel(Parcel source) {
+            return new ReceiverDelivery(source);
+        }
+
+        @Override
+        public ReceiverDelivery[] newArray(int size) {
+            return new ReceiverDelivery[size];
+        }
+    };
+    public String processName;
+    public ComponentName component;
+    public Intent intent;
+    public PendingResultData resultData;
+
+    public ReceiverDelivery(String processName, ComponentName component, Intent intent, PendingResultData resultData) {
+        this.processName = processName;
+        this.component = component;
+        this.intent = intent;
+        this.resultData = resultData;
+    }
+
+    protected ReceiverDelivery(Parcel in) {
+        this.processName = in.readString();
+        this.component = in.readParcelable(ComponentName.class.getClassLoader());
+        this.intent = in.readParcelable(Intent.class.getClassLoader());
+        this.resultData = in.readParcelable(PendingResultData.class.getClassLoader());
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(this.processName);
+        dest.writeParcelable(this.component, flags);
+        dest.writeParcelable(this.intent, flags);
+        dest.writeParcelable(this.resultData, flags);
+    }
+}
@@ -0,0 +1,56 @@
+package com.lody.virtual.remote.vloc;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.List;
+
+/**
+ * The fake location seen by one package, with the global values already
+ * applied when the package uses them.
+ */
+public class VLocConfig implements Parcelable {
+
+    public int mode;
+    public VCell cell;
+    public List<VCell> allCell;
+    public List<VCell> neighboringCell;
+    public VLocation location;
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(this.mode);
+        dest.writeParcelable(this.cell, flags);
+        dest.writeTypedList(this.allCell);
+        dest.writeTypedList(this.neighboringCell);
+        dest.writeParcelable(this.location, flags);
+    }
+
+    public VLocConfig() {
+    }
+
+    public VLocConfig(Parcel in) {
+        this.mode = in.readInt();
+        this.cell = in.readParcelable(VCell.class.getClassLoader());
+        this.allCell = in.createTypedArrayList(VCell.CREATOR);
+        this.neighboringCell = in.createTypedArrayList(VCell.CREATOR);
+        this.location = in.readParcelable(VLocation.class.getClassLoader());
+    }
+
+    public static final Parcelable.Creator<VLocConfig> CREATOR = new Parcelable.Creator<VLocConfig>() {
+        @Override
+        public VLocConfig createFromParcel(Parcel source) {
+            return new VLocConfig(source);
+        }
+
+        @Override
+        public VLocConfig[] newArray(int size) {
+            return new VLocConfig[size];
+        }
+    };
+}
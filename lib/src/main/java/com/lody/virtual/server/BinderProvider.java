@@ -1,8 +1,11 @@
 package com.lody.virtual.server;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
@@ -13,6 +16,7 @@ import android.os.RemoteException;
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.ipc.ServiceManagerNative;
 import com.lody.virtual.client.stub.DaemonService;
+import com.lody.virtual.helper.PersistenceLayer;
 import com.lody.virtual.helper.compat.BundleCompat;
 import com.lody.virtual.server.accounts.VAccountManagerService;
 import com.lody.virtual.server.am.BroadcastSystem;
@@ -60,9 +64,24 @@ public final class BinderProvider extends ContentProvider {
         addService(ServiceManagerNative.VS, VirtualStorageService.get());
         addService(ServiceManagerNative.DEVICE, VDeviceManagerService.get());
         addService(ServiceManagerNative.VIRTUAL_LOC, VirtualLocationService.get());
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                PersistenceLayer.flushAll();
+            }
+        }, new IntentFilter(Intent.ACTION_SHUTDOWN));
         return true;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            // We may be killed from now on, don't lose the pending saves.
+            PersistenceLayer.flushAll();
+        }
+    }
+
 
     private void addService(String name, IBinder service) {
         ServiceCache.addService(name, service);
@@ -29,6 +29,7 @@ import android.util.SparseArray;
 import android.util.Xml;
 
 import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.helper.PersistenceLayer;
 import com.lody.virtual.helper.compat.AccountManagerCompat;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VBinder;
@@ -40,18 +41,14 @@ import com.lody.virtual.server.pm.VPackageManagerService;
 
 import org.xmlpull.v1.XmlPullParser;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicReference;
 
 import mirror.com.android.internal.R_Hide;
@@ -67,13 +64,90 @@ public class VAccountManagerService extends IAccountManager.Stub {
     private static final AtomicReference<VAccountManagerService> sInstance = new AtomicReference<>();
     private static final long CHECK_IN_TIME = 30 * 24 * 60 * 1000L;
     private static final String TAG = VAccountManagerService.class.getSimpleName();
-    private final SparseArray<List<VAccount>> accountsByUserId = new SparseArray<>();
-    private final LinkedList<AuthTokenRecord> authTokenRecords = new LinkedList<>();
+    private static final int DELTA_PUT_ACCOUNT = 0;
+    private static final int DELTA_REMOVE_ACCOUNT = 1;
+    private static final int DELTA_CHECK_IN_TIME = 2;
+
+    /**
+     * The accounts of each user by type and name, in the order they were added.
+     */
+    private final SparseArray<Map<Account, VAccount>> accountsByUserId = new SparseArray<>();
+    /**
+     * The custom tokens by user, account, token type and package, guarded by itself.
+     */
+    private final Map<AuthTokenRecord, AuthTokenRecord> authTokenRecords = new HashMap<>();
+    /**
+     * The same records, the first one to expire first.
+     */
+    private final TreeSet<AuthTokenRecord> authTokensByExpiry = new TreeSet<>(new Comparator<AuthTokenRecord>() {
+        @Override
+        public int compare(AuthTokenRecord a, AuthTokenRecord b) {
+            if (a.expiryEpochMillis != b.expiryEpochMillis) {
+                return a.expiryEpochMillis < b.expiryEpochMillis ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    });
+    private long mTokenSequence;
     private final LinkedHashMap<String, Session> mSessions = new LinkedHashMap<>();
     private final AuthenticatorCache cache = new AuthenticatorCache();
     private Context mContext = VirtualCore.get().getContext();
     private long lastAccountChangeTime = 0;
 
+    /**
+     * Each change of an account is journaled as the whole account, the file
+     * keeps the format of the older versions (whose magic is the version 1).
+     */
+    private final PersistenceLayer mPersistenceLayer = new PersistenceLayer(VEnvironment.getAccountConfigFile()) {
+        @Override
+        public int getCurrentVersion() {
+            return 1;
+        }
+
+        @Override
+        public void writePersistenceData(Parcel p) {
+            synchronized (accountsByUserId) {
+                int count = 0;
+                for (int i = 0; i < accountsByUserId.size(); i++) {
+                    count += accountsByUserId.valueAt(i).size();
+                }
+                p.writeInt(count);
+                for (int i = 0; i < accountsByUserId.size(); i++) {
+                    for (VAccount account : accountsByUserId.valueAt(i).values()) {
+                        account.writeToParcel(p, 0);
+                    }
+                }
+                p.writeLong(lastAccountChangeTime);
+            }
+        }
+
+        @Override
+        public void readPersistenceData(Parcel p) {
+            accountsByUserId.clear();
+            int size = p.readInt();
+            while (size-- > 0) {
+                addAccountLocked(new VAccount(p));
+            }
+            lastAccountChangeTime = p.readLong();
+        }
+
+        @Override
+        public void readDelta(Parcel p) {
+            switch (p.readInt()) {
+                case DELTA_PUT_ACCOUNT:
+                    addAccountLocked(new VAccount(p));
+                    break;
+                case DELTA_REMOVE_ACCOUNT:
+                    int userId = p.readInt();
+                    removeAccountLocked(userId, new Account(p.readString(), p.readString()));
+                    break;
+                case DELTA_CHECK_IN_TIME:
+                    lastAccountChangeTime = p.readLong();
+                    break;
+            }
+        }
+    };
+
 
     public static VAccountManagerService get() {
         return sInstance.get();
@@ -173,11 +247,11 @@ public class VAccountManagerService extends IAccountManager.Stub {
     private List<Account> getAccountList(int userId, String type) {
         synchronized (accountsByUserId) {
             List<Account> accounts = new ArrayList<>();
-            List<VAccount> vAccounts = accountsByUserId.get(userId);
+            Map<Account, VAccount> vAccounts = accountsByUserId.get(userId);
             if (vAccounts != null) {
-                for (VAccount vAccount : vAccounts) {
-                    if (type == null || vAccount.type.equals(type)) {
-                        accounts.add(new Account(vAccount.name, vAccount.type));
+                for (Account account : vAccounts.keySet()) {
+                    if (type == null || account.type.equals(type)) {
+                        accounts.add(account);
                     }
                 }
             }
@@ -291,25 +365,19 @@ public class VAccountManagerService extends IAccountManager.Stub {
                             synchronized (accountsByUserId) {
                                 VAccount account = getAccount(userId, name, type);
                                 if (account == null) {
-                                    List<VAccount> accounts = accountsByUserId.get(userId);
-                                    if (accounts == null) {
-                                        accounts = new ArrayList<>();
-                                        accountsByUserId.put(userId, accounts);
-                                    }
                                     account = new VAccount(userId, new Account(name, type));
-                                    accounts.add(account);
-                                    saveAllAccounts();
+                                    addAccountLocked(account);
+                                    saveAccountLocked(account);
                                 }
                             }
                         }
                         long expiryMillis = result.getLong(
                                 AccountManagerCompat.KEY_CUSTOM_TOKEN_EXPIRY, 0L);
-                        if (customTokens
+                        if (customTokens && callerPkg != null
                                 && expiryMillis > System.currentTimeMillis()) {
                             AuthTokenRecord record = new AuthTokenRecord(userId, account, authTokenType, callerPkg, authToken, expiryMillis);
                             synchronized (authTokenRecords) {
-                                authTokenRecords.remove(record);
-                                authTokenRecords.add(record);
+                                putTokenRecordLocked(record);
                             }
                         }
                     }
@@ -336,13 +404,14 @@ public class VAccountManagerService extends IAccountManager.Stub {
             if (vAccount != null) {
                 vAccount.password = password;
                 vAccount.authTokens.clear();
-                saveAllAccounts();
+                saveAccountLocked(vAccount);
                 synchronized (authTokenRecords) {
-                    Iterator<AuthTokenRecord> iterator = authTokenRecords.iterator();
+                    Iterator<AuthTokenRecord> iterator = authTokenRecords.keySet().iterator();
                     while (iterator.hasNext()) {
                         AuthTokenRecord record = iterator.next();
                         if (record.userId == userId && record.account.equals(account)) {
                             iterator.remove();
+                            authTokensByExpiry.remove(record);
                         }
                     }
                 }
@@ -360,7 +429,7 @@ public class VAccountManagerService extends IAccountManager.Stub {
             if (vAccount != null) {
                 // FIXME: cancelNotification
                 vAccount.authTokens.put(authTokenType, authToken);
-                this.saveAllAccounts();
+                saveAccountLocked(vAccount);
             }
         }
     }
@@ -370,11 +439,11 @@ public class VAccountManagerService extends IAccountManager.Stub {
     public void setUserData(int userId, Account account, String key, String value) {
         if (key == null) throw new IllegalArgumentException("key is null");
         if (account == null) throw new IllegalArgumentException("account is null");
-        VAccount vAccount = getAccount(userId, account);
-        if (vAccount != null) {
-            synchronized (accountsByUserId) {
+        synchronized (accountsByUserId) {
+            VAccount vAccount = getAccount(userId, account);
+            if (vAccount != null) {
                 vAccount.userDatas.put(key, value);
-                saveAllAccounts();
+                saveAccountLocked(vAccount);
             }
         }
     }
@@ -706,22 +775,14 @@ public class VAccountManagerService extends IAccountManager.Stub {
     }
 
     private boolean removeAccountInternal(int userId, Account account) {
-        List<VAccount> accounts = accountsByUserId.get(userId);
-        if (accounts != null) {
-            Iterator<VAccount> iterator = accounts.iterator();
-            while (iterator.hasNext()) {
-                VAccount vAccount = iterator.next();
-                if (userId == vAccount.userId
-                        && TextUtils.equals(vAccount.name, account.name)
-                        && TextUtils.equals(account.type, vAccount.type)) {
-                    iterator.remove();
-                    saveAllAccounts();
-                    sendAccountsChangedBroadcast(userId);
-                    return true;
-                }
+        synchronized (accountsByUserId) {
+            if (removeAccountLocked(userId, account) == null) {
+                return false;
             }
+            saveRemovalLocked(userId, account);
         }
-        return false;
+        sendAccountsChangedBroadcast(userId);
+        return true;
     }
 
 
@@ -734,7 +795,7 @@ public class VAccountManagerService extends IAccountManager.Stub {
             VAccount vAccount = getAccount(userId, account);
             if (vAccount != null) {
                 vAccount.lastAuthenticatedTime = System.currentTimeMillis();
-                saveAllAccounts();
+                saveAccountLocked(vAccount);
                 return true;
             }
             return false;
@@ -746,26 +807,22 @@ public class VAccountManagerService extends IAccountManager.Stub {
         if (accountType == null) throw new IllegalArgumentException("accountType is null");
         if (authToken == null) throw new IllegalArgumentException("authToken is null");
         synchronized (accountsByUserId) {
-            List<VAccount> accounts = accountsByUserId.get(userId);
+            Map<Account, VAccount> accounts = accountsByUserId.get(userId);
             if (accounts != null) {
-                boolean changed = false;
-                for (VAccount account : accounts) {
-                    if (account.type.equals(accountType)) {
-                        account.authTokens.values().remove(authToken);
-                        changed = true;
+                for (VAccount account : accounts.values()) {
+                    if (account.type.equals(accountType) && account.authTokens.values().remove(authToken)) {
+                        saveAccountLocked(account);
                     }
                 }
-                if (changed) {
-                    saveAllAccounts();
-                }
             }
             synchronized (authTokenRecords) {
-                Iterator<AuthTokenRecord> iterator = authTokenRecords.iterator();
+                Iterator<AuthTokenRecord> iterator = authTokenRecords.keySet().iterator();
                 while (iterator.hasNext()) {
                     AuthTokenRecord record = iterator.next();
-                    if (record.userId == userId && record.authTokenType.equals(accountType)
+                    if (record.userId == userId && record.account.type.equals(accountType)
                             && record.authToken.equals(authToken)) {
                         iterator.remove();
+                        authTokensByExpiry.remove(record);
                     }
                 }
             }
@@ -776,18 +833,29 @@ public class VAccountManagerService extends IAccountManager.Stub {
     private Account renameAccountInternal(int userId, Account accountToRename, String newName) {
         // TODO: Cancel Notification
         synchronized (accountsByUserId) {
-            VAccount vAccount = getAccount(userId, accountToRename);
+            VAccount vAccount = removeAccountLocked(userId, accountToRename);
             if (vAccount != null) {
+                saveRemovalLocked(userId, accountToRename);
                 vAccount.previousName = vAccount.name;
                 vAccount.name = newName;
-                saveAllAccounts();
+                addAccountLocked(vAccount);
+                saveAccountLocked(vAccount);
                 Account newAccount = new Account(vAccount.name, vAccount.type);
                 synchronized (authTokenRecords) {
-                    for (AuthTokenRecord record : authTokenRecords) {
+                    List<AuthTokenRecord> renamed = new ArrayList<>();
+                    Iterator<AuthTokenRecord> iterator = authTokenRecords.keySet().iterator();
+                    while (iterator.hasNext()) {
+                        AuthTokenRecord record = iterator.next();
                         if (record.userId == userId && record.account.equals(accountToRename)) {
+                            // rehashed under the new account
+                            iterator.remove();
                             record.account = newAccount;
+                            renamed.add(record);
                         }
                     }
+                    for (AuthTokenRecord record : renamed) {
+                        authTokenRecords.put(record, record);
+                    }
                 }
                 sendAccountsChangedBroadcast(userId);
                 return newAccount;
@@ -811,21 +879,37 @@ public class VAccountManagerService extends IAccountManager.Stub {
 
 
     private String getCustomAuthToken(int userId, Account account, String authTokenType, String packageName) {
-        AuthTokenRecord record = new AuthTokenRecord(userId, account, authTokenType, packageName);
-        String authToken = null;
-        long now = System.currentTimeMillis();
+        if (packageName == null) {
+            return null;
+        }
+        AuthTokenRecord key = new AuthTokenRecord(userId, account, authTokenType, packageName);
         synchronized (authTokenRecords) {
-            Iterator<AuthTokenRecord> iterator = authTokenRecords.iterator();
-            while (iterator.hasNext()) {
-                AuthTokenRecord one = iterator.next();
-                if (one.expiryEpochMillis > 0 && one.expiryEpochMillis < now) {
-                    iterator.remove();
-                } else if (record.equals(one)) {
-                    authToken = record.authToken;
-                }
-            }
+            evictExpiredTokensLocked(System.currentTimeMillis());
+            AuthTokenRecord record = authTokenRecords.get(key);
+            return record != null ? record.authToken : null;
+        }
+    }
+
+    /**
+     * Should guard by {@link #authTokenRecords}.
+     */
+    private void putTokenRecordLocked(AuthTokenRecord record) {
+        evictExpiredTokensLocked(System.currentTimeMillis());
+        AuthTokenRecord old = authTokenRecords.put(record, record);
+        if (old != null) {
+            authTokensByExpiry.remove(old);
+        }
+        record.sequence = ++mTokenSequence;
+        authTokensByExpiry.add(record);
+    }
+
+    /**
+     * Should guard by {@link #authTokenRecords}.
+     */
+    private void evictExpiredTokensLocked(long now) {
+        while (!authTokensByExpiry.isEmpty() && authTokensByExpiry.first().expiryEpochMillis < now) {
+            authTokenRecords.remove(authTokensByExpiry.pollFirst());
         }
-        return authToken;
     }
 
     private void onResult(IAccountManagerResponse response, Bundle result) {
@@ -854,6 +938,9 @@ public class VAccountManagerService extends IAccountManager.Stub {
             return false;
         }
         synchronized (accountsByUserId) {
+            if (getAccount(userId, account) != null) {
+                return false;
+            }
             VAccount vAccount = new VAccount(userId, account);
             vAccount.password = password;
             // convert the [Bundle] to [Map<String, String>]
@@ -865,13 +952,8 @@ public class VAccountManagerService extends IAccountManager.Stub {
                     }
                 }
             }
-            List<VAccount> accounts = accountsByUserId.get(userId);
-            if (accounts == null) {
-                accounts = new ArrayList<>();
-                accountsByUserId.put(userId, accounts);
-            }
-            accounts.add(vAccount);
-            saveAllAccounts();
+            addAccountLocked(vAccount);
+            saveAccountLocked(vAccount);
             sendAccountsChangedBroadcast(vAccount.userId);
             return true;
         }
@@ -887,101 +969,99 @@ public class VAccountManagerService extends IAccountManager.Stub {
         long time = System.currentTimeMillis();
         if (Math.abs(time - lastAccountChangeTime) > CHECK_IN_TIME) {
             lastAccountChangeTime = time;
-            saveAllAccounts();
+            saveCheckInTime(time);
             Intent intent = new Intent("android.server.checkin.CHECKIN_NOW");
             VActivityManagerService.get().sendBroadcastAsUser(intent, new VUserHandle(userId));
         }
     }
 
     /**
-     * Serializing all accounts
+     * Should guard by {@link #accountsByUserId}.
      */
-    private void saveAllAccounts() {
-        File accountFile = VEnvironment.getAccountConfigFile();
-        Parcel dest = Parcel.obtain();
-        try {
-            dest.writeInt(1);
-            List<VAccount> accounts = new ArrayList<>();
-            for (int i = 0; i < this.accountsByUserId.size(); i++) {
-                List<VAccount> list = this.accountsByUserId.valueAt(i);
-                if (list != null) {
-                    accounts.addAll(list);
-                }
+    private void saveAccountLocked(final VAccount account) {
+        mPersistenceLayer.appendDelta(new PersistenceLayer.Delta() {
+            @Override
+            public void writeToParcel(Parcel p) {
+                p.writeInt(DELTA_PUT_ACCOUNT);
+                account.writeToParcel(p, 0);
+            }
+        });
+    }
+
+    /**
+     * Should guard by {@link #accountsByUserId}.
+     */
+    private void saveRemovalLocked(final int userId, final Account account) {
+        mPersistenceLayer.appendDelta(new PersistenceLayer.Delta() {
+            @Override
+            public void writeToParcel(Parcel p) {
+                p.writeInt(DELTA_REMOVE_ACCOUNT);
+                p.writeInt(userId);
+                p.writeString(account.name);
+                p.writeString(account.type);
             }
-            dest.writeInt(accounts.size());
-            for (VAccount account : accounts) {
-                account.writeToParcel(dest, 0);
+        });
+    }
+
+    private void saveCheckInTime(final long time) {
+        mPersistenceLayer.appendDelta(new PersistenceLayer.Delta() {
+            @Override
+            public void writeToParcel(Parcel p) {
+                p.writeInt(DELTA_CHECK_IN_TIME);
+                p.writeLong(time);
             }
-            dest.writeLong(lastAccountChangeTime);
-            FileOutputStream fileOutputStream = new FileOutputStream(accountFile);
-            fileOutputStream.write(dest.marshall());
-            fileOutputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        dest.recycle();
+        });
     }
 
     /**
-     * Read all accounts from file.
+     * Read all accounts from file, and drop the ones whose authenticator is gone.
      */
     private void readAllAccounts() {
-        File accountFile = VEnvironment.getAccountConfigFile();
         refreshAuthenticatorCache(null);
-        if (accountFile.exists()) {
-            accountsByUserId.clear();
-            Parcel dest = Parcel.obtain();
-            try {
-                FileInputStream is = new FileInputStream(accountFile);
-                byte[] bytes = new byte[(int) accountFile.length()];
-                int readLength = is.read(bytes);
-                is.close();
-                if (readLength != bytes.length) {
-                    throw new IOException(String.format(Locale.ENGLISH, "Expect length %d, but got %d.", bytes.length, readLength));
-                }
-                dest.unmarshall(bytes, 0, bytes.length);
-                dest.setDataPosition(0);
-                dest.readInt(); // skip the magic
-                int size = dest.readInt(); // the VAccount's size we need to read
-                boolean invalid = false;
-                while (size-- > 0) {
-                    VAccount account = new VAccount(dest);
-                    VLog.d(TAG, "Reading account : " + account.type);
-                    AuthenticatorInfo info = cache.authenticators.get(account.type);
-                    if (info != null) {
-                        List<VAccount> accounts = accountsByUserId.get(account.userId);
-                        if (accounts == null) {
-                            accounts = new ArrayList<>();
-                            accountsByUserId.put(account.userId, accounts);
-                        }
-                        accounts.add(account);
-                    } else {
+        mPersistenceLayer.read();
+        boolean invalid = false;
+        synchronized (accountsByUserId) {
+            for (int i = 0; i < accountsByUserId.size(); i++) {
+                Iterator<VAccount> iterator = accountsByUserId.valueAt(i).values().iterator();
+                while (iterator.hasNext()) {
+                    if (cache.authenticators.get(iterator.next().type) == null) {
+                        iterator.remove();
                         invalid = true;
                     }
                 }
-                lastAccountChangeTime = dest.readLong();
-                if (invalid) {
-                    saveAllAccounts();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                dest.recycle();
             }
         }
+        if (invalid) {
+            mPersistenceLayer.scheduleSave();
+        }
     }
 
-
     private VAccount getAccount(int userId, String accountName, String accountType) {
-        List<VAccount> accounts = accountsByUserId.get(userId);
-        if (accounts != null) {
-            for (VAccount account : accounts) {
-                if (TextUtils.equals(account.name, accountName) && TextUtils.equals(account.type, accountType)) {
-                    return account;
-                }
-            }
+        Map<Account, VAccount> accounts = accountsByUserId.get(userId);
+        if (accounts == null || TextUtils.isEmpty(accountName) || TextUtils.isEmpty(accountType)) {
+            return null;
+        }
+        return accounts.get(new Account(accountName, accountType));
+    }
+
+    /**
+     * Should guard by {@link #accountsByUserId}.
+     */
+    private void addAccountLocked(VAccount account) {
+        Map<Account, VAccount> accounts = accountsByUserId.get(account.userId);
+        if (accounts == null) {
+            accounts = new LinkedHashMap<>();
+            accountsByUserId.put(account.userId, accounts);
         }
-        return null;
+        accounts.put(new Account(account.name, account.type), account);
+    }
+
+    /**
+     * Should guard by {@link #accountsByUserId}.
+     */
+    private VAccount removeAccountLocked(int userId, Account account) {
+        Map<Account, VAccount> accounts = accountsByUserId.get(userId);
+        return accounts != null ? accounts.remove(account) : null;
     }
 
 
@@ -1028,6 +1108,10 @@ public class VAccountManagerService extends IAccountManager.Stub {
         public Account account;
         public long expiryEpochMillis;
         public String authToken;
+        /**
+         * Orders the records expiring at the same time.
+         */
+        long sequence;
         private String authTokenType;
         private String packageName;
 
@@ -1222,7 +1306,7 @@ public class VAccountManagerService extends IAccountManager.Stub {
                         VAccount account = getAccount(mUserId, mAccountName, mAuthenticatorInfo.desc.type);
                         if (needUpdate && account != null) {
                             account.lastAuthenticatedTime = System.currentTimeMillis();
-                            saveAllAccounts();
+                            saveAccountLocked(account);
                         }
                         if (mAuthDetailsRequired) {
                             long lastAuthenticatedTime = -1;
@@ -9,9 +9,13 @@ import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.env.VirtualRuntime;
@@ -22,9 +26,11 @@ import com.lody.virtual.helper.utils.ComponentUtils;
 import com.lody.virtual.remote.AppTaskInfo;
 import com.lody.virtual.remote.StubActivityRecord;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import mirror.android.app.ActivityManagerNative;
 import mirror.android.app.ActivityThread;
@@ -42,6 +48,11 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
 
 /* package */ class ActivityStack {
 
+    /**
+     * Min time between two checks of our tasks against the recent tasks of the system.
+     */
+    private static final long RECONCILE_INTERVAL = 5 * 1000;
+
     private final ActivityManager mAM;
     private final VActivityManagerService mService;
 
@@ -49,11 +60,37 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
      * [Key] = TaskId [Value] = TaskRecord
      */
     private final SparseArray<TaskRecord> mHistory = new SparseArray<>();
+    /**
+     * The activities of the tasks in {@link #mHistory} by token. The token queries
+     * read it without any lock.
+     */
+    private final Map<IBinder, ActivityRecord> mActivitiesByToken = new ConcurrentHashMap<>();
+    /**
+     * The task of lowest id of each user and affinity, and of each user and root
+     * component, guarded by mHistory.
+     */
+    private final Map<String, TaskRecord> mTasksByAffinity = new HashMap<>();
+    private final Map<String, TaskRecord> mTasksByRoot = new HashMap<>();
+
+    private final Handler mReconcileHandler;
+    // guarded by mHistory
+    private boolean mReconcilePending;
+    private long mLastReconcileTime;
+
+    private final Runnable mReconcile = new Runnable() {
+        @Override
+        public void run() {
+            reconcileTasks();
+        }
+    };
 
 
     ActivityStack(VActivityManagerService mService) {
         this.mService = mService;
         mAM = (ActivityManager) VirtualCore.get().getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        HandlerThread thread = new HandlerThread("va-tasks");
+        thread.start();
+        mReconcileHandler = new Handler(thread.getLooper());
     }
 
     private static void removeFlags(Intent intent, int flags) {
@@ -92,43 +129,109 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
     private TaskRecord findTaskByAffinityLocked(int userId, String affinity) {
-        for (int i = 0; i < this.mHistory.size(); i++) {
-            TaskRecord r = this.mHistory.valueAt(i);
-            if (userId == r.userId && affinity.equals(r.affinity)) {
-                return r;
+        synchronized (mHistory) {
+            return mTasksByAffinity.get(affinityKey(userId, affinity));
+        }
+    }
+
+    /**
+     * The indexes may still hold a task whose activities are all gone, or whose
+     * top activity lives in a dead process, until the next reconcile. Such a task
+     * is dropped so that the launch starts a new one instead of going nowhere.
+     */
+    private TaskRecord checkReuseTaskLocked(TaskRecord task) {
+        if (task == null) {
+            return null;
+        }
+        ActivityRecord top = topActivityInTask(task);
+        if (top != null && top.process != null && top.process.client != null
+                && top.process.client.asBinder().isBinderAlive()) {
+            return task;
+        }
+        synchronized (mHistory) {
+            if (mHistory.get(task.taskId) == task) {
+                removeTaskLocked(task);
             }
         }
         return null;
     }
 
     private TaskRecord findTaskByIntentLocked(int userId, Intent intent) {
-        for (int i = 0; i < this.mHistory.size(); i++) {
-            TaskRecord r = this.mHistory.valueAt(i);
-            if (userId == r.userId && r.taskRoot != null && intent.getComponent().equals(r.taskRoot.getComponent())) {
-                return r;
-            }
+        synchronized (mHistory) {
+            return mTasksByRoot.get(rootKey(userId, intent.getComponent()));
         }
-        return null;
     }
 
     private ActivityRecord findActivityByToken(int userId, IBinder token) {
-        ActivityRecord target = null;
-        if (token != null) {
-            for (int i = 0; i < this.mHistory.size(); i++) {
-                TaskRecord task = this.mHistory.valueAt(i);
-                if (task.userId != userId) {
-                    continue;
+        if (token == null) {
+            return null;
+        }
+        ActivityRecord r = mActivitiesByToken.get(token);
+        return r != null && r.task.userId == userId ? r : null;
+    }
+
+    private static String affinityKey(int userId, String affinity) {
+        return affinity != null ? userId + "|" + affinity : null;
+    }
+
+    private static String rootKey(int userId, ComponentName component) {
+        return component != null ? userId + "|" + component.flattenToShortString() : null;
+    }
+
+    private static String rootKey(TaskRecord task) {
+        return task.taskRoot != null ? rootKey(task.userId, task.taskRoot.getComponent()) : null;
+    }
+
+    /**
+     * Should guard by {@link #mHistory}.
+     */
+    private void addTaskLocked(TaskRecord task) {
+        mHistory.put(task.taskId, task);
+        indexTaskLocked(mTasksByAffinity, affinityKey(task.userId, task.affinity), task);
+        indexTaskLocked(mTasksByRoot, rootKey(task), task);
+    }
+
+    /**
+     * Should guard by {@link #mHistory}.
+     */
+    private void removeTaskLocked(TaskRecord task) {
+        mHistory.remove(task.taskId);
+        synchronized (task.activities) {
+            for (ActivityRecord r : task.activities) {
+                mActivitiesByToken.remove(r.token);
+            }
+        }
+        String affinityKey = affinityKey(task.userId, task.affinity);
+        if (affinityKey != null && mTasksByAffinity.get(affinityKey) == task) {
+            mTasksByAffinity.remove(affinityKey);
+            for (int i = 0; i < mHistory.size(); i++) {
+                TaskRecord other = mHistory.valueAt(i);
+                if (affinityKey.equals(affinityKey(other.userId, other.affinity))) {
+                    indexTaskLocked(mTasksByAffinity, affinityKey, other);
                 }
-                synchronized (task.activities) {
-                    for (ActivityRecord r : task.activities) {
-                        if (r.token == token) {
-                            target = r;
-                        }
-                    }
+            }
+        }
+        String rootKey = rootKey(task);
+        if (rootKey != null && mTasksByRoot.get(rootKey) == task) {
+            mTasksByRoot.remove(rootKey);
+            for (int i = 0; i < mHistory.size(); i++) {
+                TaskRecord other = mHistory.valueAt(i);
+                if (rootKey.equals(rootKey(other))) {
+                    indexTaskLocked(mTasksByRoot, rootKey, other);
                 }
             }
         }
-        return target;
+    }
+
+    private static void indexTaskLocked(Map<String, TaskRecord> index, String key, TaskRecord task) {
+        if (key == null) {
+            return;
+        }
+        TaskRecord current = index.get(key);
+        // the lowest id wins, as when the history was scanned in order
+        if (current == null || task.taskId < current.taskId) {
+            index.put(key, task);
+        }
     }
 
     private boolean markTaskByClearTarget(TaskRecord task, ClearTarget clearTarget, ComponentName component) {
@@ -177,33 +280,53 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
      * will be invoked, all data struct about the task in AMS are released,
      * while the client's process is still alive. So remove related data in VA
      * as well. A new TaskRecord will be recreated in `onActivityCreated`
+     * <p>
+     * Nothing tells us about it, so the tasks are checked against the recent
+     * tasks of the system in the background, at most every {@link #RECONCILE_INTERVAL}
+     * and only after something happened to them.
      */
-    private void optimizeTasksLocked() {
+    private void scheduleReconcile() {
+        synchronized (mHistory) {
+            if (mReconcilePending) {
+                return;
+            }
+            mReconcilePending = true;
+            long delay = mLastReconcileTime + RECONCILE_INTERVAL - SystemClock.uptimeMillis();
+            mReconcileHandler.postDelayed(mReconcile, Math.max(delay, 0));
+        }
+    }
+
+    private void reconcileTasks() {
+        long start = SystemClock.uptimeMillis();
+        synchronized (mHistory) {
+            mReconcilePending = false;
+            mLastReconcileTime = start;
+            if (mHistory.size() == 0) {
+                return;
+            }
+        }
         // noinspection deprecation
-        ArrayList<ActivityManager.RecentTaskInfo> recentTask = new ArrayList<>(mAM.getRecentTasks(Integer.MAX_VALUE,
-                ActivityManager.RECENT_WITH_EXCLUDED | ActivityManager.RECENT_IGNORE_UNAVAILABLE));
-        int N = mHistory.size();
-        while (N-- > 0) {
-            TaskRecord task = mHistory.valueAt(N);
-            ListIterator<ActivityManager.RecentTaskInfo> iterator = recentTask.listIterator();
-            boolean taskAlive = false;
-            while (iterator.hasNext()) {
-                ActivityManager.RecentTaskInfo info = iterator.next();
-                if (info.id == task.taskId) {
-                    taskAlive = true;
-                    iterator.remove();
-                    break;
+        List<ActivityManager.RecentTaskInfo> recentTasks = mAM.getRecentTasks(Integer.MAX_VALUE,
+                ActivityManager.RECENT_WITH_EXCLUDED | ActivityManager.RECENT_IGNORE_UNAVAILABLE);
+        SparseBooleanArray alive = new SparseBooleanArray(recentTasks.size());
+        for (ActivityManager.RecentTaskInfo info : recentTasks) {
+            alive.put(info.id, true);
+        }
+        synchronized (mHistory) {
+            int N = mHistory.size();
+            while (N-- > 0) {
+                TaskRecord task = mHistory.valueAt(N);
+                // a task created since the query is not in it yet
+                if (task.createTime < start && !alive.get(task.taskId)) {
+                    removeTaskLocked(task);
                 }
             }
-            if (!taskAlive) {
-                mHistory.removeAt(N);
-            }
         }
     }
 
 
     int startActivitiesLocked(int userId, Intent[] intents, ActivityInfo[] infos, String[] resolvedTypes, IBinder token, Bundle options) {
-        optimizeTasksLocked();
+        scheduleReconcile();
         ReuseTarget reuseTarget = ReuseTarget.CURRENT;
         Intent intent = intents[0];
         ActivityInfo info = infos[0];
@@ -244,15 +367,10 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
         } else if (reuseTarget == ReuseTarget.DOCUMENT) {
             reuseTask = findTaskByIntentLocked(userId, intent);
         }
+        reuseTask = checkReuseTaskLocked(reuseTask);
         Intent[] destIntents = startActivitiesProcess(userId, intents, infos, resultTo);
-        if (reuseTask == null) {
-            realStartActivitiesLocked(null, destIntents, resolvedTypes, options);
-        } else {
-            ActivityRecord top = topActivityInTask(reuseTask);
-            if (top != null) {
-                realStartActivitiesLocked(top.token, destIntents, resolvedTypes, options);
-            }
-        }
+        ActivityRecord top = reuseTask != null ? topActivityInTask(reuseTask) : null;
+        realStartActivitiesLocked(top != null ? top.token : null, destIntents, resolvedTypes, options);
         return 0;
     }
 
@@ -267,7 +385,7 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
 
     int startActivityLocked(int userId, Intent intent, ActivityInfo info, IBinder resultTo, Bundle options,
                             String resultWho, int requestCode) {
-        optimizeTasksLocked();
+        scheduleReconcile();
 
         Intent destIntent;
         ActivityRecord sourceRecord = findActivityByToken(userId, resultTo);
@@ -363,6 +481,7 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
             default:
                 break;
         }
+        reuseTask = checkReuseTaskLocked(reuseTask);
 
         boolean taskMarked = false;
         if (reuseTask == null) {
@@ -578,23 +697,22 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     void onActivityCreated(ProcessRecord targetApp, ComponentName component, ComponentName caller, IBinder token,
                            Intent taskRoot, String affinity, int taskId, int launchMode, int flags) {
         synchronized (mHistory) {
-            optimizeTasksLocked();
             TaskRecord task = mHistory.get(taskId);
             if (task == null) {
                 task = new TaskRecord(taskId, targetApp.userId, affinity, taskRoot);
-                mHistory.put(taskId, task);
+                addTaskLocked(task);
             }
             ActivityRecord record = new ActivityRecord(task, component, caller, token, targetApp.userId, targetApp,
                     launchMode, flags, affinity);
             synchronized (task.activities) {
                 task.activities.add(record);
             }
+            mActivitiesByToken.put(token, record);
         }
     }
 
     void onActivityResumed(int userId, IBinder token) {
         synchronized (mHistory) {
-            optimizeTasksLocked();
             ActivityRecord r = findActivityByToken(userId, token);
             if (r != null) {
                 synchronized (r.task.activities) {
@@ -606,71 +724,74 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
     ActivityRecord onActivityDestroyed(int userId, IBinder token) {
+        ActivityRecord r;
+        boolean taskEmpty = false;
         synchronized (mHistory) {
-            optimizeTasksLocked();
-            ActivityRecord r = findActivityByToken(userId, token);
+            r = findActivityByToken(userId, token);
             if (r != null) {
+                mActivitiesByToken.remove(token);
                 synchronized (r.task.activities) {
                     r.task.activities.remove(r);
-                    // We shouldn't remove task at this point,
-                    // it will be removed by optimizeTasksLocked().
+                    // We shouldn't remove task at this point, the activity may be
+                    // recreated in it. It will be removed by reconcileTasks().
+                    taskEmpty = r.task.activities.isEmpty();
                 }
             }
-            return r;
         }
+        if (taskEmpty) {
+            scheduleReconcile();
+        }
+        return r;
     }
 
     void processDied(ProcessRecord record) {
+        scheduleReconcile();
         synchronized (mHistory) {
-            optimizeTasksLocked();
             int N = mHistory.size();
             while (N-- > 0) {
                 TaskRecord task = mHistory.valueAt(N);
+                boolean removed = false;
                 synchronized (task.activities) {
                     Iterator<ActivityRecord> iterator = task.activities.iterator();
                     while (iterator.hasNext()) {
                         ActivityRecord r = iterator.next();
                         if (r.process.pid == record.pid) {
                             iterator.remove();
-                            if (task.activities.isEmpty()) {
-                                mHistory.remove(task.taskId);
-                            }
+                            mActivitiesByToken.remove(r.token);
+                            removed = true;
                         }
                     }
                 }
+                if (removed && task.activities.isEmpty()) {
+                    removeTaskLocked(task);
+                }
             }
 
         }
     }
 
     String getPackageForToken(int userId, IBinder token) {
-        synchronized (mHistory) {
-            ActivityRecord r = findActivityByToken(userId, token);
-            if (r != null) {
-                return r.component.getPackageName();
-            }
-            return null;
+        ActivityRecord r = findActivityByToken(userId, token);
+        if (r != null) {
+            return r.component.getPackageName();
         }
+        return null;
     }
 
     ComponentName getCallingActivity(int userId, IBinder token) {
-        synchronized (mHistory) {
-            ActivityRecord r = findActivityByToken(userId, token);
-            if (r != null) {
-                return r.caller != null ? r.caller : r.component;
-            }
-            return null;
+        ActivityRecord r = findActivityByToken(userId, token);
+        if (r != null) {
+            return r.caller != null ? r.caller : r.component;
         }
+        return null;
     }
 
     public String getCallingPackage(int userId, IBinder token) {
-        synchronized (mHistory) {
-            ActivityRecord r = findActivityByToken(userId, token);
-            if (r != null) {
-                return r.caller != null ? r.caller.getPackageName() : "android";
-            }
-            return "android";
+        ActivityRecord r = findActivityByToken(userId, token);
+        if (r != null) {
+            return r.caller != null ? r.caller.getPackageName() : "android";
         }
+        return "android";
     }
 
     AppTaskInfo getTaskInfo(int taskId) {
@@ -684,13 +805,11 @@ import static android.content.pm.ActivityInfo.LAUNCH_SINGLE_TOP;
     }
 
     ComponentName getActivityClassForToken(int userId, IBinder token) {
-        synchronized (mHistory) {
-            ActivityRecord r = findActivityByToken(userId, token);
-            if (r != null) {
-                return r.component;
-            }
-            return null;
+        ActivityRecord r = findActivityByToken(userId, token);
+        if (r != null) {
+            return r.component;
         }
+        return null;
     }
 
     private enum ClearTarget {
@@ -0,0 +1,413 @@
+package com.lody.virtual.server.am;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.lody.virtual.helper.collection.ArrayMap;
+import com.lody.virtual.helper.utils.ComponentUtils;
+import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.remote.PendingResultData;
+import com.lody.virtual.remote.ReceiverDelivery;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Delivers the static broadcasts to the guest processes.
+ * <p>
+ * Deliveries to the same process are coalesced into one scheduleReceivers call,
+ * each of them has to finish within {@link BroadcastSystem#BROADCAST_TIME_OUT} of
+ * being enqueued. A batch is only sent once its process is bound. Critical broadcasts
+ * (explicit, ordered, foreground, boot and the ones meant for a privileged app) are
+ * sent right away and may start their process, with at most {@link #MAX_STARTING}
+ * processes started for broadcasts at a time. The other ones are delivered to
+ * processes already running, after a short window that lets a burst coalesce, and
+ * are dropped for the processes that are not, unless the service starts processes
+ * for any broadcast.
+ */
+class BroadcastQueue {
+
+    private static final String TAG = BroadcastQueue.class.getSimpleName();
+
+    /**
+     * How long a background broadcast waits for others to the same process.
+     */
+    private static final long COALESCE_WINDOW = 100;
+    /**
+     * Max number of processes started for broadcasts and not done with them yet.
+     */
+    private static final int MAX_STARTING = 2;
+    /**
+     * Log the latencies every that many deliveries, once the queue is idle.
+     */
+    private static final int STATS_INTERVAL = 64;
+    private static final int MAX_TRACKED_ACTIONS = 64;
+    /**
+     * How often a batch checks whether its process is bound yet.
+     */
+    private static final long BIND_POLL_INTERVAL = 50;
+
+    private static final int MSG_ENQUEUE = 0;
+    private static final int MSG_FLUSH = 1;
+    private static final int MSG_STARTED = 2;
+    private static final int MSG_BATCH_DONE = 3;
+    private static final int MSG_SEND = 4;
+
+    private final BroadcastSystem mSystem;
+    private final VActivityManagerService mAMS;
+    private final QueueHandler mHandler;
+    private final Handler mStartHandler;
+    // The following are only touched on the queue thread.
+    private final ArrayMap<String, Batch> mCollecting = new ArrayMap<>();
+    private final ArrayMap<String, Batch> mStarting = new ArrayMap<>();
+    private final LinkedList<Batch> mWaiting = new LinkedList<>();
+    private int mUsedStartSlots;
+    private int mUnloggedDeliveries;
+
+    private final ArrayMap<String, LatencyStats> mStats = new ArrayMap<>();
+
+    static final class Delivery {
+        final int vuid;
+        final ActivityInfo info;
+        final Intent intent;
+        final PendingResultData result;
+        final boolean critical;
+        final long enqueueTime = SystemClock.uptimeMillis();
+        long sentTime;
+
+        Delivery(int vuid, ActivityInfo info, Intent intent, PendingResultData result, boolean critical) {
+            this.vuid = vuid;
+            this.info = info;
+            this.intent = intent;
+            this.result = result;
+            this.critical = critical;
+        }
+    }
+
+    /**
+     * Deliveries to one process.
+     */
+    static final class Batch {
+        final String key;
+        final String processName;
+        final int vuid;
+        final ActivityInfo startInfo;
+        final ArrayList<Delivery> deliveries = new ArrayList<>();
+        final long createTime = SystemClock.uptimeMillis();
+        /**
+         * Whether the batch holds a start slot.
+         */
+        boolean starting;
+        ProcessRecord process;
+        /**
+         * Deliveries not finished yet, guarded by the records of {@link BroadcastSystem}.
+         */
+        int pending;
+
+        Batch(String key, Delivery first) {
+            this.key = key;
+            this.processName = first.info.processName;
+            this.vuid = first.vuid;
+            this.startInfo = first.info;
+            deliveries.add(first);
+        }
+    }
+
+    BroadcastQueue(BroadcastSystem system, VActivityManagerService ams) {
+        mSystem = system;
+        mAMS = ams;
+        HandlerThread thread = new HandlerThread("va-broadcast");
+        thread.start();
+        mHandler = new QueueHandler(thread);
+        HandlerThread startThread = new HandlerThread("va-broadcast-start");
+        startThread.start();
+        mStartHandler = new Handler(startThread.getLooper());
+    }
+
+    /**
+     * @return whether the broadcast may start the process of its receiver.
+     */
+    static boolean isCritical(Intent intent, PendingResultData result) {
+        if (result.mOrderedHint || (intent.getFlags() & Intent.FLAG_RECEIVER_FOREGROUND) != 0) {
+            return true;
+        }
+        String action = intent.getAction();
+        return Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || "android.intent.action.LOCKED_BOOT_COMPLETED".equals(action)
+                || Intent.ACTION_PACKAGE_FIRST_LAUNCH.equals(action);
+    }
+
+    /**
+     * The queue takes over the result, it is finished if the broadcast is dropped.
+     */
+    void enqueue(Delivery delivery) {
+        mHandler.obtainMessage(MSG_ENQUEUE, delivery).sendToTarget();
+    }
+
+    void onBatchDone(Batch batch) {
+        mHandler.obtainMessage(MSG_BATCH_DONE, batch).sendToTarget();
+    }
+
+    void noteFinished(Delivery delivery, boolean timedOut) {
+        long latency = SystemClock.uptimeMillis() - delivery.sentTime;
+        synchronized (mStats) {
+            LatencyStats stats = getStatsLocked(delivery.intent.getAction());
+            LatencyStats.add(stats.receive, latency);
+            if (timedOut) {
+                stats.timeouts++;
+            }
+        }
+    }
+
+    String getStats() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (mStats) {
+            for (int i = 0; i < mStats.size(); i++) {
+                LatencyStats stats = mStats.valueAt(i);
+                sb.append(mStats.keyAt(i))
+                        .append(": queued ").append(LatencyStats.format(stats.dispatch))
+                        .append(", received ").append(LatencyStats.format(stats.receive));
+                if (stats.timeouts > 0) {
+                    sb.append(", ").append(stats.timeouts).append(" timeouts");
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private LatencyStats getStatsLocked(String action) {
+        String key = String.valueOf(action);
+        LatencyStats stats = mStats.get(key);
+        if (stats == null) {
+            if (mStats.size() >= MAX_TRACKED_ACTIONS) {
+                key = "other";
+                stats = mStats.get(key);
+            }
+            if (stats == null) {
+                stats = new LatencyStats();
+                mStats.put(key, stats);
+            }
+        }
+        return stats;
+    }
+
+    private void handleEnqueue(Delivery delivery) {
+        String key = delivery.info.processName + '|' + delivery.vuid;
+        Batch batch = mStarting.get(key);
+        if (batch != null) {
+            // The process is on its way, whatever the broadcast.
+            batch.deliveries.add(delivery);
+            return;
+        }
+        ProcessRecord r = mAMS.findProcess(delivery.info.processName, delivery.vuid);
+        if (r != null) {
+            batch = mCollecting.get(key);
+            if (batch == null) {
+                batch = new Batch(key, delivery);
+                mCollecting.put(key, batch);
+                if (!delivery.critical) {
+                    mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_FLUSH, batch), COALESCE_WINDOW);
+                }
+            } else {
+                batch.deliveries.add(delivery);
+            }
+            if (delivery.critical) {
+                mHandler.removeMessages(MSG_FLUSH, batch);
+                handleFlush(batch);
+            }
+            return;
+        }
+        boolean mayStart = delivery.critical || mAMS.isStartingProcessForAnyBroadcast();
+        if (!mayStart || !mAMS.canStartProcessForBroadcast(delivery.info)) {
+            mSystem.finishResult(delivery.result);
+            return;
+        }
+        batch = new Batch(key, delivery);
+        mStarting.put(key, batch);
+        mWaiting.add(batch);
+        startNext();
+    }
+
+    private void handleFlush(Batch batch) {
+        if (mCollecting.get(batch.key) != batch) {
+            return;
+        }
+        mCollecting.remove(batch.key);
+        ProcessRecord r = mAMS.findProcess(batch.processName, batch.vuid);
+        if (r == null) {
+            // died while collecting
+            drop(batch);
+            return;
+        }
+        sendWhenBound(batch, r);
+    }
+
+    private void startNext() {
+        while (mUsedStartSlots < MAX_STARTING && !mWaiting.isEmpty()) {
+            final Batch batch = mWaiting.removeFirst();
+            if (SystemClock.uptimeMillis() - batch.createTime > BroadcastSystem.BROADCAST_TIME_OUT) {
+                VLog.w(TAG, "Gave up starting %s for %d broadcasts", batch.processName, batch.deliveries.size());
+                mStarting.remove(batch.key);
+                drop(batch);
+                continue;
+            }
+            mUsedStartSlots++;
+            batch.starting = true;
+            mStartHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    batch.process = mAMS.startProcessForBroadcast(batch.startInfo, batch.vuid);
+                    mHandler.obtainMessage(MSG_STARTED, batch).sendToTarget();
+                }
+            });
+        }
+    }
+
+    private void handleStarted(Batch batch) {
+        if (batch.process == null) {
+            VLog.w(TAG, "Unable to start %s for %d broadcasts", batch.processName, batch.deliveries.size());
+            mStarting.remove(batch.key);
+            drop(batch);
+            releaseStartSlot(batch);
+            return;
+        }
+        sendWhenBound(batch, batch.process);
+    }
+
+    /**
+     * Keep the batch queued, still collecting if its process is starting, until
+     * the process is bound.
+     */
+    private void sendWhenBound(Batch batch, ProcessRecord r) {
+        if (r.client != null && r.appThread != null) {
+            send(batch, r);
+            return;
+        }
+        if (SystemClock.uptimeMillis() - batch.createTime > BroadcastSystem.BROADCAST_TIME_OUT) {
+            VLog.w(TAG, "%s not bound in time for %d broadcasts", batch.processName, batch.deliveries.size());
+            if (mStarting.get(batch.key) == batch) {
+                mStarting.remove(batch.key);
+            }
+            drop(batch);
+            releaseStartSlot(batch);
+            return;
+        }
+        batch.process = r;
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SEND, batch), BIND_POLL_INTERVAL);
+    }
+
+    private void send(Batch batch, ProcessRecord r) {
+        if (mStarting.get(batch.key) == batch) {
+            mStarting.remove(batch.key);
+        }
+        long now = SystemClock.uptimeMillis();
+        List<ReceiverDelivery> deliveries = new ArrayList<>(batch.deliveries.size());
+        synchronized (mStats) {
+            for (Delivery delivery : batch.deliveries) {
+                delivery.sentTime = now;
+                LatencyStats.add(getStatsLocked(delivery.intent.getAction()).dispatch, now - delivery.enqueueTime);
+                deliveries.add(new ReceiverDelivery(delivery.info.processName,
+                        ComponentUtils.toComponentName(delivery.info), delivery.intent, delivery.result));
+            }
+        }
+        mSystem.batchSent(batch);
+        try {
+            r.client.scheduleReceivers(deliveries);
+        } catch (Throwable e) {
+            mSystem.batchFailed(batch);
+        }
+    }
+
+    private void drop(Batch batch) {
+        for (Delivery delivery : batch.deliveries) {
+            mSystem.finishResult(delivery.result);
+        }
+    }
+
+    private void releaseStartSlot(Batch batch) {
+        if (batch.starting) {
+            batch.starting = false;
+            mUsedStartSlots--;
+            startNext();
+        }
+    }
+
+    private void handleBatchDone(Batch batch) {
+        releaseStartSlot(batch);
+        mUnloggedDeliveries += batch.deliveries.size();
+        if (mUnloggedDeliveries >= STATS_INTERVAL && mCollecting.isEmpty() && mStarting.isEmpty()) {
+            mUnloggedDeliveries = 0;
+            VLog.d(TAG, "Broadcast latencies:\n%s", getStats());
+        }
+    }
+
+    /**
+     * Power of two histograms, in ms, of the time spent in the queue and in the receivers.
+     */
+    private static final class LatencyStats {
+        static final int BUCKETS = 16;
+        final int[] dispatch = new int[BUCKETS];
+        final int[] receive = new int[BUCKETS];
+        int timeouts;
+
+        static void add(int[] histogram, long millis) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(millis, 0));
+            histogram[Math.min(bucket, BUCKETS - 1)]++;
+        }
+
+        static String format(int[] histogram) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] == 0) {
+                    continue;
+                }
+                if (sb.length() > 1) {
+                    sb.append(' ');
+                }
+                if (i == BUCKETS - 1) {
+                    sb.append(">=").append(1 << (i - 1));
+                } else {
+                    sb.append('<').append(1 << i);
+                }
+                sb.append(':').append(histogram[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private final class QueueHandler extends Handler {
+
+        QueueHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_ENQUEUE:
+                    handleEnqueue((Delivery) msg.obj);
+                    break;
+                case MSG_FLUSH:
+                    handleFlush((Batch) msg.obj);
+                    break;
+                case MSG_STARTED:
+                    handleStarted((Batch) msg.obj);
+                    break;
+                case MSG_BATCH_DONE:
+                    handleBatchDone((Batch) msg.obj);
+                    break;
+                case MSG_SEND: {
+                    Batch batch = (Batch) msg.obj;
+                    sendWhenBound(batch, batch.process);
+                    break;
+                }
+            }
+        }
+    }
+}
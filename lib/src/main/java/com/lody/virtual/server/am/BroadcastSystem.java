@@ -1,17 +1,23 @@
 package com.lody.virtual.server.am;
 
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
+import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.lody.virtual.client.core.VirtualCore;
+import com.lody.virtual.client.env.Constants;
 import com.lody.virtual.client.env.SpecialComponentList;
+import com.lody.virtual.client.stub.VASettings;
 import com.lody.virtual.helper.collection.ArrayMap;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.remote.PendingResultData;
@@ -26,6 +32,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import mirror.android.app.ContextImpl;
 import mirror.android.app.LoadedApkHuaWei;
@@ -45,14 +52,26 @@ public class BroadcastSystem {
     /**
      * MUST < 10000.
      */
-    private static final int BROADCAST_TIME_OUT = 8500;
+    static final int BROADCAST_TIME_OUT = 8500;
+    private static final int MSG_BATCH_TIMEOUT = 0;
+    private static final int MSG_RESULT_TIMEOUT = 1;
     private static BroadcastSystem gDefault;
 
     private final ArrayMap<String, List<BroadcastReceiver>> mReceivers = new ArrayMap<>();
     private final Map<IBinder, BroadcastRecord> mBroadcastRecords = new HashMap<>();
+    /**
+     * Dispatchers by action, or action and data spec, in multiplexing mode.
+     */
+    private final ArrayMap<String, ActionDispatcher> mDispatchers = new ArrayMap<>();
+    /**
+     * Results shared by several deliveries, by the token of each delivery.
+     * Guarded by mBroadcastRecords.
+     */
+    private final Map<IBinder, SharedResult> mSharedResults = new HashMap<>();
     private final Context mContext;
     private final StaticScheduler mScheduler;
     private final TimeoutHandler mTimeoutHandler;
+    private final BroadcastQueue mQueue;
     private final VActivityManagerService mAMS;
     private final VAppManagerService mApp;
 
@@ -62,6 +81,7 @@ public class BroadcastSystem {
         this.mAMS = ams;
         mScheduler = new StaticScheduler();
         mTimeoutHandler = new TimeoutHandler();
+        mQueue = new BroadcastQueue(this, ams);
         fuckHuaWeiVerifier();
     }
 
@@ -127,16 +147,19 @@ public class BroadcastSystem {
     }
 
     public void startApp(VPackage p) {
+        if (VASettings.MULTIPLEX_STATIC_RECEIVERS) {
+            addStaticEntries(p);
+            return;
+        }
         PackageSetting setting = (PackageSetting) p.mExtras;
-        for (VPackage.ActivityComponent receiver : p.receivers) {
+        for (VPackage.ActivityComponent receiver : p.getReceivers()) {
             ActivityInfo info = receiver.info;
             List<BroadcastReceiver> receivers = mReceivers.get(p.packageName);
             if (receivers == null) {
                 receivers = new ArrayList<>();
                 mReceivers.put(p.packageName, receivers);
             }
-            String componentAction = String.format("_VA_%s_%s", info.packageName, info.name);
-            IntentFilter componentFilter = new IntentFilter(componentAction);
+            IntentFilter componentFilter = new IntentFilter(Constants.ACTION_COMPONENT_BROADCAST);
             BroadcastReceiver r = new StaticBroadcastReceiver(setting.appId, info, componentFilter);
             mContext.registerReceiver(r, componentFilter, null, mScheduler);
             receivers.add(r);
@@ -152,17 +175,22 @@ public class BroadcastSystem {
 
 
     public void stopApp(String packageName) {
+        List<BroadcastRecord> records = new ArrayList<>();
         synchronized (mBroadcastRecords) {
             Iterator<Map.Entry<IBinder, BroadcastRecord>> iterator = mBroadcastRecords.entrySet().iterator();
             while (iterator.hasNext()) {
                 Map.Entry<IBinder, BroadcastRecord> entry = iterator.next();
                 BroadcastRecord record = entry.getValue();
                 if (record.receiverInfo.packageName.equals(packageName)) {
-                    record.pendingResult.finish();
+                    records.add(record);
                     iterator.remove();
                 }
             }
         }
+        for (BroadcastRecord record : records) {
+            finishResult(record.pendingResult);
+            onRecordFinished(record, false);
+        }
         synchronized (mReceivers) {
             List<BroadcastReceiver> receivers = mReceivers.get(packageName);
             if (receivers != null) {
@@ -172,27 +200,228 @@ public class BroadcastSystem {
             }
             mReceivers.remove(packageName);
         }
+        removeStaticEntries(packageName);
+    }
+
+    /**
+     * Index the receivers of a package, registering a dispatcher for every
+     * action (and data spec) that no other package listens to yet.
+     */
+    private void addStaticEntries(VPackage p) {
+        PackageSetting setting = (PackageSetting) p.mExtras;
+        synchronized (mDispatchers) {
+            // An update replaces the receivers of the old version.
+            removeStaticEntriesLocked(p.packageName);
+            for (VPackage.ActivityComponent receiver : p.getReceivers()) {
+                ActivityInfo info = receiver.info;
+                // the explicit broadcasts of every component share one dispatcher
+                addStaticEntryLocked(new StaticEntry(setting.appId, info,
+                        new IntentFilter(Constants.ACTION_COMPONENT_BROADCAST)));
+                for (VPackage.ActivityIntentInfo ci : receiver.intents) {
+                    IntentFilter cloneFilter = new IntentFilter(ci.filter);
+                    SpecialComponentList.protectIntentFilter(cloneFilter);
+                    addStaticEntryLocked(new StaticEntry(setting.appId, info, cloneFilter));
+                }
+            }
+        }
+    }
+
+    private void addStaticEntryLocked(StaticEntry entry) {
+        String dataKey = getDataKey(entry.filter);
+        for (int i = 0; i < entry.filter.countActions(); i++) {
+            String action = entry.filter.getAction(i);
+            String key = dataKey != null ? action + '|' + dataKey : action;
+            ActionDispatcher dispatcher = mDispatchers.get(key);
+            if (dispatcher == null) {
+                dispatcher = new ActionDispatcher(action, entry.filter);
+                mDispatchers.put(key, dispatcher);
+            }
+            dispatcher.add(entry);
+        }
+    }
+
+    private void removeStaticEntries(String packageName) {
+        synchronized (mDispatchers) {
+            removeStaticEntriesLocked(packageName);
+        }
+    }
+
+    private void removeStaticEntriesLocked(String packageName) {
+        for (int i = mDispatchers.size() - 1; i >= 0; i--) {
+            ActionDispatcher dispatcher = mDispatchers.valueAt(i);
+            if (dispatcher.remove(packageName)) {
+                mDispatchers.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Filters of the same action only share a registration if they accept the
+     * same data, an IntentFilter can't express "any data".
+     *
+     * @return null for a filter without any data spec.
+     */
+    private static String getDataKey(IntentFilter filter) {
+        if (filter.countDataTypes() == 0 && filter.countDataSchemes() == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < filter.countDataTypes(); i++) {
+            sb.append("t:").append(filter.getDataType(i)).append(';');
+        }
+        for (int i = 0; i < filter.countDataSchemes(); i++) {
+            sb.append("s:").append(filter.getDataScheme(i)).append(';');
+        }
+        for (int i = 0; i < filter.countDataSchemeSpecificParts(); i++) {
+            sb.append("ssp:").append(filter.getDataSchemeSpecificPart(i)).append(';');
+        }
+        for (int i = 0; i < filter.countDataAuthorities(); i++) {
+            IntentFilter.AuthorityEntry authority = filter.getDataAuthority(i);
+            sb.append("a:").append(authority.getHost()).append(':').append(authority.getPort()).append(';');
+        }
+        for (int i = 0; i < filter.countDataPaths(); i++) {
+            sb.append("p:").append(filter.getDataPath(i)).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Hand a static broadcast to the queue, which finishes the result if it drops it.
+     */
+    void enqueue(int vuid, ActivityInfo info, Intent intent, PendingResultData result, boolean critical) {
+        mQueue.enqueue(new BroadcastQueue.Delivery(vuid, info, intent, result, critical));
     }
 
     void broadcastFinish(PendingResultData res) {
+        BroadcastRecord record;
         synchronized (mBroadcastRecords) {
-            BroadcastRecord record = mBroadcastRecords.remove(res.mToken);
-            if (record == null) {
-                VLog.e(TAG, "Unable to find the BroadcastRecord by token: " + res.mToken);
+            record = mBroadcastRecords.remove(res.mToken);
+        }
+        if (record == null) {
+            VLog.e(TAG, "Unable to find the BroadcastRecord by token: " + res.mToken);
+        }
+        finishResult(res);
+        if (record != null) {
+            onRecordFinished(record, false);
+        }
+    }
+
+    /**
+     * Track the deliveries of a batch. Each of them times out
+     * {@link #BROADCAST_TIME_OUT} after it was enqueued, however long the
+     * receivers before it in the batch took.
+     */
+    void batchSent(BroadcastQueue.Batch batch) {
+        synchronized (mBroadcastRecords) {
+            batch.pending = batch.deliveries.size();
+            for (BroadcastQueue.Delivery delivery : batch.deliveries) {
+                mBroadcastRecords.put(delivery.result.mToken, new BroadcastRecord(delivery, batch));
+            }
+        }
+        scheduleBatchTimeout(batch);
+    }
+
+    void batchFailed(BroadcastQueue.Batch batch) {
+        cancelBatch(batch, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * Wake up at the earliest deadline of the deliveries of a batch not finished yet.
+     */
+    private void scheduleBatchTimeout(BroadcastQueue.Batch batch) {
+        long deadline = Long.MAX_VALUE;
+        synchronized (mBroadcastRecords) {
+            for (BroadcastQueue.Delivery delivery : batch.deliveries) {
+                BroadcastRecord record = mBroadcastRecords.get(delivery.result.mToken);
+                if (record != null && record.batch == batch) {
+                    deadline = Math.min(deadline, delivery.enqueueTime + BROADCAST_TIME_OUT);
+                }
+            }
+        }
+        mTimeoutHandler.removeMessages(MSG_BATCH_TIMEOUT, batch);
+        if (deadline != Long.MAX_VALUE) {
+            Message msg = mTimeoutHandler.obtainMessage(MSG_BATCH_TIMEOUT, batch);
+            mTimeoutHandler.sendMessageAtTime(msg, deadline);
+        }
+    }
+
+    /**
+     * Finish the deliveries of a batch the receivers didn't finish, and that
+     * were enqueued before the given time.
+     */
+    private void cancelBatch(BroadcastQueue.Batch batch, long enqueuedBefore, boolean timedOut) {
+        List<BroadcastRecord> records = new ArrayList<>();
+        synchronized (mBroadcastRecords) {
+            for (BroadcastQueue.Delivery delivery : batch.deliveries) {
+                IBinder token = delivery.result.mToken;
+                BroadcastRecord record = mBroadcastRecords.get(token);
+                if (record != null && record.batch == batch && delivery.enqueueTime < enqueuedBefore) {
+                    mBroadcastRecords.remove(token);
+                    records.add(record);
+                }
             }
         }
-        mTimeoutHandler.removeMessages(0, res.mToken);
-        res.finish();
+        if (timedOut && !records.isEmpty()) {
+            VLog.w(TAG, "Broadcast timeout, cancel to dispatch it to %d receivers of %s.",
+                    records.size(), batch.processName);
+        }
+        for (BroadcastRecord record : records) {
+            finishResult(record.pendingResult);
+            onRecordFinished(record, timedOut);
+        }
     }
 
-    void broadcastSent(int vuid, ActivityInfo receiverInfo, PendingResultData res) {
-        BroadcastRecord record = new BroadcastRecord(vuid, receiverInfo, res);
+    private void onRecordFinished(BroadcastRecord record, boolean timedOut) {
+        mQueue.noteFinished(record.delivery, timedOut);
+        boolean done;
         synchronized (mBroadcastRecords) {
-            mBroadcastRecords.put(res.mToken, record);
+            done = --record.batch.pending == 0;
+        }
+        // The pending timeout, if any, is left as it is, the deadlines don't move.
+        if (done) {
+            mTimeoutHandler.removeMessages(MSG_BATCH_TIMEOUT, record.batch);
+            mQueue.onBatchDone(record.batch);
         }
-        Message msg = new Message();
-        msg.obj = res.mToken;
-        mTimeoutHandler.sendMessageDelayed(msg, BROADCAST_TIME_OUT);
+    }
+
+    /**
+     * Finish the result of one delivery. A result shared by the targets of a
+     * dispatcher is only finished with the last of them, or once it timed out.
+     */
+    void finishResult(PendingResultData res) {
+        SharedResult shared;
+        synchronized (mBroadcastRecords) {
+            shared = mSharedResults.remove(res.mToken);
+            if (shared != null) {
+                if (--shared.pending > 0 || shared.finished) {
+                    return;
+                }
+                shared.finished = true;
+            }
+        }
+        if (shared != null) {
+            mTimeoutHandler.removeMessages(MSG_RESULT_TIMEOUT, shared);
+            shared.result.finish();
+        } else {
+            res.finish();
+        }
+    }
+
+    /**
+     * Finish a shared result {@link #BROADCAST_TIME_OUT} after the host received
+     * it, whatever its deliveries still pending, which are then finished alone.
+     */
+    private void expireSharedResult(SharedResult shared) {
+        int pending;
+        synchronized (mBroadcastRecords) {
+            if (shared.finished) {
+                return;
+            }
+            shared.finished = true;
+            pending = shared.pending;
+        }
+        VLog.w(TAG, "Broadcast timeout, finish it with %d receivers pending.", pending);
+        shared.result.finish();
     }
 
     private static final class StaticScheduler extends Handler {
@@ -203,22 +432,31 @@ public class BroadcastSystem {
         int vuid;
         ActivityInfo receiverInfo;
         PendingResultData pendingResult;
+        BroadcastQueue.Delivery delivery;
+        BroadcastQueue.Batch batch;
 
-        BroadcastRecord(int vuid, ActivityInfo receiverInfo, PendingResultData pendingResult) {
-            this.vuid = vuid;
-            this.receiverInfo = receiverInfo;
-            this.pendingResult = pendingResult;
+        BroadcastRecord(BroadcastQueue.Delivery delivery, BroadcastQueue.Batch batch) {
+            this.vuid = delivery.vuid;
+            this.receiverInfo = delivery.info;
+            this.pendingResult = delivery.result;
+            this.delivery = delivery;
+            this.batch = batch;
         }
     }
 
     private final class TimeoutHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
-            IBinder token = (IBinder) msg.obj;
-            BroadcastRecord r = mBroadcastRecords.remove(token);
-            if (r != null) {
-                VLog.w(TAG, "Broadcast timeout, cancel to dispatch it.");
-                r.pendingResult.finish();
+            switch (msg.what) {
+                case MSG_BATCH_TIMEOUT: {
+                    BroadcastQueue.Batch batch = (BroadcastQueue.Batch) msg.obj;
+                    cancelBatch(batch, SystemClock.uptimeMillis() - BROADCAST_TIME_OUT + 1, true);
+                    scheduleBatchTimeout(batch);
+                    break;
+                }
+                case MSG_RESULT_TIMEOUT:
+                    expireSharedResult((SharedResult) msg.obj);
+                    break;
             }
         }
     }
@@ -248,10 +486,194 @@ public class BroadcastSystem {
             if (privilegePkg != null && !info.packageName.equals(privilegePkg)) {
                 return;
             }
+            if (Constants.ACTION_COMPONENT_BROADCAST.equals(intent.getAction())
+                    && !isComponent(info, intent.<ComponentName>getParcelableExtra("_VA_|_component_"))) {
+                return;
+            }
             PendingResult result = goAsync();
             if (!mAMS.handleStaticBroadcast(appId, info, intent, new PendingResultData(result))) {
                 result.finish();
             }
         }
     }
+
+    private static final class StaticEntry {
+        final int appId;
+        final ActivityInfo info;
+        final IntentFilter filter;
+
+        StaticEntry(int appId, ActivityInfo info, IntentFilter filter) {
+            this.appId = appId;
+            this.info = info;
+            this.filter = filter;
+        }
+    }
+
+    private static final class SharedResult {
+        final BroadcastReceiver.PendingResult result;
+        int pending;
+        boolean finished;
+
+        SharedResult(BroadcastReceiver.PendingResult result) {
+            this.result = result;
+        }
+    }
+
+    private static boolean isComponent(ActivityInfo info, ComponentName component) {
+        return component != null && info.packageName.equals(component.getPackageName())
+                && info.name.equals(component.getClassName());
+    }
+
+    /**
+     * The only host registration of an action, on behalf of every static
+     * receiver listening to it. Each delivery gets its own token, and the
+     * host result is finished once all of them are.
+     * <p>
+     * The targets of an ordered broadcast are called in parallel and can't
+     * abort it for each other, as before they were not given the real result anyway.
+     */
+    private final class ActionDispatcher {
+        private final ArrayList<StaticEntry> entries = new ArrayList<>();
+        private IntentFilter hostFilter;
+        private HostReceiver receiver;
+        private volatile StaticEntry[] snapshot = new StaticEntry[0];
+
+        private ActionDispatcher(String action, IntentFilter template) {
+            hostFilter = new IntentFilter(template);
+            List<String> actions = mirror.android.content.IntentFilter.mActions.get(hostFilter);
+            actions.clear();
+            actions.add(action);
+        }
+
+        void add(StaticEntry entry) {
+            boolean changed = entries.isEmpty();
+            for (int i = 0; i < entry.filter.countCategories(); i++) {
+                String category = entry.filter.getCategory(i);
+                if (!hostFilter.hasCategory(category)) {
+                    hostFilter.addCategory(category);
+                    changed = true;
+                }
+            }
+            if (entry.filter.getPriority() > hostFilter.getPriority()) {
+                hostFilter.setPriority(entry.filter.getPriority());
+                changed = true;
+            }
+            entries.add(entry);
+            snapshot = entries.toArray(new StaticEntry[entries.size()]);
+            if (changed) {
+                // The wider filter is registered before the old one goes, so that no
+                // broadcast is lost. One sent in between may reach both of them.
+                HostReceiver old = receiver;
+                receiver = new HostReceiver(this);
+                mContext.registerReceiver(receiver, hostFilter, null, mScheduler);
+                if (old != null) {
+                    mContext.unregisterReceiver(old);
+                }
+            }
+        }
+
+        /**
+         * @return whether the dispatcher has been unregistered as it has no entry left.
+         */
+        boolean remove(String packageName) {
+            boolean removed = false;
+            Iterator<StaticEntry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().info.packageName.equals(packageName)) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+            if (!removed) {
+                return false;
+            }
+            snapshot = entries.toArray(new StaticEntry[entries.size()]);
+            if (entries.isEmpty()) {
+                mContext.unregisterReceiver(receiver);
+                receiver = null;
+                return true;
+            }
+            // The host filter may now be wider than needed, the entries are matched anyway.
+            return false;
+        }
+
+        void dispatch(HostReceiver host, Context context, Intent intent) {
+            if (mApp.isBooting()) {
+                return;
+            }
+            if ((intent.getFlags() & FLAG_RECEIVER_REGISTERED_ONLY) != 0 || host.isInitialStickyBroadcast()) {
+                return;
+            }
+            String privilegePkg = intent.getStringExtra("_VA_|_privilege_pkg_");
+            String action = intent.getAction();
+            ComponentName component = null;
+            boolean explicit = Constants.ACTION_COMPONENT_BROADCAST.equals(action);
+            if (explicit) {
+                component = intent.getParcelableExtra("_VA_|_component_");
+            }
+            // resolved once for all the entries, it may query a provider
+            String type = intent.resolveType(context.getContentResolver());
+            String scheme = intent.getScheme();
+            Uri data = intent.getData();
+            Set<String> categories = intent.getCategories();
+            List<StaticEntry> targets = null;
+            for (StaticEntry entry : snapshot) {
+                if (privilegePkg != null && !entry.info.packageName.equals(privilegePkg)) {
+                    continue;
+                }
+                if (explicit && !isComponent(entry.info, component)) {
+                    continue;
+                }
+                if (entry.filter.match(action, type, scheme, data, categories, TAG) < 0) {
+                    continue;
+                }
+                if (targets == null) {
+                    targets = new ArrayList<>();
+                }
+                targets.add(entry);
+            }
+            if (targets == null) {
+                return;
+            }
+            BroadcastReceiver.PendingResult result = host.goAsync();
+            SharedResult shared = new SharedResult(result);
+            PendingResultData guard = new PendingResultData(result);
+            guard.mToken = new Binder();
+            synchronized (mBroadcastRecords) {
+                shared.pending = 1;
+                mSharedResults.put(guard.mToken, shared);
+            }
+            mTimeoutHandler.sendMessageDelayed(
+                    mTimeoutHandler.obtainMessage(MSG_RESULT_TIMEOUT, shared), BROADCAST_TIME_OUT);
+            for (StaticEntry entry : targets) {
+                PendingResultData res = new PendingResultData(result);
+                res.mToken = new Binder();
+                synchronized (mBroadcastRecords) {
+                    shared.pending++;
+                    mSharedResults.put(res.mToken, shared);
+                }
+                if (!mAMS.handleStaticBroadcast(entry.appId, entry.info, new Intent(intent), res)) {
+                    finishResult(res);
+                }
+            }
+            // Only now may the last delivery finish the host result.
+            finishResult(guard);
+        }
+    }
+
+    /**
+     * One registration of a dispatcher, replaced whenever its filter widens.
+     */
+    private static final class HostReceiver extends BroadcastReceiver {
+        private final ActionDispatcher dispatcher;
+
+        HostReceiver(ActionDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            dispatcher.dispatch(this, context, intent);
+        }
+    }
 }
@@ -4,6 +4,7 @@ import android.content.pm.ApplicationInfo;
 import android.os.Binder;
 import android.os.ConditionVariable;
 import android.os.IInterface;
+import android.os.SystemClock;
 
 import com.lody.virtual.client.IVClient;
 import com.lody.virtual.os.VUserHandle;
@@ -13,6 +14,14 @@ import java.util.Set;
 
 final class ProcessRecord extends Binder implements Comparable<ProcessRecord> {
 
+	/**
+	 * Importance levels used to pick the process to evict, same values as
+	 * {@link android.app.ActivityManager.RunningAppProcessInfo}.
+	 */
+	static final int IMPORTANCE_FOREGROUND = 100;
+	static final int IMPORTANCE_SERVICE = 300;
+	static final int IMPORTANCE_CACHED = 400;
+
 	final ConditionVariable lock = new ConditionVariable();
 	public final ApplicationInfo info; // all about the first app in the process
 	final public String processName; // name of the process
@@ -25,6 +34,8 @@ final class ProcessRecord extends Binder implements Comparable<ProcessRecord> {
 	public int userId;
 	boolean doneExecuting;
     int priority;
+	long lastActivityTime;
+	boolean evicted;
 
 	public ProcessRecord(ApplicationInfo info, String processName, int vuid, int vpid) {
 		this.info = info;
@@ -32,6 +43,7 @@ final class ProcessRecord extends Binder implements Comparable<ProcessRecord> {
 		this.vpid = vpid;
 		this.userId = VUserHandle.getUserId(vuid);
 		this.processName = processName;
+		this.lastActivityTime = SystemClock.uptimeMillis();
 	}
 
 	@Override
@@ -0,0 +1,228 @@
+package com.lody.virtual.server.am;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.lody.virtual.client.ipc.ProviderCall;
+import com.lody.virtual.client.stub.VASettings;
+import com.lody.virtual.helper.compat.BundleCompat;
+import com.lody.virtual.helper.utils.VLog;
+
+/**
+ * Keeps a few stub processes started ahead of time.
+ * <p>
+ * A warm stub has gone through the host Application startup (VirtualCore init and
+ * hook injection) but is not attached to any app yet. Launching an app claims one,
+ * so the launch only pays for initProcess and bindApplication. The pool refills
+ * itself in the background, also when an idle stub dies, and is emptied when the
+ * system asks us to trim memory.
+ * <p>
+ * Lock order: the service, then its mUsedStubs, then mIdle. Nothing is called on
+ * the service while holding mIdle.
+ */
+class StubProcessPool implements ComponentCallbacks2 {
+
+    private static final String TAG = StubProcessPool.class.getSimpleName();
+
+    /**
+     * Don't refill the pool for this long after a trim.
+     */
+    private static final long TRIM_BACKOFF = 60 * 1000;
+    /**
+     * Delay before the first refill, to stay out of the way of the boot.
+     */
+    private static final long BOOT_DELAY = 5 * 1000;
+
+    private final VActivityManagerService mService;
+    private final SparseArray<WarmStub> mIdle = new SparseArray<>();
+    private final SparseArray<WarmStub> mWarming = new SparseArray<>();
+    private final Handler mHandler;
+    private long mTrimmedAt = -TRIM_BACKOFF;
+
+    private final Runnable mRefill = new Runnable() {
+        @Override
+        public void run() {
+            refill();
+        }
+    };
+
+    private static final class WarmStub implements IBinder.DeathRecipient {
+        final int vpid;
+        final StubProcessPool pool;
+        int pid;
+        IBinder client;
+
+        WarmStub(StubProcessPool pool, int vpid) {
+            this.pool = pool;
+            this.vpid = vpid;
+        }
+
+        @Override
+        public void binderDied() {
+            pool.onStubDied(this);
+        }
+    }
+
+    StubProcessPool(VActivityManagerService service) {
+        mService = service;
+        HandlerThread thread = new HandlerThread("va-stub-pool");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    void attach(Context context) {
+        context.registerComponentCallbacks(this);
+        mHandler.postDelayed(mRefill, BOOT_DELAY);
+    }
+
+    /**
+     * @return the vpid of an idle warm stub, or -1 if the pool is empty.
+     */
+    int claim() {
+        WarmStub stub;
+        synchronized (mIdle) {
+            if (mIdle.size() == 0) {
+                return -1;
+            }
+            stub = mIdle.valueAt(mIdle.size() - 1);
+            mIdle.removeAt(mIdle.size() - 1);
+        }
+        stub.client.unlinkToDeath(stub, 0);
+        scheduleRefill();
+        return stub.vpid;
+    }
+
+    /**
+     * @return whether the vpid is held by the pool, warm or warming up.
+     */
+    boolean isReserved(int vpid) {
+        synchronized (mIdle) {
+            return mIdle.get(vpid) != null || mWarming.get(vpid) != null;
+        }
+    }
+
+    int getIdleCount() {
+        synchronized (mIdle) {
+            return mIdle.size();
+        }
+    }
+
+    void scheduleRefill() {
+        mHandler.removeCallbacks(mRefill);
+        mHandler.post(mRefill);
+    }
+
+    /**
+     * Kill every idle stub.
+     */
+    void trim() {
+        SparseArray<WarmStub> idle;
+        synchronized (mIdle) {
+            mTrimmedAt = SystemClock.elapsedRealtime();
+            if (mIdle.size() == 0) {
+                return;
+            }
+            idle = mIdle.clone();
+            mIdle.clear();
+        }
+        for (int i = 0; i < idle.size(); i++) {
+            WarmStub stub = idle.valueAt(i);
+            stub.client.unlinkToDeath(stub, 0);
+            Process.killProcess(stub.pid);
+        }
+        VLog.i(TAG, "Trimmed %d warm stubs", idle.size());
+    }
+
+    private void refill() {
+        while (true) {
+            WarmStub stub;
+            // Same lock as the launch path, so a vpid is never picked by both.
+            synchronized (mService) {
+                synchronized (mIdle) {
+                    if (VASettings.WARM_STUB_COUNT <= 0
+                            || SystemClock.elapsedRealtime() - mTrimmedAt < TRIM_BACKOFF
+                            || mIdle.size() + mWarming.size() >= VASettings.WARM_STUB_COUNT) {
+                        return;
+                    }
+                }
+                // Takes mUsedStubs then mIdle, so not while holding mIdle. Only this
+                // thread adds stubs, the pool can't have filled up meanwhile.
+                int vpid = mService.queryColdStubProcessLocked();
+                if (vpid == -1) {
+                    return;
+                }
+                stub = new WarmStub(this, vpid);
+                synchronized (mIdle) {
+                    mWarming.put(vpid, stub);
+                }
+            }
+            boolean success = warmUp(stub);
+            synchronized (mIdle) {
+                mWarming.remove(stub.vpid);
+                if (success) {
+                    mIdle.put(stub.vpid, stub);
+                }
+            }
+            if (!success) {
+                return;
+            }
+        }
+    }
+
+    private boolean warmUp(WarmStub stub) {
+        long start = SystemClock.elapsedRealtime();
+        Bundle res = ProviderCall.call(VASettings.getStubAuthority(stub.vpid), "_VA_|_warm_up_", null, null);
+        if (res == null) {
+            return false;
+        }
+        stub.pid = res.getInt("_VA_|_pid_");
+        stub.client = BundleCompat.getBinder(res, "_VA_|_client_");
+        if (stub.client == null) {
+            return false;
+        }
+        try {
+            stub.client.linkToDeath(stub, 0);
+        } catch (RemoteException e) {
+            return false;
+        }
+        VLog.d(TAG, "Warmed up stub p%d (pid %d) in %d ms", stub.vpid, stub.pid,
+                SystemClock.elapsedRealtime() - start);
+        return true;
+    }
+
+    private void onStubDied(WarmStub stub) {
+        synchronized (mIdle) {
+            if (mIdle.get(stub.vpid) != stub) {
+                return;
+            }
+            mIdle.remove(stub.vpid);
+        }
+        VLog.w(TAG, "Warm stub p%d (pid %d) died", stub.vpid, stub.pid);
+        scheduleRefill();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trim();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
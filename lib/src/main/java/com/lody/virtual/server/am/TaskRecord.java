@@ -2,6 +2,7 @@ package com.lody.virtual.server.am;
 
 import android.content.ComponentName;
 import android.content.Intent;
+import android.os.SystemClock;
 
 import com.lody.virtual.remote.AppTaskInfo;
 
@@ -19,6 +20,7 @@ class TaskRecord {
     public int userId;
     public String affinity;
     public Intent taskRoot;
+    public final long createTime = SystemClock.uptimeMillis();
 
     TaskRecord(int taskId, int userId, String affinity, Intent intent) {
         this.taskId = taskId;
@@ -25,8 +25,10 @@ import android.os.IBinder;
 import android.os.IInterface;
 import android.os.Parcel;
 import android.os.Process;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.util.SparseIntArray;
 
 import com.lody.virtual.client.IVClient;
 import com.lody.virtual.client.core.VirtualCore;
@@ -52,6 +54,7 @@ import com.lody.virtual.remote.PendingResultData;
 import com.lody.virtual.remote.VParceledListSlice;
 import com.lody.virtual.server.IActivityManager;
 import com.lody.virtual.server.interfaces.IProcessObserver;
+import com.lody.virtual.server.pm.DexOptScheduler;
 import com.lody.virtual.server.pm.PackageCacheManager;
 import com.lody.virtual.server.pm.PackageSetting;
 import com.lody.virtual.server.pm.VAppManagerService;
@@ -59,7 +62,9 @@ import com.lody.virtual.server.pm.VPackageManagerService;
 import com.lody.virtual.server.secondary.BinderDelegateService;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -80,11 +85,23 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
     private static final AtomicReference<VActivityManagerService> sService = new AtomicReference<>();
     private static final String TAG = VActivityManagerService.class.getSimpleName();
+    /**
+     * Evict processes when fewer stubs than this are free.
+     */
+    private static final int MIN_FREE_STUBS = 3;
     private final SparseArray<ProcessRecord> mPidsSelfLocked = new SparseArray<ProcessRecord>();
     private final ActivityStack mMainStack = new ActivityStack(this);
     private final Set<ServiceRecord> mHistory = new HashSet<ServiceRecord>();
     private final ProcessMap<ProcessRecord> mProcessNames = new ProcessMap<ProcessRecord>();
     private final PendingIntents mPendingIntents = new PendingIntents();
+    private final RemoteCallbackList<IProcessObserver> mProcessObservers = new RemoteCallbackList<>();
+    private final StubProcessPool mStubPool = new StubProcessPool(this);
+    /**
+     * vpids held by an attached process. Taken after this and before the idle
+     * stubs of {@link StubProcessPool}.
+     */
+    private final BitSet mUsedStubs = new BitSet(VASettings.STUB_COUNT);
+    private int mForegroundPid;
     private ActivityManager am = (ActivityManager) VirtualCore.get().getContext()
             .getSystemService(Context.ACTIVITY_SERVICE);
     private NotificationManager nm = (NotificationManager) VirtualCore.get().getContext()
@@ -123,7 +140,7 @@ public class VActivityManagerService extends IActivityManager.Stub {
             throw new RuntimeException("Unable to found PackageInfo : " + context.getPackageName());
         }
         sService.set(this);
-
+        mStubPool.attach(context);
     }
 
 
@@ -192,6 +209,14 @@ public class VActivityManagerService extends IActivityManager.Stub {
     @Override
     public void onActivityResumed(int userId, IBinder token) {
         mMainStack.onActivityResumed(userId, token);
+        int pid = Binder.getCallingPid();
+        synchronized (mPidsSelfLocked) {
+            ProcessRecord r = findProcessLocked(pid);
+            if (r != null) {
+                mForegroundPid = pid;
+                r.lastActivityTime = SystemClock.uptimeMillis();
+            }
+        }
     }
 
     @Override
@@ -736,18 +761,79 @@ public class VActivityManagerService extends IActivityManager.Stub {
             mProcessNames.put(app.processName, app.vuid, app);
             mPidsSelfLocked.put(app.pid, app);
         }
+        synchronized (mUsedStubs) {
+            mUsedStubs.set(app.vpid);
+        }
+        notifyProcessAttached(app);
     }
 
     private void onProcessDead(ProcessRecord record) {
-        mProcessNames.remove(record.processName, record.vuid);
-        mPidsSelfLocked.remove(record.pid);
+        // an evicted process may have been replaced before it died
+        if (mProcessNames.get(record.processName, record.vuid) == record) {
+            mProcessNames.remove(record.processName, record.vuid);
+        }
+        synchronized (mPidsSelfLocked) {
+            mPidsSelfLocked.remove(record.pid);
+            if (mForegroundPid == record.pid) {
+                // the pid may be reused by an unrelated process
+                mForegroundPid = 0;
+            }
+        }
+        synchronized (mUsedStubs) {
+            mUsedStubs.clear(record.vpid);
+        }
         processDead(record);
         record.lock.open();
+        notifyProcessDied(record);
+    }
+
+    private void notifyProcessAttached(ProcessRecord record) {
+        synchronized (mProcessObservers) {
+            int N = mProcessObservers.beginBroadcast();
+            while (N-- > 0) {
+                try {
+                    mProcessObservers.getBroadcastItem(N).onProcessAttached(record.pid, record.vuid);
+                } catch (RemoteException e) {
+                    // observer has dead
+                }
+            }
+            mProcessObservers.finishBroadcast();
+        }
+    }
+
+    private void notifyProcessDied(ProcessRecord record) {
+        synchronized (mProcessObservers) {
+            int N = mProcessObservers.beginBroadcast();
+            while (N-- > 0) {
+                try {
+                    mProcessObservers.getBroadcastItem(N).onProcessDetached(record.pid);
+                } catch (RemoteException e) {
+                    // observer has dead
+                }
+            }
+            mProcessObservers.finishBroadcast();
+        }
+    }
+
+    private void notifyProcessEvicted(ProcessRecord record, int importance) {
+        synchronized (mProcessObservers) {
+            int N = mProcessObservers.beginBroadcast();
+            while (N-- > 0) {
+                try {
+                    mProcessObservers.getBroadcastItem(N).onProcessEvicted(record.pid, record.vuid, importance);
+                } catch (RemoteException e) {
+                    // observer has dead
+                }
+            }
+            mProcessObservers.finishBroadcast();
+        }
     }
 
     @Override
     public int getFreeStubCount() {
-        return VASettings.STUB_COUNT - mPidsSelfLocked.size();
+        synchronized (mUsedStubs) {
+            return VASettings.STUB_COUNT - mUsedStubs.cardinality();
+        }
     }
 
     @Override
@@ -759,10 +845,6 @@ public class VActivityManagerService extends IActivityManager.Stub {
     }
 
     ProcessRecord startProcessIfNeedLocked(String processName, int userId, String packageName) {
-        if (VActivityManagerService.get().getFreeStubCount() < 3) {
-            // run GC
-            killAllApps();
-        }
         PackageSetting ps = PackageCacheManager.getSetting(packageName);
         ApplicationInfo info = VPackageManagerService.get().getApplicationInfo(packageName, 0, userId);
         if (ps == null || info == null) {
@@ -773,16 +855,28 @@ public class VActivityManagerService extends IActivityManager.Stub {
             ps.setLaunched(userId, true);
             VAppManagerService.get().savePersistenceData();
         }
+        DexOptScheduler.get().prioritize(packageName);
         int uid = VUserHandle.getUid(userId, ps.appId);
         ProcessRecord app = mProcessNames.get(processName, uid);
-        if (app != null && app.client.asBinder().pingBinder()) {
+        // an evicted process is killed already, just not dead yet
+        if (app != null && !app.evicted && app.client.asBinder().pingBinder()) {
+            app.lastActivityTime = SystemClock.uptimeMillis();
             return app;
         }
-        int vpid = queryFreeStubProcessLocked();
-        if (vpid == -1) {
-            return null;
+        evictProcessesLocked();
+        app = null;
+        int vpid = mStubPool.claim();
+        if (vpid != -1) {
+            app = performStartProcessLocked(uid, vpid, info, processName);
+        }
+        if (app == null) {
+            // the pool is empty or the warm stub died meanwhile
+            vpid = queryColdStubProcessLocked();
+            if (vpid == -1) {
+                return null;
+            }
+            app = performStartProcessLocked(uid, vpid, info, processName);
         }
-        app = performStartProcessLocked(uid, vpid, info, processName);
         if (app != null) {
             app.pkgList.add(info.packageName);
         }
@@ -826,25 +920,89 @@ public class VActivityManagerService extends IActivityManager.Stub {
         return app;
     }
 
-    private int queryFreeStubProcessLocked() {
-        for (int vpid = 0; vpid < VASettings.STUB_COUNT; vpid++) {
-            int N = mPidsSelfLocked.size();
-            boolean using = false;
-            while (N-- > 0) {
-                ProcessRecord r = mPidsSelfLocked.valueAt(N);
-                if (r.vpid == vpid) {
-                    using = true;
-                    break;
+    /**
+     * Find a stub which is neither running an app nor held by the warm pool.
+     * Takes mUsedStubs, then the lock of the pool.
+     */
+    int queryColdStubProcessLocked() {
+        synchronized (mUsedStubs) {
+            int vpid = mUsedStubs.nextClearBit(0);
+            while (vpid < VASettings.STUB_COUNT) {
+                if (!mStubPool.isReserved(vpid)) {
+                    return vpid;
                 }
+                vpid = mUsedStubs.nextClearBit(vpid + 1);
             }
-            if (using) {
-                continue;
-            }
-            return vpid;
         }
         return -1;
     }
 
+    /**
+     * Kill the least valuable processes until {@link #MIN_FREE_STUBS} stubs are free,
+     * or about to be. Cached processes go first, then the ones hosting services,
+     * the least recently used first within a level. The foreground process is kept.
+     */
+    private void evictProcessesLocked() {
+        int needed = MIN_FREE_STUBS - getFreeStubCount();
+        if (needed <= 0) {
+            return;
+        }
+        Set<Integer> servicePids = new HashSet<>();
+        synchronized (mHistory) {
+            for (ServiceRecord r : mHistory) {
+                if (r.process != null) {
+                    servicePids.add(r.process.pid);
+                }
+            }
+        }
+        final SparseIntArray importances = new SparseIntArray();
+        List<ProcessRecord> candidates = new ArrayList<>();
+        synchronized (mPidsSelfLocked) {
+            for (int i = 0; i < mPidsSelfLocked.size(); i++) {
+                ProcessRecord r = mPidsSelfLocked.valueAt(i);
+                if (r.evicted) {
+                    // already killed, just not dead yet
+                    needed--;
+                    continue;
+                }
+                int importance;
+                if (r.pid == mForegroundPid) {
+                    importance = ProcessRecord.IMPORTANCE_FOREGROUND;
+                } else if (servicePids.contains(r.pid)) {
+                    importance = ProcessRecord.IMPORTANCE_SERVICE;
+                } else {
+                    importance = ProcessRecord.IMPORTANCE_CACHED;
+                }
+                importances.put(r.pid, importance);
+                candidates.add(r);
+            }
+        }
+        Collections.sort(candidates, new Comparator<ProcessRecord>() {
+            @Override
+            public int compare(ProcessRecord a, ProcessRecord b) {
+                int diff = importances.get(b.pid) - importances.get(a.pid);
+                if (diff != 0) {
+                    return diff;
+                }
+                return Long.compare(a.lastActivityTime, b.lastActivityTime);
+            }
+        });
+        for (ProcessRecord r : candidates) {
+            if (needed <= 0) {
+                break;
+            }
+            int importance = importances.get(r.pid);
+            if (importance == ProcessRecord.IMPORTANCE_FOREGROUND) {
+                break;
+            }
+            VLog.i(TAG, "Evict %s (pid %d, importance %d)", r.processName, r.pid, importance);
+            r.evicted = true;
+            notifyProcessEvicted(r, importance);
+            killProcess(r.pid);
+            needed--;
+        }
+    }
+
     @Override
     public boolean isAppProcess(String processName) {
         return parseVPid(processName) != -1;
@@ -944,12 +1102,12 @@ public class VActivityManagerService extends IActivityManager.Stub {
 
     @Override
     public void registerProcessObserver(IProcessObserver observer) {
-
+        mProcessObservers.register(observer);
     }
 
     @Override
     public void unregisterProcessObserver(IProcessObserver observer) {
-
+        mProcessObservers.unregister(observer);
     }
 
     @Override
@@ -1068,10 +1226,12 @@ public class VActivityManagerService extends IActivityManager.Stub {
             return false;
         }
         int vuid = VUserHandle.getUid(userId, appId);
-        return handleUserBroadcast(vuid, info, component, realIntent, result);
+        boolean critical = component != null || intent.hasExtra("_VA_|_privilege_pkg_");
+        return handleUserBroadcast(vuid, info, component, realIntent, result, critical);
     }
 
-    private boolean handleUserBroadcast(int vuid, ActivityInfo info, ComponentName component, Intent realIntent, PendingResultData result) {
+    private boolean handleUserBroadcast(int vuid, ActivityInfo info, ComponentName component, Intent realIntent,
+                                        PendingResultData result, boolean critical) {
         if (component != null && !ComponentUtils.toComponentName(info).equals(component)) {
             // Verify the component.
             return false;
@@ -1081,43 +1241,38 @@ public class VActivityManagerService extends IActivityManager.Stub {
             // restore to origin action.
             realIntent.setAction(originAction);
         }
-        handleStaticBroadcastAsUser(vuid, info, realIntent, result);
+        critical |= BroadcastQueue.isCritical(realIntent, result);
+        BroadcastSystem.get().enqueue(vuid, info, realIntent, result, critical);
         return true;
     }
 
-    private void handleStaticBroadcastAsUser(int vuid, ActivityInfo info, Intent intent,
-                                             PendingResultData result) {
-        synchronized (this) {
-            ProcessRecord r = findProcessLocked(info.processName, vuid);
-            if ((BROADCAST_NOT_STARTED_PKG || isStartProcessForBroadcast(info.processName, info.packageName))
-                    && r == null) {
-                r = startProcessIfNeedLocked(info.processName, getUserId(vuid), info.packageName);
-            }
-            if (r != null && r.appThread != null) {
-                performScheduleReceiver(r.client, vuid, info, intent,
-                        result);
-            }
+    ProcessRecord findProcess(String processName, int vuid) {
+        synchronized (mProcessNames) {
+            return findProcessLocked(processName, vuid);
         }
     }
 
-    private static boolean isStartProcessForBroadcast(String processName, String packageName) {
-        return Constants.PRIVILEGE_APP.contains(packageName);
+    /**
+     * @return whether a broadcast that isn't critical may start the process of its receiver.
+     */
+    boolean isStartingProcessForAnyBroadcast() {
+        return BROADCAST_NOT_STARTED_PKG;
     }
 
-    private void performScheduleReceiver(IVClient client, int vuid, ActivityInfo info, Intent intent,
-                                         PendingResultData result) {
+    boolean canStartProcessForBroadcast(ActivityInfo info) {
+        return BROADCAST_NOT_STARTED_PKG || isStartProcessForBroadcast(info.processName, info.packageName);
+    }
 
-        ComponentName componentName = ComponentUtils.toComponentName(info);
-        BroadcastSystem.get().broadcastSent(vuid, info, result);
-        try {
-            client.scheduleReceiver(info.processName, componentName, intent, result);
-        } catch (Throwable e) {
-            if (result != null) {
-                result.finish();
-            }
+    ProcessRecord startProcessForBroadcast(ActivityInfo info, int vuid) {
+        synchronized (this) {
+            return startProcessIfNeedLocked(info.processName, getUserId(vuid), info.packageName);
         }
     }
 
+    private static boolean isStartProcessForBroadcast(String processName, String packageName) {
+        return Constants.PRIVILEGE_APP.contains(packageName);
+    }
+
     @Override
     public void broadcastFinish(PendingResultData res) {
         BroadcastSystem.get().broadcastFinish(res);
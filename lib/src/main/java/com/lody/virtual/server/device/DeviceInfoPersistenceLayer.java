@@ -38,13 +38,15 @@ public class DeviceInfoPersistenceLayer extends PersistenceLayer {
     @Override
     public void writePersistenceData(Parcel p) {
         SparseArray<VDeviceInfo> infos = mService.getDeviceInfos();
-        int size = infos.size();
-        p.writeInt(size);
-        for (int i = 0; i < size; i++) {
-            int userId = infos.keyAt(i);
-            VDeviceInfo info = infos.valueAt(i);
-            p.writeInt(userId);
-            info.writeToParcel(p, 0);
+        synchronized (infos) {
+            int size = infos.size();
+            p.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                int userId = infos.keyAt(i);
+                VDeviceInfo info = infos.valueAt(i);
+                p.writeInt(userId);
+                info.writeToParcel(p, 0);
+            }
         }
     }
 
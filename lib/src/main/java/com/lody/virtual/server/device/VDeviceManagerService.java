@@ -64,7 +64,7 @@ public class VDeviceManagerService extends IDeviceInfoManager.Stub {
             if (info == null) {
                 info = generateDeviceInfo();
                 mDeviceInfos.put(userId, info);
-                mPersistenceLayer.save();
+                mPersistenceLayer.scheduleSave();
             }
         }
         return info;
@@ -75,7 +75,7 @@ public class VDeviceManagerService extends IDeviceInfoManager.Stub {
         synchronized (mDeviceInfos) {
             if (info != null) {
                 mDeviceInfos.put(userId, info);
-                mPersistenceLayer.save();
+                mPersistenceLayer.scheduleSave();
             }
         }
     }
@@ -16,15 +16,15 @@ import android.text.TextUtils;
 import com.lody.virtual.client.core.VirtualCore;
 import com.lody.virtual.client.ipc.VJobScheduler;
 import com.lody.virtual.client.stub.VASettings;
+import com.lody.virtual.helper.PersistenceLayer;
+import com.lody.virtual.helper.collection.SparseArray;
 import com.lody.virtual.helper.utils.Singleton;
 import com.lody.virtual.os.VBinder;
 import com.lody.virtual.os.VEnvironment;
 import com.lody.virtual.server.IJobScheduler;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -40,9 +40,48 @@ public class VJobSchedulerService extends IJobScheduler.Stub {
     private static final String TAG = VJobScheduler.class.getSimpleName();
 
     private static final int JOB_FILE_VERSION = 1;
-    private final Map<JobId, JobConfig> mJobStore = new HashMap<>();
+    /**
+     * Jobs by vuid. Also guards {@link #mJobsByVirtualId}.
+     */
+    private final SparseArray<Map<JobId, JobConfig>> mJobStore = new SparseArray<>();
+    private final SparseArray<JobId> mJobsByVirtualId = new SparseArray<>();
     private int mGlobalJobId;
 
+    private final PersistenceLayer mPersistenceLayer = new PersistenceLayer(VEnvironment.getJobConfigFile()) {
+        @Override
+        public int getCurrentVersion() {
+            return JOB_FILE_VERSION;
+        }
+
+        @Override
+        public void writePersistenceData(Parcel p) {
+            synchronized (mJobStore) {
+                p.writeInt(mJobsByVirtualId.size());
+                for (int i = 0; i < mJobStore.size(); i++) {
+                    for (Map.Entry<JobId, JobConfig> entry : mJobStore.valueAt(i).entrySet()) {
+                        entry.getKey().writeToParcel(p, 0);
+                        entry.getValue().writeToParcel(p, 0);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void readPersistenceData(Parcel p) {
+            synchronized (mJobStore) {
+                mJobStore.clear();
+                mJobsByVirtualId.clear();
+                int count = p.readInt();
+                for (int i = 0; i < count; i++) {
+                    JobId jobId = new JobId(p);
+                    JobConfig config = new JobConfig(p);
+                    putJobLocked(jobId, config);
+                    mGlobalJobId = Math.max(mGlobalJobId, config.virtualJobId + 1);
+                }
+            }
+        }
+    };
+
     private final JobScheduler mScheduler = (JobScheduler)
             VirtualCore.get().getContext().getSystemService(Context.JOB_SCHEDULER_SERVICE);
 
@@ -50,7 +89,7 @@ public class VJobSchedulerService extends IJobScheduler.Stub {
 
     private VJobSchedulerService() {
         mJobProxyComponent = new ComponentName(VirtualCore.get().getHostPkg(), VASettings.STUB_JOB);
-        readJobs();
+        mPersistenceLayer.read();
     }
 
     private static final Singleton<VJobSchedulerService> gDefault = new Singleton<VJobSchedulerService>() {
@@ -185,98 +224,85 @@ public class VJobSchedulerService extends IJobScheduler.Stub {
         int id = job.getId();
         ComponentName service = job.getService();
         JobId jobId = new JobId(vuid, service.getPackageName(), id);
-        JobConfig config = mJobStore.get(jobId);
-        if (config == null) {
-            config = new JobConfig(mGlobalJobId++, service.getClassName(), job.getExtras());
-            mJobStore.put(jobId, config);
-        } else {
-            config.serviceName = service.getClassName();
-            config.extras = job.getExtras();
+        int virtualJobId;
+        synchronized (mJobStore) {
+            JobConfig config = getJobsLocked(vuid).get(jobId);
+            if (config == null) {
+                config = new JobConfig(mGlobalJobId++, service.getClassName(), job.getExtras());
+                putJobLocked(jobId, config);
+                mPersistenceLayer.scheduleSave();
+            } else if (!service.getClassName().equals(config.serviceName)
+                    || !isSameBundle(config.extras, job.getExtras())) {
+                // Periodic jobs are often scheduled again as is on every start.
+                config.serviceName = service.getClassName();
+                config.extras = job.getExtras();
+                mPersistenceLayer.scheduleSave();
+            }
+            virtualJobId = config.virtualJobId;
         }
-        saveJobs();
-        mirror.android.app.job.JobInfo.jobId.set(job, config.virtualJobId);
+        mirror.android.app.job.JobInfo.jobId.set(job, virtualJobId);
         mirror.android.app.job.JobInfo.service.set(job, mJobProxyComponent);
         return mScheduler.schedule(job);
     }
 
-    private void saveJobs() {
-        File jobFile = VEnvironment.getJobConfigFile();
-        Parcel p = Parcel.obtain();
-        try {
-            p.writeInt(JOB_FILE_VERSION);
-            p.writeInt(mJobStore.size());
-            for (Map.Entry<JobId, JobConfig> entry : mJobStore.entrySet()) {
-                entry.getKey().writeToParcel(p, 0);
-                entry.getValue().writeToParcel(p, 0);
-            }
-            FileOutputStream fos = new FileOutputStream(jobFile);
-            fos.write(p.marshall());
-            fos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            p.recycle();
+    private Map<JobId, JobConfig> getJobsLocked(int vuid) {
+        Map<JobId, JobConfig> jobs = mJobStore.get(vuid);
+        if (jobs == null) {
+            jobs = new HashMap<>();
+            mJobStore.put(vuid, jobs);
         }
+        return jobs;
     }
 
-    private void readJobs() {
-        File jobFile = VEnvironment.getJobConfigFile();
-        if (!jobFile.exists()) {
-            return;
+    private void putJobLocked(JobId jobId, JobConfig config) {
+        getJobsLocked(jobId.vuid).put(jobId, config);
+        mJobsByVirtualId.put(config.virtualJobId, jobId);
+    }
+
+    private static boolean isSameBundle(PersistableBundle a, PersistableBundle b) {
+        if (a == null || b == null) {
+            return (a == null || a.isEmpty()) && (b == null || b.isEmpty());
         }
-        Parcel p = Parcel.obtain();
-        try {
-            FileInputStream fis = new FileInputStream(jobFile);
-            byte[] bytes = new byte[(int) jobFile.length()];
-            int len = fis.read(bytes);
-            fis.close();
-            if (len != bytes.length) {
-                throw new IOException("Unable to read job config.");
-            }
-            p.unmarshall(bytes, 0, bytes.length);
-            p.setDataPosition(0);
-            int version = p.readInt();
-            if (version != JOB_FILE_VERSION) {
-                throw new IOException("Bad version of job file: " + version);
-            }
-            if (!mJobStore.isEmpty()) {
-                mJobStore.clear();
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (String key : a.keySet()) {
+            if (!b.containsKey(key)) {
+                return false;
             }
-            int count = p.readInt();
-            for (int i = 0; i < count; i++) {
-                JobId jobId = new JobId(p);
-                JobConfig config = new JobConfig(p);
-                mJobStore.put(jobId, config);
-                mGlobalJobId = Math.max(mGlobalJobId, config.virtualJobId);
+            Object va = a.get(key);
+            Object vb = b.get(key);
+            if (va instanceof PersistableBundle && vb instanceof PersistableBundle) {
+                if (!isSameBundle((PersistableBundle) va, (PersistableBundle) vb)) {
+                    return false;
+                }
+            } else if (!Arrays.deepEquals(new Object[]{va}, new Object[]{vb})) {
+                return false;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            p.recycle();
         }
-
+        return true;
     }
 
     @Override
     public void cancel(int jobId) throws RemoteException {
         int vuid = VBinder.getCallingUid();
         synchronized (mJobStore) {
-            boolean changed = false;
-            Iterator<Map.Entry<JobId, JobConfig>> iterator = mJobStore.entrySet().iterator();
+            Map<JobId, JobConfig> jobs = mJobStore.get(vuid);
+            if (jobs == null) {
+                return;
+            }
+            Iterator<Map.Entry<JobId, JobConfig>> iterator = jobs.entrySet().iterator();
             while (iterator.hasNext()) {
                 Map.Entry<JobId, JobConfig> entry = iterator.next();
-                JobId job = entry.getKey();
                 JobConfig config = entry.getValue();
-                if (job.vuid == vuid && job.clientJobId == jobId) {
-                    changed = true;
+                if (entry.getKey().clientJobId == jobId) {
                     mScheduler.cancel(config.virtualJobId);
+                    mJobsByVirtualId.remove(config.virtualJobId);
                     iterator.remove();
+                    mPersistenceLayer.scheduleSave();
                     break;
                 }
             }
-            if (changed) {
-                saveJobs();
-            }
         }
     }
 
@@ -284,22 +310,44 @@ public class VJobSchedulerService extends IJobScheduler.Stub {
     public void cancelAll() throws RemoteException {
         int vuid = VBinder.getCallingUid();
         synchronized (mJobStore) {
-            boolean changed = false;
-            Iterator<Map.Entry<JobId, JobConfig>> iterator = mJobStore.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<JobId, JobConfig> entry = iterator.next();
-                JobId job = entry.getKey();
-                if (job.vuid == vuid) {
-                    JobConfig config = entry.getValue();
-                    mScheduler.cancel(config.virtualJobId);
-                    changed = true;
-                    iterator.remove();
-                    break;
-                }
+            Map<JobId, JobConfig> jobs = mJobStore.removeReturnOld(vuid);
+            if (jobs == null || jobs.isEmpty()) {
+                return;
             }
-            if (changed) {
-                saveJobs();
+            for (JobConfig config : jobs.values()) {
+                mScheduler.cancel(config.virtualJobId);
+                mJobsByVirtualId.remove(config.virtualJobId);
             }
+            mPersistenceLayer.scheduleSave();
+        }
+    }
+
+    /**
+     * @return the number of jobs scheduled by the uid.
+     */
+    public int getJobCount(int vuid) {
+        synchronized (mJobStore) {
+            Map<JobId, JobConfig> jobs = mJobStore.get(vuid);
+            return jobs != null ? jobs.size() : 0;
+        }
+    }
+
+    /**
+     * @return the number of jobs scheduled by a package of the uid.
+     */
+    public int getJobCount(int vuid, String packageName) {
+        synchronized (mJobStore) {
+            Map<JobId, JobConfig> jobs = mJobStore.get(vuid);
+            if (jobs == null) {
+                return 0;
+            }
+            int count = 0;
+            for (JobId jobId : jobs.keySet()) {
+                if (TextUtils.equals(packageName, jobId.packageName)) {
+                    count++;
+                }
+            }
+            return count;
         }
     }
 
@@ -316,17 +364,12 @@ public class VJobSchedulerService extends IJobScheduler.Stub {
                     iterator.remove();
                     continue;
                 }
-                Map.Entry<JobId, JobConfig> jobEntry = findJobByVirtualJobId(job.getId());
-                if (jobEntry == null) {
-                    iterator.remove();
-                    continue;
-                }
-                JobId jobId = jobEntry.getKey();
-                JobConfig config = jobEntry.getValue();
-                if (jobId.vuid != vuid) {
+                JobId jobId = mJobsByVirtualId.get(job.getId());
+                if (jobId == null || jobId.vuid != vuid) {
                     iterator.remove();
                     continue;
                 }
+                JobConfig config = mJobStore.get(vuid).get(jobId);
                 mirror.android.app.job.JobInfo.jobId.set(job, jobId.clientJobId);
                 mirror.android.app.job.JobInfo.service.set(job, new ComponentName(jobId.packageName, config.serviceName));
             }
@@ -347,12 +390,11 @@ public class VJobSchedulerService extends IJobScheduler.Stub {
 
     public Map.Entry<JobId, JobConfig> findJobByVirtualJobId(int virtualJobId) {
         synchronized (mJobStore) {
-            for (Map.Entry<JobId, JobConfig> entry : mJobStore.entrySet()) {
-                if (entry.getValue().virtualJobId == virtualJobId) {
-                    return entry;
-                }
+            JobId jobId = mJobsByVirtualId.get(virtualJobId);
+            if (jobId == null) {
+                return null;
             }
-            return null;
+            return new AbstractMap.SimpleEntry<>(jobId, mJobStore.get(jobId.vuid).get(jobId));
         }
     }
 
@@ -2,14 +2,17 @@ package com.lody.virtual.server.location;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 
 import com.lody.virtual.helper.PersistenceLayer;
 import com.lody.virtual.helper.collection.SparseArray;
 import com.lody.virtual.os.VEnvironment;
 import com.lody.virtual.remote.vloc.VCell;
+import com.lody.virtual.remote.vloc.VLocConfig;
 import com.lody.virtual.remote.vloc.VLocation;
 import com.lody.virtual.server.IVirtualLocationManager;
+import com.lody.virtual.server.interfaces.ILocationObserver;
 
 import java.util.HashMap;
 import java.util.List;
@@ -22,21 +25,46 @@ import java.util.Map;
 public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
     private static final VirtualLocationService sInstance = new VirtualLocationService();
-    private final SparseArray<Map<String, VLocConfig>> mLocConfigs = new SparseArray<>();
-    private final VLocConfig mGlobalConfig = new VLocConfig();
+    private final SparseArray<Map<String, StoredConfig>> mLocConfigs = new SparseArray<>();
+    private final StoredConfig mGlobalConfig = new StoredConfig();
+    /**
+     * Guest processes holding the config of their package, the cookie is its {@link ConfigKey}.
+     */
+    private final RemoteCallbackList<ILocationObserver> mObservers = new RemoteCallbackList<>();
 
     private static final int MODE_CLOSE = 0;
     private static final int MODE_USE_GLOBAL = 1;
     private static final int MODE_USE_SELF = 2;
 
-    private static class VLocConfig implements Parcelable {
+    private static final int DELTA_CONFIG = 0;
+    private static final int DELTA_GLOBAL = 1;
+
+    /**
+     * Version 1 wrote the configs of a user with writeMap, under the former name
+     * of {@link StoredConfig}.
+     */
+    private static final int CONFIG_VERSION = 2;
+    private static final String LEGACY_CONFIG_CLASS =
+            "com.lody.virtual.server.location.VirtualLocationService$VLocConfig";
+
+    private static final class ConfigKey {
+        final int userId;
+        final String pkg;
+
+        ConfigKey(int userId, String pkg) {
+            this.userId = userId;
+            this.pkg = pkg;
+        }
+    }
+
+    private static class StoredConfig implements Parcelable {
         int mode;
         VCell cell;
         List<VCell> allCell;
         List<VCell> neighboringCell;
         VLocation location;
 
-        public void set(VLocConfig other) {
+        public void set(StoredConfig other) {
             this.mode = other.mode;
             this.cell = other.cell;
             this.allCell = other.allCell;
@@ -44,7 +72,7 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
             this.location = other.location;
         }
 
-        VLocConfig() {
+        StoredConfig() {
         }
 
         @Override
@@ -61,7 +89,7 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
             dest.writeParcelable(this.location, flags);
         }
 
-        VLocConfig(Parcel in) {
+        StoredConfig(Parcel in) {
             this.mode = in.readInt();
             this.cell = in.readParcelable(VCell.class.getClassLoader());
             this.allCell = in.createTypedArrayList(VCell.CREATOR);
@@ -69,51 +97,183 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
             this.location = in.readParcelable(VLocation.class.getClassLoader());
         }
 
-        public static final Creator<VLocConfig> CREATOR = new Creator<VLocConfig>() {
+        public static final Creator<StoredConfig> CREATOR = new Creator<StoredConfig>() {
             @Override
-            public VLocConfig createFromParcel(Parcel source) {
-                return new VLocConfig(source);
+            public StoredConfig createFromParcel(Parcel source) {
+                return new StoredConfig(source);
             }
 
             @Override
-            public VLocConfig[] newArray(int size) {
-                return new VLocConfig[size];
+            public StoredConfig[] newArray(int size) {
+                return new StoredConfig[size];
             }
         };
     }
 
     private final PersistenceLayer mPersistenceLayer = new PersistenceLayer(VEnvironment.getVirtualLocationFile()) {
+        /**
+         * Version of the file being read.
+         */
+        private int mReadVersion = CONFIG_VERSION;
+
         @Override
         public int getCurrentVersion() {
-            return 1;
+            return CONFIG_VERSION;
+        }
+
+        @Override
+        public boolean onVersionConflict(int fileVersion, int currentVersion) {
+            if (fileVersion != 1) {
+                return false;
+            }
+            mReadVersion = fileVersion;
+            return true;
         }
 
         @Override
         public void writePersistenceData(Parcel p) {
-            mGlobalConfig.writeToParcel(p, 0);
-            p.writeInt(mLocConfigs.size());
-            for (int i = 0; i < mLocConfigs.size(); i++) {
-                int userId = mLocConfigs.keyAt(i);
-                Map<String, VLocConfig> pkgs = mLocConfigs.valueAt(i);
-                p.writeInt(userId);
-                p.writeMap(pkgs);
+            synchronized (mLocConfigs) {
+                mGlobalConfig.writeToParcel(p, 0);
+                p.writeInt(mLocConfigs.size());
+                for (int i = 0; i < mLocConfigs.size(); i++) {
+                    int userId = mLocConfigs.keyAt(i);
+                    Map<String, StoredConfig> pkgs = mLocConfigs.valueAt(i);
+                    p.writeInt(userId);
+                    p.writeInt(pkgs.size());
+                    for (Map.Entry<String, StoredConfig> entry : pkgs.entrySet()) {
+                        p.writeString(entry.getKey());
+                        entry.getValue().writeToParcel(p, 0);
+                    }
+                }
             }
         }
 
         @Override
         public void readPersistenceData(Parcel p) {
-            mGlobalConfig.set(new VLocConfig(p));
+            mGlobalConfig.set(new StoredConfig(p));
             mLocConfigs.clear();
             int size = p.readInt();
             while (size-- > 0) {
                 int userId = p.readInt();
-                //noinspection unchecked
-                Map<String, VLocConfig> pkgs = p.readHashMap(getClass().getClassLoader());
-                mLocConfigs.put(userId, pkgs);
+                mLocConfigs.put(userId, mReadVersion == 1 ? readLegacyConfigs(p) : readConfigs(p));
+            }
+            if (mReadVersion != CONFIG_VERSION) {
+                mReadVersion = CONFIG_VERSION;
+                scheduleSave();
+            }
+        }
+
+        @Override
+        public void readDelta(Parcel p) {
+            int type = p.readInt();
+            if (type == DELTA_GLOBAL) {
+                mGlobalConfig.set(new StoredConfig(p));
+            } else {
+                int userId = p.readInt();
+                String pkg = p.readString();
+                getOrCreateConfig(userId, pkg).set(new StoredConfig(p));
             }
         }
     };
 
+    private static Map<String, StoredConfig> readConfigs(Parcel p) {
+        int count = p.readInt();
+        Map<String, StoredConfig> pkgs = new HashMap<>();
+        while (count-- > 0) {
+            String pkg = p.readString();
+            pkgs.put(pkg, new StoredConfig(p));
+        }
+        return pkgs;
+    }
+
+    /**
+     * Read what writeMap wrote, without resolving the former class name.
+     */
+    private static Map<String, StoredConfig> readLegacyConfigs(Parcel p) {
+        int count = p.readInt();
+        Map<String, StoredConfig> pkgs = new HashMap<>();
+        while (count-- > 0) {
+            p.readInt(); // VAL_STRING
+            String pkg = p.readString();
+            p.readInt(); // VAL_PARCELABLE
+            int position = p.dataPosition();
+            if (!LEGACY_CONFIG_CLASS.equals(p.readString())) {
+                // the platforms since T prefix the value with its length
+                p.setDataPosition(position + 4);
+                p.readString();
+            }
+            pkgs.put(pkg, new StoredConfig(p));
+        }
+        return pkgs;
+    }
+
+    /**
+     * Journal the config of a package instead of writing every config.
+     * Should guard by {@link #mLocConfigs}.
+     */
+    private void saveConfigLocked(final int userId, final String pkg) {
+        final StoredConfig config = getOrCreateConfig(userId, pkg);
+        mPersistenceLayer.appendDelta(new PersistenceLayer.Delta() {
+            @Override
+            public void writeToParcel(Parcel p) {
+                p.writeInt(DELTA_CONFIG);
+                p.writeInt(userId);
+                p.writeString(pkg);
+                config.writeToParcel(p, 0);
+            }
+        });
+    }
+
+    /**
+     * Should guard by {@link #mLocConfigs}.
+     */
+    private void saveGlobalConfigLocked() {
+        mPersistenceLayer.appendDelta(new PersistenceLayer.Delta() {
+            @Override
+            public void writeToParcel(Parcel p) {
+                p.writeInt(DELTA_GLOBAL);
+                mGlobalConfig.writeToParcel(p, 0);
+            }
+        });
+    }
+
+    /**
+     * Push the config of a package to the processes observing it, or of every
+     * package using the global config when pkg is null.
+     * Should guard by {@link #mLocConfigs}.
+     */
+    private void notifyObserversLocked(int userId, String pkg) {
+        int N = mObservers.beginBroadcast();
+        while (N-- > 0) {
+            ConfigKey key = (ConfigKey) mObservers.getBroadcastCookie(N);
+            if (pkg != null ? key.userId != userId || !pkg.equals(key.pkg)
+                    : getOrCreateConfig(key.userId, key.pkg).mode != MODE_USE_GLOBAL) {
+                continue;
+            }
+            try {
+                mObservers.getBroadcastItem(N).onLocationConfigChanged(getEffectiveConfigLocked(key.userId, key.pkg));
+            } catch (RemoteException e) {
+                // dead process, dropped by the list
+            }
+        }
+        mObservers.finishBroadcast();
+    }
+
+    private VLocConfig getEffectiveConfigLocked(int userId, String pkg) {
+        StoredConfig config = getOrCreateConfig(userId, pkg);
+        VLocConfig effective = new VLocConfig();
+        effective.mode = config.mode;
+        StoredConfig source = config.mode == MODE_USE_SELF ? config
+                : config.mode == MODE_USE_GLOBAL ? mGlobalConfig : null;
+        if (source != null) {
+            effective.cell = source.cell;
+            effective.allCell = source.allCell;
+            effective.neighboringCell = source.neighboringCell;
+            effective.location = source.location;
+        }
+        return effective;
+    }
+
     public static VirtualLocationService get() {
         return sInstance;
     }
@@ -125,8 +285,7 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
     @Override
     public int getMode(int userId, String pkg) throws RemoteException {
         synchronized (mLocConfigs) {
-            VLocConfig config = getOrCreateConfig(userId, pkg);
-            mPersistenceLayer.save();
+            StoredConfig config = getOrCreateConfig(userId, pkg);
             return config.mode;
         }
     }
@@ -135,19 +294,20 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
     public void setMode(int userId, String pkg, int mode) throws RemoteException {
         synchronized (mLocConfigs) {
             getOrCreateConfig(userId, pkg).mode = mode;
-            mPersistenceLayer.save();
+            saveConfigLocked(userId, pkg);
+            notifyObserversLocked(userId, pkg);
         }
     }
 
-    private VLocConfig getOrCreateConfig(int userId, String pkg) {
-        Map<String, VLocConfig> pkgs = mLocConfigs.get(userId);
+    private StoredConfig getOrCreateConfig(int userId, String pkg) {
+        Map<String, StoredConfig> pkgs = mLocConfigs.get(userId);
         if (pkgs == null) {
             pkgs = new HashMap<>();
             mLocConfigs.put(userId, pkgs);
         }
-        VLocConfig config = pkgs.get(pkg);
+        StoredConfig config = pkgs.get(pkg);
         if (config == null) {
-            config = new VLocConfig();
+            config = new StoredConfig();
             config.mode = MODE_CLOSE;
             pkgs.put(pkg, config);
         }
@@ -156,44 +316,64 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
     @Override
     public void setCell(int userId, String pkg, VCell cell) throws RemoteException {
-        getOrCreateConfig(userId, pkg).cell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).cell = cell;
+            saveConfigLocked(userId, pkg);
+            notifyObserversLocked(userId, pkg);
+        }
     }
 
     @Override
     public void setAllCell(int userId, String pkg, List<VCell> cell) throws RemoteException {
-        getOrCreateConfig(userId, pkg).allCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).allCell = cell;
+            saveConfigLocked(userId, pkg);
+            notifyObserversLocked(userId, pkg);
+        }
     }
 
     @Override
     public void setNeighboringCell(int userId, String pkg, List<VCell> cell) throws RemoteException {
-        getOrCreateConfig(userId, pkg).neighboringCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).neighboringCell = cell;
+            saveConfigLocked(userId, pkg);
+            notifyObserversLocked(userId, pkg);
+        }
     }
 
     @Override
     public void setGlobalCell(VCell cell) throws RemoteException {
-        mGlobalConfig.cell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            mGlobalConfig.cell = cell;
+            saveGlobalConfigLocked();
+            notifyObserversLocked(0, null);
+        }
     }
 
     @Override
     public void setGlobalAllCell(List<VCell> cell) throws RemoteException {
-        mGlobalConfig.allCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            mGlobalConfig.allCell = cell;
+            saveGlobalConfigLocked();
+            notifyObserversLocked(0, null);
+        }
     }
 
     @Override
     public void setGlobalNeighboringCell(List<VCell> cell) throws RemoteException {
-        mGlobalConfig.neighboringCell = cell;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            mGlobalConfig.neighboringCell = cell;
+            saveGlobalConfigLocked();
+            notifyObserversLocked(0, null);
+        }
     }
 
     @Override
     public VCell getCell(int userId, String pkg) throws RemoteException {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
+        StoredConfig config;
+        synchronized (mLocConfigs) {
+            config = getOrCreateConfig(userId, pkg);
+        }
         switch (config.mode) {
             case MODE_USE_SELF:
                 return config.cell;
@@ -207,8 +387,10 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
     @Override
     public List<VCell> getAllCell(int userId, String pkg) throws RemoteException {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
+        StoredConfig config;
+        synchronized (mLocConfigs) {
+            config = getOrCreateConfig(userId, pkg);
+        }
         switch (config.mode) {
             case MODE_USE_SELF:
                 return config.allCell;
@@ -222,8 +404,10 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
     @Override
     public List<VCell> getNeighboringCell(int userId, String pkg) throws RemoteException {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
+        StoredConfig config;
+        synchronized (mLocConfigs) {
+            config = getOrCreateConfig(userId, pkg);
+        }
         switch (config.mode) {
             case MODE_USE_SELF:
                 return config.neighboringCell;
@@ -237,14 +421,19 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
     @Override
     public void setLocation(int userId, String pkg, VLocation loc) throws RemoteException {
-        getOrCreateConfig(userId, pkg).location = loc;
-        mPersistenceLayer.save();
+        synchronized (mLocConfigs) {
+            getOrCreateConfig(userId, pkg).location = loc;
+            saveConfigLocked(userId, pkg);
+            notifyObserversLocked(userId, pkg);
+        }
     }
 
     @Override
     public VLocation getLocation(int userId, String pkg) throws RemoteException {
-        VLocConfig config = getOrCreateConfig(userId, pkg);
-        mPersistenceLayer.save();
+        StoredConfig config;
+        synchronized (mLocConfigs) {
+            config = getOrCreateConfig(userId, pkg);
+        }
         switch (config.mode) {
             case MODE_USE_SELF:
                 return config.location;
@@ -258,7 +447,11 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
 
     @Override
     public void setGlobalLocation(VLocation loc) throws RemoteException {
-        mGlobalConfig.location = loc;
+        synchronized (mLocConfigs) {
+            mGlobalConfig.location = loc;
+            saveGlobalConfigLocked();
+            notifyObserversLocked(0, null);
+        }
     }
 
     @Override
@@ -266,4 +459,17 @@ public class VirtualLocationService extends IVirtualLocationManager.Stub {
         return mGlobalConfig.location;
     }
 
+    @Override
+    public VLocConfig observeConfig(int userId, String pkg, ILocationObserver observer) {
+        synchronized (mLocConfigs) {
+            mObservers.register(observer, new ConfigKey(userId, pkg));
+            return getEffectiveConfigLocked(userId, pkg);
+        }
+    }
+
+    @Override
+    public void unobserveConfig(ILocationObserver observer) {
+        mObservers.unregister(observer);
+    }
+
 }
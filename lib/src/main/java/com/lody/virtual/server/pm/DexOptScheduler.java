@@ -0,0 +1,268 @@
+package com.lody.virtual.server.pm;
+
+import com.lody.virtual.client.env.VirtualRuntime;
+import com.lody.virtual.helper.ArtDexOptimizer;
+import com.lody.virtual.helper.collection.ArrayMap;
+import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.os.VEnvironment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dalvik.system.DexFile;
+
+/**
+ * Runs the dex optimization of installed packages in the background.
+ * <p>
+ * Packages are queued here as soon as they are installed. A single worker first
+ * runs the quick (verify only) compilation of the queued package with the highest
+ * priority, then queues its full compilation unless the install skipped it. Both
+ * are compiled into a temporary file renamed over the odex file, so processes
+ * already running keep their mapping of the old one. Launching a package moves
+ * it to the head of the queue. Beyond {@link #MAX_PENDING} jobs, the ones with
+ * the lowest priority wait in a deferred list, queued again once the queue drains.
+ */
+public class DexOptScheduler {
+
+    private static final String TAG = DexOptScheduler.class.getSimpleName();
+
+    /**
+     * Not queued: compiled, failed, or never scheduled.
+     */
+    public static final int STATE_NONE = 0;
+    public static final int STATE_QUEUED = 1;
+    public static final int STATE_RUNNING = 2;
+
+    /**
+     * Max number of pending jobs, the lowest priority one is deferred beyond it.
+     */
+    private static final int MAX_PENDING = 32;
+
+    private static final DexOptScheduler sInstance = new DexOptScheduler();
+
+    private final ArrayMap<String, Job> mPending = new ArrayMap<>();
+    /**
+     * Jobs over the limit of the queue, guarded by mPending.
+     */
+    private final ArrayMap<String, Job> mDeferred = new ArrayMap<>();
+    private final AtomicReference<Process> mRunningProcess = new AtomicReference<>();
+    private Job mRunning;
+    private Thread mWorker;
+    private long mSequence;
+
+    private static final class Job {
+        final String packageName;
+        final String apkPath;
+        final boolean fullCompile;
+        boolean verified;
+        long priority;
+        volatile boolean cancelled;
+
+        Job(String packageName, String apkPath, boolean fullCompile, long priority) {
+            this.packageName = packageName;
+            this.apkPath = apkPath;
+            this.fullCompile = fullCompile;
+            this.priority = priority;
+        }
+    }
+
+    public static DexOptScheduler get() {
+        return sInstance;
+    }
+
+    /**
+     * Queue the optimization of a package, replacing any earlier job for it.
+     *
+     * @param fullCompile whether the full compilation follows the quick one
+     */
+    public void schedule(String packageName, String apkPath, boolean fullCompile) {
+        synchronized (mPending) {
+            cancelLocked(packageName);
+            mPending.put(packageName, new Job(packageName, apkPath, fullCompile, ++mSequence));
+            trimPendingLocked();
+            if (mWorker == null) {
+                mWorker = new Thread(new Worker(), "va-dex2oat");
+                mWorker.setPriority(Thread.MIN_PRIORITY);
+                mWorker.start();
+            }
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * Move the pending job of a package, if any, to the head of the queue.
+     */
+    public void prioritize(String packageName) {
+        synchronized (mPending) {
+            Job job = mPending.get(packageName);
+            if (job == null) {
+                job = mDeferred.remove(packageName);
+                if (job == null) {
+                    return;
+                }
+                mPending.put(packageName, job);
+            }
+            job.priority = ++mSequence;
+            trimPendingLocked();
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * Drop the pending job of a package and kill its dex2oat if it is running.
+     */
+    public void cancel(String packageName) {
+        synchronized (mPending) {
+            cancelLocked(packageName);
+        }
+    }
+
+    public int getState(String packageName) {
+        synchronized (mPending) {
+            if (mPending.containsKey(packageName) || mDeferred.containsKey(packageName)) {
+                return STATE_QUEUED;
+            }
+            Job running = mRunning;
+            if (running != null && running.packageName.equals(packageName)) {
+                return STATE_RUNNING;
+            }
+            return STATE_NONE;
+        }
+    }
+
+    private void cancelLocked(String packageName) {
+        mPending.remove(packageName);
+        mDeferred.remove(packageName);
+        Job running = mRunning;
+        if (running != null && running.packageName.equals(packageName)) {
+            running.cancelled = true;
+            Process process = mRunningProcess.get();
+            if (process != null) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Defer the jobs with the lowest priority beyond {@link #MAX_PENDING}.
+     */
+    private void trimPendingLocked() {
+        while (mPending.size() > MAX_PENDING) {
+            Job lowest = findJobLocked(mPending, false);
+            mPending.remove(lowest.packageName);
+            mDeferred.put(lowest.packageName, lowest);
+            VLog.w(TAG, "Compile queue is full, defer " + lowest.packageName);
+        }
+    }
+
+    /**
+     * Queue the deferred jobs again, the highest priority first, once the queue drained.
+     */
+    private void refillPendingLocked() {
+        while (!mDeferred.isEmpty() && mPending.size() < MAX_PENDING) {
+            Job job = findJobLocked(mDeferred, true);
+            mDeferred.remove(job.packageName);
+            mPending.put(job.packageName, job);
+        }
+    }
+
+    private static Job findJobLocked(ArrayMap<String, Job> jobs, boolean highest) {
+        Job found = null;
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.valueAt(i);
+            if (found == null || (highest ? job.priority > found.priority : job.priority < found.priority)) {
+                found = job;
+            }
+        }
+        return found;
+    }
+
+    private void run(Job job) {
+        boolean requeue = false;
+        if (!job.verified) {
+            requeue = verify(job) && job.fullCompile;
+        } else if (compile(job, ArtDexOptimizer.FILTER_EVERYTHING)) {
+            VLog.d(TAG, "Compiled " + job.packageName);
+        }
+        synchronized (mPending) {
+            mRunning = null;
+            // a newer job of the package replaces this one
+            if (requeue && !job.cancelled && !mPending.containsKey(job.packageName)
+                    && !mDeferred.containsKey(job.packageName)) {
+                job.verified = true;
+                mPending.put(job.packageName, job);
+                trimPendingLocked();
+            }
+        }
+    }
+
+    /**
+     * Make the package runnable, the ART quick compilation or the dalvik dexopt.
+     *
+     * @return whether the full compilation may follow
+     */
+    private boolean verify(Job job) {
+        if (VirtualRuntime.isArt()) {
+            if (compile(job, ArtDexOptimizer.getQuickCompilerFilter())) {
+                return true;
+            }
+            if (job.cancelled) {
+                return false;
+            }
+        }
+        try {
+            DexFile.loadDex(job.apkPath, VEnvironment.getOdexFile(job.packageName).getPath(), 0).close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private boolean compile(Job job, String compilerFilter) {
+        File oatFile = VEnvironment.getOdexFile(job.packageName);
+        File tmpFile = new File(oatFile.getPath() + ".tmp");
+        boolean success = false;
+        try {
+            ArtDexOptimizer.compileDex2Oat(job.apkPath, tmpFile.getPath(),
+                    compilerFilter, mRunningProcess);
+            synchronized (mPending) {
+                success = !job.cancelled && tmpFile.renameTo(oatFile);
+            }
+        } catch (IOException e) {
+            if (!job.cancelled) {
+                VLog.w(TAG, "Unable to compile " + job.packageName + ": " + e.getMessage());
+            }
+        } finally {
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+        return success;
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                synchronized (mPending) {
+                    if (mPending.isEmpty()) {
+                        refillPendingLocked();
+                    }
+                    while (mPending.isEmpty()) {
+                        try {
+                            mPending.wait();
+                        } catch (InterruptedException e) {
+                            // ignore
+                        }
+                    }
+                    job = findJobLocked(mPending, true);
+                    mPending.remove(job.packageName);
+                    mRunning = job;
+                }
+                DexOptScheduler.this.run(job);
+            }
+        }
+    }
+}
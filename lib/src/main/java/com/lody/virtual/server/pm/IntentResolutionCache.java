@@ -0,0 +1,224 @@
+package com.lody.virtual.server.pm;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.lody.virtual.helper.compat.ObjectsCompat;
+import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.server.pm.parser.VPackage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Results of the implicit intent queries of {@link VPackageManagerService}.
+ * <p>
+ * Keys only hold what the intent filters can match on. The data uri is reduced
+ * to its scheme, unless some filter constrains the authority or the scheme specific
+ * part for that scheme. The whole cache is dropped when a package is added or
+ * removed, or when the per-user state of a package changes.
+ */
+class IntentResolutionCache {
+
+    private static final String TAG = IntentResolutionCache.class.getSimpleName();
+
+    static final int KIND_ACTIVITY = 0;
+    static final int KIND_RECEIVER = 1;
+    static final int KIND_SERVICE = 2;
+    static final int KIND_PROVIDER = 3;
+
+    private static final int MAX_ENTRIES = 128;
+
+    private final LruCache<Key, List<ResolveInfo>> mEntries = new LruCache<>(MAX_ENTRIES);
+    /**
+     * Schemes for which some filter looks beyond the scheme. Only grows, a stale
+     * scheme just makes its keys more precise than needed.
+     */
+    private final Set<String> mPreciseSchemes = new HashSet<>();
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+    private long mInvalidations;
+
+    static final class Ticket {
+        final Key key;
+        final long generation;
+
+        Ticket(Key key, long generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Note the schemes the filters look beyond. The filters are noted as their index
+     * is built on its first query, so a new precise scheme drops the results keyed,
+     * or about to be, by the scheme alone.
+     */
+    synchronized void noteFilters(List<? extends VPackage.IntentInfo> intents) {
+        if (intents == null) {
+            return;
+        }
+        boolean changed = false;
+        for (VPackage.IntentInfo info : intents) {
+            IntentFilter filter = info.filter;
+            if (filter.countDataAuthorities() == 0 && filter.countDataSchemeSpecificParts() == 0) {
+                continue;
+            }
+            for (int i = 0; i < filter.countDataSchemes(); i++) {
+                changed |= mPreciseSchemes.add(filter.getDataScheme(i));
+            }
+        }
+        if (changed) {
+            mGeneration++;
+            mEntries.evictAll();
+        }
+    }
+
+    synchronized void invalidate() {
+        if (mEntries.size() > 0) {
+            VLog.d(TAG, "Dropping resolutions: %s", getStats());
+        }
+        mGeneration++;
+        mInvalidations++;
+        mEntries.evictAll();
+    }
+
+    synchronized Ticket begin(int kind, Intent intent, String resolvedType, int flags, int userId) {
+        Uri data = intent.getData();
+        String scheme = data != null ? data.getScheme() : null;
+        String dataKey = scheme != null && mPreciseSchemes.contains(scheme) ? data.toString() : scheme;
+        return new Ticket(new Key(kind, intent, resolvedType, dataKey, flags, userId), mGeneration);
+    }
+
+    /**
+     * @return a copy of the cached result, or null on a miss.
+     */
+    List<ResolveInfo> get(Ticket ticket) {
+        List<ResolveInfo> cached;
+        synchronized (this) {
+            cached = mEntries.get(ticket.key);
+            if (cached == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return copyOf(cached);
+    }
+
+    /**
+     * Store a result, unless the packages changed since the ticket was taken.
+     *
+     * @return the result to hand out
+     */
+    List<ResolveInfo> put(Ticket ticket, List<ResolveInfo> result) {
+        if (result == null) {
+            return null;
+        }
+        List<ResolveInfo> copy = copyOf(result);
+        synchronized (this) {
+            if (ticket.generation == mGeneration) {
+                mEntries.put(ticket.key, copy);
+            }
+        }
+        return result;
+    }
+
+    synchronized String getStats() {
+        long total = mHits + mMisses;
+        return mEntries.size() + " entries, " + mHits + " hits, " + mMisses + " misses ("
+                + (total > 0 ? mHits * 100 / total : 0) + "% hit), " + mInvalidations + " invalidations";
+    }
+
+    private static List<ResolveInfo> copyOf(List<ResolveInfo> list) {
+        List<ResolveInfo> copy = new ArrayList<>(list.size());
+        for (ResolveInfo ri : list) {
+            ResolveInfo r = new ResolveInfo(ri);
+            if (r.activityInfo != null) {
+                r.activityInfo = new ActivityInfo(r.activityInfo);
+                r.activityInfo.applicationInfo = new ApplicationInfo(r.activityInfo.applicationInfo);
+            }
+            if (r.serviceInfo != null) {
+                r.serviceInfo = new ServiceInfo(r.serviceInfo);
+                r.serviceInfo.applicationInfo = new ApplicationInfo(r.serviceInfo.applicationInfo);
+            }
+            if (r.providerInfo != null) {
+                r.providerInfo = new ProviderInfo(r.providerInfo);
+                r.providerInfo.applicationInfo = new ApplicationInfo(r.providerInfo.applicationInfo);
+            }
+            copy.add(r);
+        }
+        return copy;
+    }
+
+    static final class Key {
+        final int kind;
+        final String action;
+        final String type;
+        final String data;
+        final String[] categories;
+        final String pkg;
+        final int flags;
+        final int userId;
+        final int hash;
+
+        Key(int kind, Intent intent, String type, String data, int flags, int userId) {
+            this.kind = kind;
+            this.action = intent.getAction();
+            this.type = type;
+            this.data = data;
+            Set<String> categories = intent.getCategories();
+            if (categories != null && !categories.isEmpty()) {
+                this.categories = categories.toArray(new String[categories.size()]);
+                Arrays.sort(this.categories);
+            } else {
+                this.categories = null;
+            }
+            this.pkg = intent.getPackage();
+            this.flags = flags;
+            this.userId = userId;
+            int h = kind;
+            h = 31 * h + (action != null ? action.hashCode() : 0);
+            h = 31 * h + (type != null ? type.hashCode() : 0);
+            h = 31 * h + (data != null ? data.hashCode() : 0);
+            h = 31 * h + Arrays.hashCode(this.categories);
+            h = 31 * h + (pkg != null ? pkg.hashCode() : 0);
+            h = 31 * h + flags;
+            h = 31 * h + userId;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return kind == other.kind && flags == other.flags && userId == other.userId
+                    && ObjectsCompat.equals(action, other.action)
+                    && ObjectsCompat.equals(type, other.type)
+                    && ObjectsCompat.equals(data, other.data)
+                    && ObjectsCompat.equals(pkg, other.pkg)
+                    && Arrays.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
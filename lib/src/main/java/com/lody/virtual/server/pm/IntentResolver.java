@@ -2,6 +2,7 @@ package com.lody.virtual.server.pm;
 
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Build;
@@ -232,18 +233,34 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 
 	public List<R> queryIntentFromList(Intent intent, String resolvedType, boolean defaultOnly,
 			ArrayList<F[]> listCut, int userId) {
+		return queryIntentFromList(intent, resolvedType, defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0,
+				listCut, userId);
+	}
+
+	/**
+	 * Flags are handed down to {@link #newResult}, so that concurrent queries
+	 * with different flags don't step on each other.
+	 */
+	public List<R> queryIntentFromList(Intent intent, String resolvedType, int flags,
+			ArrayList<F[]> listCut, int userId) {
+		final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
 		ArrayList<R> resultList = new ArrayList<R>();
 		FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
 		final String scheme = intent.getScheme();
 		int N = listCut.size();
 		for (int i = 0; i < N; ++i) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, listCut.get(i), resultList, userId);
+			buildResolveList(intent, categories, defaultOnly, flags, resolvedType, scheme, listCut.get(i), resultList, userId);
 		}
 		sortResults(resultList);
 		return resultList;
 	}
 
 	public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
+		return queryIntent(intent, resolvedType, defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0, userId);
+	}
+
+	public List<R> queryIntent(Intent intent, String resolvedType, int flags, int userId) {
+		final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
 		String scheme = intent.getScheme();
 
 		ArrayList<R> finalList = new ArrayList<R>();
@@ -300,16 +317,16 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 
 		FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
 		if (firstTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, firstTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, flags, resolvedType, scheme, firstTypeCut, finalList, userId);
 		}
 		if (secondTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, secondTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, flags, resolvedType, scheme, secondTypeCut, finalList, userId);
 		}
 		if (thirdTypeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, thirdTypeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, flags, resolvedType, scheme, thirdTypeCut, finalList, userId);
 		}
 		if (schemeCut != null) {
-			buildResolveList(intent, categories, defaultOnly, resolvedType, scheme, schemeCut, finalList, userId);
+			buildResolveList(intent, categories, defaultOnly, flags, resolvedType, scheme, schemeCut, finalList, userId);
 		}
 		sortResults(finalList);
 		return finalList;
@@ -343,7 +360,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	protected abstract F[] newArray(int size);
 
 	@SuppressWarnings("unchecked")
-	protected R newResult(F filter, int match, int userId) {
+	protected R newResult(F filter, int match, int flags, int userId) {
 		return (R) filter;
 	}
 
@@ -506,7 +523,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 	}
 
 	private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
-								  boolean defaultOnly, String resolvedType, String scheme, F[] src, List<R> dest, int userId) {
+								  boolean defaultOnly, int flags, String resolvedType, String scheme, F[] src, List<R> dest, int userId) {
 		final String action = intent.getAction();
 		final Uri data = intent.getData();
 		final String packageName = intent.getPackage();
@@ -531,7 +548,7 @@ public abstract class IntentResolver<F extends VPackage.IntentInfo, R extends Ob
 			match = filter.filter.match(action, resolvedType, scheme, data, categories, TAG);
 			if (match >= 0) {
 				if (!defaultOnly || filter.filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
-					final R oneResult = newResult(filter, match, userId);
+					final R oneResult = newResult(filter, match, flags, userId);
 					if (oneResult != null) {
 						dest.add(oneResult);
 					}
@@ -4,49 +4,84 @@ import com.lody.virtual.helper.collection.ArrayMap;
 import com.lody.virtual.server.pm.parser.PackageParserEx;
 import com.lody.virtual.server.pm.parser.VPackage;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author Lody
  */
 
 public class PackageCacheManager {
 
-    static final ArrayMap<String, VPackage> PACKAGE_CACHE = new ArrayMap<>();
+    /**
+     * Read-only view of the installed packages. Writers serialize on the class,
+     * copy the map, and publish the copy; readers never lock.
+     */
+    private static volatile Map<String, VPackage> sPackages = Collections.emptyMap();
 
     public static int size() {
-        synchronized (PACKAGE_CACHE) {
-            return PACKAGE_CACHE.size();
-        }
+        return sPackages.size();
+    }
+
+    /**
+     * @return an immutable snapshot of the installed packages
+     */
+    public static Map<String, VPackage> getAll() {
+        return sPackages;
     }
 
-    public static void put(VPackage pkg, PackageSetting ps) {
+    /**
+     * Register a batch of packages with a single publication, the resolvers are
+     * rebuilt once per batch. There is no single-package variant on purpose.
+     */
+    static void putAll(List<VPackage> packages, List<PackageSetting> settings) {
         synchronized (PackageCacheManager.class) {
-            PackageParserEx.initApplicationInfoBase(ps, pkg);
-            PACKAGE_CACHE.put(pkg.packageName, pkg);
-            pkg.mExtras = ps;
-            VPackageManagerService.get().analyzePackageLocked(pkg);
+            ArrayMap<String, VPackage> map = new ArrayMap<>(sPackages.size() + packages.size());
+            map.putAll(sPackages);
+            for (int i = 0; i < packages.size(); i++) {
+                VPackage pkg = packages.get(i);
+                PackageSetting ps = settings.get(i);
+                PackageParserEx.initApplicationInfoBase(ps, pkg);
+                pkg.mExtras = ps;
+                map.put(pkg.packageName, pkg);
+            }
+            publishLocked(map);
         }
     }
 
     public static VPackage get(String packageName) {
-        synchronized (PackageCacheManager.class) {
-            return PACKAGE_CACHE.get(packageName);
-        }
+        return sPackages.get(packageName);
     }
 
     public static PackageSetting getSetting(String packageName) {
-        synchronized (PackageCacheManager.class) {
-            VPackage p = PACKAGE_CACHE.get(packageName);
-            if (p != null) {
-                return (PackageSetting) p.mExtras;
-            }
-            return null;
+        VPackage p = sPackages.get(packageName);
+        if (p != null) {
+            return (PackageSetting) p.mExtras;
         }
+        return null;
     }
 
     public static VPackage remove(String packageName) {
         synchronized (PackageCacheManager.class) {
-            VPackageManagerService.get().deletePackageLocked(packageName);
-            return PACKAGE_CACHE.remove(packageName);
+            if (!sPackages.containsKey(packageName)) {
+                return null;
+            }
+            ArrayMap<String, VPackage> packages = new ArrayMap<>(sPackages.size());
+            packages.putAll(sPackages);
+            VPackage removed = packages.remove(packageName);
+            publishLocked(packages);
+            return removed;
         }
     }
+
+    /**
+     * The packages are published here first, so that nothing VPMS answers from
+     * the new set is missing from {@link #get(String)}.
+     */
+    private static void publishLocked(ArrayMap<String, VPackage> packages) {
+        Map<String, VPackage> published = Collections.unmodifiableMap(packages);
+        sPackages = published;
+        VPackageManagerService.get().publishPackages(published);
+    }
 }
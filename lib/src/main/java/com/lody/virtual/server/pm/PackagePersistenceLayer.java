@@ -6,7 +6,10 @@ import com.lody.virtual.helper.PersistenceLayer;
 import com.lody.virtual.os.VEnvironment;
 import com.lody.virtual.server.pm.parser.VPackage;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author Lody
@@ -41,24 +44,32 @@ class PackagePersistenceLayer extends PersistenceLayer {
     }
 
 
+    /**
+     * The settings are mutated by the binder threads under the service lock.
+     */
+    @Override
+    protected Object getStateLock() {
+        return mService;
+    }
+
     @Override
     public void writePersistenceData(Parcel p) {
-        synchronized (PackageCacheManager.PACKAGE_CACHE) {
-            p.writeInt(PackageCacheManager.PACKAGE_CACHE.size());
-            for (VPackage pkg : PackageCacheManager.PACKAGE_CACHE.values()) {
-                PackageSetting ps = (PackageSetting) pkg.mExtras;
-                ps.writeToParcel(p, 0);
-            }
+        Map<String, VPackage> packages = PackageCacheManager.getAll();
+        p.writeInt(packages.size());
+        for (VPackage pkg : packages.values()) {
+            PackageSetting ps = (PackageSetting) pkg.mExtras;
+            ps.writeToParcel(p, 0);
         }
     }
 
     @Override
     public void readPersistenceData(Parcel p) {
         int count = p.readInt();
+        List<PackageSetting> settings = new ArrayList<>(count);
         while (count-- > 0) {
-            PackageSetting setting = new PackageSetting(p);
-            mService.loadPackage(setting);
+            settings.add(new PackageSetting(p));
         }
+        mService.loadPackages(settings);
     }
 
     @Override
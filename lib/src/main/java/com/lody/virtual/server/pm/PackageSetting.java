@@ -38,6 +38,25 @@ public class PackageSetting implements Parcelable {
     public PackageSetting() {
     }
 
+    /**
+     * Copy a setting, its user states included, so that an update changes the
+     * copy and never the published one.
+     */
+    PackageSetting(PackageSetting other) {
+        this.packageName = other.packageName;
+        this.apkPath = other.apkPath;
+        this.libPath = other.libPath;
+        this.dependSystem = other.dependSystem;
+        this.skipDexOpt = other.skipDexOpt;
+        this.appId = other.appId;
+        this.firstInstallTime = other.firstInstallTime;
+        this.lastUpdateTime = other.lastUpdateTime;
+        for (int i = 0; i < other.userState.size(); i++) {
+            PackageUserState state = other.userState.valueAt(i);
+            setUserState(other.userState.keyAt(i), state.launched, state.hidden, state.installed);
+        }
+    }
+
     protected PackageSetting(Parcel in) {
         this.packageName = in.readString();
         this.apkPath = in.readString();
@@ -23,25 +23,12 @@ import static com.lody.virtual.server.pm.VPackageManagerService.TAG;
 
 final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderIntentInfo, ResolveInfo> {
     private final HashMap<ComponentName, VPackage.ProviderComponent> mProviders = new HashMap<>();
-    private int mFlags;
-
-    public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
-        mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
-        return super.queryIntent(intent, resolvedType, defaultOnly, userId);
-    }
-
-    public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, int flags, int userId) {
-        mFlags = flags;
-        return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
-    }
 
     public List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
                                                    ArrayList<VPackage.ProviderComponent> packageProviders, int userId) {
         if (packageProviders == null) {
             return null;
         }
-        mFlags = flags;
-        final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
         final int N = packageProviders.size();
         ArrayList<VPackage.ProviderIntentInfo[]> listCut = new ArrayList<>(N);
 
@@ -55,7 +42,7 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
                 listCut.add(array);
             }
         }
-        return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
+        return super.queryIntentFromList(intent, resolvedType, flags, listCut, userId);
     }
 
     public final void addProvider(VPackage.ProviderComponent p) {
@@ -73,16 +60,6 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
         }
     }
 
-    public final void removeProvider(VPackage.ProviderComponent p) {
-        mProviders.remove(p.getComponentName());
-        final int NI = p.intents.size();
-        int j;
-        for (j = 0; j < NI; j++) {
-            VPackage.ProviderIntentInfo intent = p.intents.get(j);
-            removeFilter(intent);
-        }
-    }
-
     @TargetApi(Build.VERSION_CODES.KITKAT)
     @Override
     protected boolean allowFilterResult(VPackage.ProviderIntentInfo filter, List<ResolveInfo> dest) {
@@ -114,16 +91,16 @@ final class ProviderIntentResolver extends IntentResolver<VPackage.ProviderInten
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
     @Override
-    protected ResolveInfo newResult(VPackage.ProviderIntentInfo filter, int match, int userId) {
+    protected ResolveInfo newResult(VPackage.ProviderIntentInfo filter, int match, int flags, int userId) {
         final VPackage.ProviderComponent provider = filter.provider;
         PackageSetting ps = (PackageSetting) provider.owner.mExtras;
-        ProviderInfo pi = PackageParserEx.generateProviderInfo(provider, mFlags, ps.readUserState(userId), userId);
+        ProviderInfo pi = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
         if (pi == null) {
             return null;
         }
         final ResolveInfo res = new ResolveInfo();
         res.providerInfo = pi;
-        if ((mFlags & PackageManager.GET_RESOLVED_FILTER) != 0) {
+        if ((flags & PackageManager.GET_RESOLVED_FILTER) != 0) {
             res.filter = filter.filter;
         }
         res.priority = filter.filter.getPriority();
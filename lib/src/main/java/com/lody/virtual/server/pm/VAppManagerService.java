@@ -3,16 +3,17 @@ package com.lody.virtual.server.pm;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import com.lody.virtual.client.core.InstallStrategy;
 import com.lody.virtual.client.core.VirtualCore;
-import com.lody.virtual.client.env.VirtualRuntime;
-import com.lody.virtual.helper.ArtDexOptimizer;
 import com.lody.virtual.helper.collection.IntArray;
-import com.lody.virtual.helper.compat.NativeLibraryHelperCompat;
 import com.lody.virtual.helper.utils.ArrayUtils;
+import com.lody.virtual.helper.utils.FileCopier;
 import com.lody.virtual.helper.utils.FileUtils;
 import com.lody.virtual.helper.utils.VLog;
 import com.lody.virtual.os.VEnvironment;
@@ -25,20 +26,33 @@ import com.lody.virtual.server.am.BroadcastSystem;
 import com.lody.virtual.server.am.UidSystem;
 import com.lody.virtual.server.am.VActivityManagerService;
 import com.lody.virtual.server.interfaces.IAppRequestListener;
+import com.lody.virtual.server.interfaces.IPackageInstallCallback;
 import com.lody.virtual.server.interfaces.IPackageObserver;
+import com.lody.virtual.server.pm.parser.ApkAnalysis;
 import com.lody.virtual.server.pm.parser.PackageParserEx;
 import com.lody.virtual.server.pm.parser.VPackage;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
-import dalvik.system.DexFile;
-
 /**
  * @author Lody
  */
@@ -49,8 +63,40 @@ public class VAppManagerService extends IAppManager.Stub {
     private final UidSystem mUidSystem = new UidSystem();
     private final PackagePersistenceLayer mPersistenceLayer = new PackagePersistenceLayer(this);
     private final Set<String> mVisibleOutsidePackages = new HashSet<>();
+    /**
+     * The packages being prepared, off the lock. Should guard by this.
+     */
+    private final Set<String> mInstallingPackages = new HashSet<>();
+    private static final int BOOT_THREADS = 4;
+    private static final int INSTALL_THREADS = 4;
+    /**
+     * Extracts the native libraries of the installs being prepared, shared by all of them.
+     */
+    private static final ThreadPoolExecutor sNativeCopyExecutor = new ThreadPoolExecutor(
+            INSTALL_THREADS, INSTALL_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "va-copy-native-" + mCount.incrementAndGet());
+        }
+    });
+
+    static {
+        sNativeCopyExecutor.allowCoreThreadTimeOut(true);
+    }
     private boolean mBooting;
+    /**
+     * Packages loaded by the current boot whose receivers are not registered yet.
+     */
+    private List<VPackage> mBootedPackages;
     private RemoteCallbackList<IPackageObserver> mRemoteCallbackList = new RemoteCallbackList<>();
+    private final RemoteCallbackList<IPackageObserver> mGenerationObservers = new RemoteCallbackList<>();
+    /**
+     * Bumped on every change that may alter the package metadata seen by guests.
+     */
+    private final AtomicLong mPackageGeneration = new AtomicLong();
     private IAppRequestListener mAppRequestListener;
 
     public static VAppManagerService get() {
@@ -75,12 +121,39 @@ public class VAppManagerService extends IAppManager.Stub {
         }
         synchronized (this) {
             mBooting = true;
+            long start = SystemClock.elapsedRealtime();
             mPersistenceLayer.read();
+            final List<VPackage> booted = mBootedPackages;
+            mBootedPackages = null;
+            if (booted != null) {
+                // The services are published once the provider returns from onCreate,
+                // the receivers are registered after that.
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        registerBootReceivers(booted);
+                    }
+                });
+            }
+            VLog.i(TAG, "boot: %d packages in %d ms",
+                    booted != null ? booted.size() : 0, SystemClock.elapsedRealtime() - start);
             PrivilegeAppOptimizer.get().performOptimizeAllApps();
             mBooting = false;
         }
     }
 
+    private synchronized void registerBootReceivers(List<VPackage> booted) {
+        long start = SystemClock.elapsedRealtime();
+        for (VPackage pkg : booted) {
+            // uninstalled or replaced in the meantime
+            if (PackageCacheManager.get(pkg.packageName) == pkg) {
+                BroadcastSystem.get().startApp(pkg);
+            }
+        }
+        VLog.i(TAG, "boot: receivers of %d packages registered in %d ms",
+                booted.size(), SystemClock.elapsedRealtime() - start);
+    }
+
     private void cleanUpResidualFiles(PackageSetting ps) {
         VLog.w(TAG, "cleanUpResidualFiles: " + ps.packageName);
         File dataAppDir = VEnvironment.getDataAppPackageDirectory(ps.packageName);
@@ -93,16 +166,84 @@ public class VAppManagerService extends IAppManager.Stub {
     }
 
 
-    synchronized void loadPackage(PackageSetting setting) {
-        if (!loadPackageInnerLocked(setting)) {
-            cleanUpResidualFiles(setting);
+    /**
+     * Boot all persisted packages.
+     * <p>
+     * The package caches are read and unmarshalled on a worker pool, then registered
+     * in a single critical section. Receivers are registered later by {@link #scanApps()}.
+     * Only the packages found to be unusable have their files removed.
+     */
+    synchronized void loadPackages(final List<PackageSetting> settings) {
+        long start = SystemClock.elapsedRealtime();
+        final VPackage[] loaded = new VPackage[settings.size()];
+        final boolean[] read = new boolean[settings.size()];
+        int threads = Math.max(1, Math.min(BOOT_THREADS, Math.min(settings.size(),
+                Runtime.getRuntime().availableProcessors())));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Void>> tasks = new ArrayList<>(settings.size());
+        for (int i = 0; i < settings.size(); i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    loaded[index] = readBootPackage(settings.get(index));
+                    read[index] = true;
+                    return null;
+                }
+            });
+        }
+        boolean interrupted = false;
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            executor.shutdown();
+        }
+        if (interrupted) {
+            // The cancelled tasks may still be running, let them finish and read the rest here.
+            awaitTerminationUninterruptibly(executor);
+            for (int i = 0; i < read.length; i++) {
+                if (!read[i]) {
+                    loaded[i] = readBootPackage(settings.get(i));
+                    read[i] = true;
+                }
+            }
+            Thread.currentThread().interrupt();
+        }
+        long readEnd = SystemClock.elapsedRealtime();
+
+        List<VPackage> packages = new ArrayList<>(settings.size());
+        List<PackageSetting> packageSettings = new ArrayList<>(settings.size());
+        for (int i = 0; i < loaded.length; i++) {
+            if (loaded[i] != null) {
+                packages.add(loaded[i]);
+                packageSettings.add(settings.get(i));
+            } else if (read[i]) {
+                cleanUpResidualFiles(settings.get(i));
+            }
+        }
+        PackageCacheManager.putAll(packages, packageSettings);
+        mBootedPackages = packages;
+        VLog.i(TAG, "boot: read %d package caches on %d threads in %d ms, registered in %d ms",
+                settings.size(), threads, readEnd - start, SystemClock.elapsedRealtime() - readEnd);
+    }
+
+    private static void awaitTerminationUninterruptibly(ExecutorService executor) {
+        boolean terminated = false;
+        while (!terminated) {
+            try {
+                terminated = executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // keep waiting, the caller restores the interrupt
+            }
         }
     }
 
-    private boolean loadPackageInnerLocked(PackageSetting ps) {
+    private VPackage readBootPackage(PackageSetting ps) {
         if (ps.dependSystem) {
             if (!VirtualCore.get().isOutsideInstalled(ps.packageName)) {
-                return false;
+                return null;
             }
         }
         File cacheFile = VEnvironment.getPackageCacheFile(ps.packageName);
@@ -113,12 +254,20 @@ public class VAppManagerService extends IAppManager.Stub {
             e.printStackTrace();
         }
         if (pkg == null || pkg.packageName == null) {
-            return false;
+            pkg = rebuildPackageCache(ps);
+        }
+        if (pkg == null || pkg.packageName == null) {
+            return null;
         }
         chmodPackageDictionary(cacheFile);
-        PackageCacheManager.put(pkg, ps);
-        BroadcastSystem.get().startApp(pkg);
-        return true;
+        return pkg;
+    }
+
+    /**
+     * The package cache is missing or damaged, parse the installed apk again.
+     */
+    private VPackage rebuildPackageCache(PackageSetting ps) {
+        return PackageParserEx.rebuildPackageCache(ps.packageName, ps.apkPath);
     }
 
     @Override
@@ -145,130 +294,550 @@ public class VAppManagerService extends IAppManager.Stub {
         return installPackage(path, flags, true);
     }
 
-    public synchronized InstallResult installPackage(String path, int flags, boolean notify) {
+    public InstallResult installPackage(String path, int flags, boolean notify) {
+        long installTime = System.currentTimeMillis();
+        PendingInstall install = analyzeInstall(path, flags);
+        if (install.result == null) {
+            try {
+                if (beginInstall(install)) {
+                    prepareInstall(install, null);
+                }
+                if (install.pkg != null) {
+                    synchronized (this) {
+                        commitInstallsLocked(Collections.singletonList(install), installTime, notify);
+                    }
+                }
+            } finally {
+                install.close();
+                endInstall(install);
+            }
+        }
+        return install.result;
+    }
+
+    /**
+     * Install a batch of apks.
+     * <p>
+     * They are parsed, verified and copied on a worker pool, then all registered
+     * with a single publication and a single write of the package list. The result
+     * of each apk is reported through the callback, the failures before the batch
+     * is committed and the installs right after, as is the progress of its copy.
+     * Only the commit holds the service lock.
+     */
+    @Override
+    public void installPackages(List<String> paths, final int flags, final IPackageInstallCallback callback) {
+        if (paths == null || paths.isEmpty()) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        long installTime = System.currentTimeMillis();
+        final PendingInstall[] installs = new PendingInstall[paths.size()];
+        int threads = Math.max(1, Math.min(INSTALL_THREADS, Math.min(paths.size(),
+                Runtime.getRuntime().availableProcessors())));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                final int index = i;
+                final String path = paths.get(i);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        installs[index] = analyzeInstall(path, flags);
+                        return null;
+                    }
+                });
+            }
+            executor.invokeAll(tasks);
+            tasks.clear();
+            for (final PendingInstall install : installs) {
+                if (install == null || install.result != null || !beginInstall(install)) {
+                    continue;
+                }
+                final String path = install.analysis.getApkFile().getPath();
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        prepareInstall(install, callback == null ? null : new FileCopier.ProgressListener() {
+                            @Override
+                            public void onProgress(long copied, long total) {
+                                try {
+                                    callback.onPackageProgress(path, copied, total);
+                                } catch (RemoteException e) {
+                                    // the caller is gone, the install goes on
+                                }
+                            }
+                        });
+                        return null;
+                    }
+                });
+            }
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        long prepareEnd = SystemClock.elapsedRealtime();
+
+        List<PendingInstall> prepared = new ArrayList<>(installs.length);
+        for (int i = 0; i < installs.length; i++) {
+            PendingInstall install = installs[i];
+            if (install == null) {
+                install = installs[i] = new PendingInstall(flags);
+                install.result = InstallResult.makeFailure("Interrupted.");
+            }
+            install.close();
+            if (install.pkg != null) {
+                prepared.add(install);
+            } else {
+                endInstall(install);
+                reportInstall(callback, paths.get(i), install.result);
+            }
+        }
+        try {
+            synchronized (this) {
+                commitInstallsLocked(prepared, installTime, true);
+            }
+        } finally {
+            for (PendingInstall install : prepared) {
+                endInstall(install);
+            }
+        }
+        for (int i = 0; i < installs.length; i++) {
+            if (installs[i].pkg != null) {
+                reportInstall(callback, paths.get(i), installs[i].result);
+            }
+        }
+        VLog.i(TAG, "Installed %d of %d packages on %d threads, prepared in %d ms, committed in %d ms",
+                prepared.size(), installs.length, threads, prepareEnd - start,
+                SystemClock.elapsedRealtime() - prepareEnd);
+    }
+
+    private static void reportInstall(IPackageInstallCallback callback, String path, InstallResult result) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.onPackageInstalled(path, result);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Install the apks staged by an installer session as one package. They are
+     * handed over: the base apk is moved in place, and the splits, which only
+     * contribute their native libraries, are left to the session to delete.
+     *
+     * @param apkFiles the base apk and its splits, the base preferably first
+     */
+    public InstallResult installStagedPackage(List<File> apkFiles, int flags,
+                                                           FileCopier.ProgressListener listener) {
         long installTime = System.currentTimeMillis();
+        PendingInstall install = new PendingInstall(flags | InstallStrategy.MOVE_SOURCE);
+        try {
+            for (File apkFile : apkFiles) {
+                if (install.analysis == null) {
+                    try {
+                        install.analysis = ApkAnalysis.analyze(apkFile);
+                        continue;
+                    } catch (Throwable e) {
+                        // a split, or a broken base which fails below
+                        VLog.d(TAG, "%s is not a base apk: %s", apkFile.getName(), e.getMessage());
+                    }
+                }
+                install.splits.add(ApkAnalysis.analyzeSplit(apkFile));
+            }
+            if (install.analysis == null) {
+                return InstallResult.makeFailure(InstallResult.INSTALL_FAILED_INVALID_APK,
+                        "Full install must include a base package.");
+            }
+            if (beginInstall(install)) {
+                prepareInstall(install, listener);
+            }
+            if (install.pkg != null) {
+                synchronized (this) {
+                    commitInstallsLocked(Collections.singletonList(install), installTime, true);
+                }
+            }
+            return install.result;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return InstallResult.makeFailure(InstallResult.INSTALL_FAILED_INVALID_APK,
+                    "Unable to read the split packages.");
+        } finally {
+            install.close();
+            endInstall(install);
+        }
+    }
+
+    /**
+     * An apk on its way in, analyzed and prepared on any thread, then committed
+     * with the others of its batch.
+     */
+    private static final class PendingInstall {
+        final int flags;
+        ApkAnalysis analysis;
+        final List<ApkAnalysis> splits = new ArrayList<>();
+        /**
+         * Set once the install failed or is prepared.
+         */
+        InstallResult result;
+        /**
+         * Set once the install is prepared and can be committed.
+         */
+        VPackage pkg;
+        /**
+         * Set once the package name is claimed by {@link #beginInstall(PendingInstall)}.
+         */
+        String packageName;
+        PackageSetting existSetting;
+        boolean dependSystem;
+        File packageFile;
+        File libDir;
+        /**
+         * The copy of the apk and the native libraries, moved in place by the commit.
+         */
+        File stagedPackageFile;
+        File stagingLibDir;
+
+        PendingInstall(int flags) {
+            this.flags = flags;
+        }
+
+        /**
+         * Delete what the commit has not moved in place.
+         */
+        void deleteStaged() {
+            if (stagedPackageFile != null) {
+                stagedPackageFile.delete();
+                stagedPackageFile = null;
+            }
+            if (stagingLibDir != null) {
+                FileUtils.deleteDir(stagingLibDir);
+                stagingLibDir = null;
+            }
+        }
+
+        void close() {
+            if (analysis != null) {
+                analysis.close();
+            }
+            for (ApkAnalysis split : splits) {
+                split.close();
+            }
+        }
+    }
+
+    private static PendingInstall analyzeInstall(String path, int flags) {
+        PendingInstall install = new PendingInstall(flags);
         if (path == null) {
-            return InstallResult.makeFailure("path = NULL");
+            install.result = InstallResult.makeFailure(InstallResult.INSTALL_FAILED_INVALID_URI, "path = NULL");
+            return install;
         }
         File packageFile = new File(path);
         if (!packageFile.exists() || !packageFile.isFile()) {
-            return InstallResult.makeFailure("Package File is not exist.");
+            install.result = InstallResult.makeFailure(InstallResult.INSTALL_FAILED_INVALID_URI, "Package File is not exist.");
+            return install;
         }
-        VPackage pkg = null;
         try {
-            pkg = PackageParserEx.parsePackage(packageFile);
+            install.analysis = ApkAnalysis.analyze(packageFile);
         } catch (Throwable e) {
             e.printStackTrace();
+            install.result = InstallResult.makeFailure(InstallResult.INSTALL_FAILED_INVALID_APK, "Unable to parse the package.");
         }
-        if (pkg == null || pkg.packageName == null) {
-            return InstallResult.makeFailure("Unable to parse the package.");
+        return install;
+    }
+
+    /**
+     * Check the package against the installed one and claim its name, so that
+     * neither another install nor an uninstall touches its files while it is
+     * prepared off the lock.
+     *
+     * @return whether the install is to be prepared, its result is set otherwise
+     */
+    private synchronized boolean beginInstall(PendingInstall install) {
+        String packageName = install.analysis.getPackageName();
+        if (packageName == null) {
+            install.result = InstallResult.makeFailure(InstallResult.INSTALL_FAILED_INVALID_APK, "Unable to parse the package.");
+            return false;
+        }
+        if (!mInstallingPackages.add(packageName)) {
+            install.result = InstallResult.makeFailure("The package is being installed.");
+            return false;
         }
+        install.packageName = packageName;
         InstallResult res = new InstallResult();
-        res.packageName = pkg.packageName;
+        res.packageName = packageName;
+        install.result = res;
         // PackageCache holds all packages, try to check if we need to update.
-        VPackage existOne = PackageCacheManager.get(pkg.packageName);
-        PackageSetting existSetting = existOne != null ? (PackageSetting) existOne.mExtras : null;
+        VPackage existOne = PackageCacheManager.get(packageName);
         if (existOne != null) {
-            if ((flags & InstallStrategy.IGNORE_NEW_VERSION) != 0) {
+            if ((install.flags & InstallStrategy.IGNORE_NEW_VERSION) != 0) {
                 res.isUpdate = true;
-                return res;
+                return false;
             }
-            if (!canUpdate(existOne, pkg, flags)) {
-                return InstallResult.makeFailure("Can not update the package (such as version downrange).");
+            if (!canUpdate(existOne, install.analysis.getVersionCode(), install.flags)) {
+                int errorCode = install.analysis.getVersionCode() < existOne.mVersionCode
+                        ? InstallResult.INSTALL_FAILED_VERSION_DOWNGRADE
+                        : InstallResult.INSTALL_FAILED_ALREADY_EXISTS;
+                install.result = InstallResult.makeFailure(errorCode,
+                        "Can not update the package (such as version downrange).");
+                return false;
             }
             res.isUpdate = true;
+            install.existSetting = (PackageSetting) existOne.mExtras;
+        }
+        return true;
+    }
+
+    private synchronized void endInstall(PendingInstall install) {
+        install.deleteStaged();
+        if (install.packageName != null) {
+            mInstallingPackages.remove(install.packageName);
+            install.packageName = null;
         }
-        File appDir = VEnvironment.getDataAppPackageDirectory(pkg.packageName);
+    }
+
+    /**
+     * Verify the package and stage its files next to the installed ones. Runs off
+     * the lock once {@link #beginInstall(PendingInstall)} claimed the package, so
+     * installs of different packages may be prepared in parallel. The installed
+     * files of an update are left alone until the commit.
+     */
+    private void prepareInstall(final PendingInstall install, FileCopier.ProgressListener listener) {
+        final ApkAnalysis analysis = install.analysis;
+        final List<ApkAnalysis> splits = install.splits;
+        int flags = install.flags;
+        String packageName = install.packageName;
+        InstallResult res = install.result;
+        PackageSetting existSetting = install.existSetting;
+        File appDir = VEnvironment.getDataAppPackageDirectory(packageName);
         File libDir = new File(appDir, "lib");
-        if (res.isUpdate) {
-            FileUtils.deleteDir(libDir);
-            VEnvironment.getOdexFile(pkg.packageName).delete();
-            VActivityManagerService.get().killAppByPkg(pkg.packageName, VUserHandle.USER_ALL);
+        // The libraries only replace the installed ones once the signatures are verified.
+        final File stagingLibDir = new File(appDir, "lib.tmp");
+        FileUtils.deleteDir(stagingLibDir);
+        if (!stagingLibDir.mkdirs()) {
+            install.result = InstallResult.makeFailure("Unable to create lib dir.");
+            return;
+        }
+        Set<String> abis = new HashSet<>(analysis.getAbis());
+        for (ApkAnalysis split : splits) {
+            abis.addAll(split.getAbis());
         }
-        if (!libDir.exists() && !libDir.mkdirs()) {
-            return InstallResult.makeFailure("Unable to create lib dir.");
+        final String abi = ApkAnalysis.selectAbi(abis);
+        // Extract the native libraries while the signatures are verified and the apk is copied.
+        FutureTask<Integer> copyNativeTask = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int result = analysis.extractNativeLibraries(stagingLibDir, abi);
+                for (ApkAnalysis split : splits) {
+                    if (result == 0) {
+                        result = split.extractNativeLibraries(stagingLibDir, abi);
+                    }
+                }
+                if (result == 0) {
+                    try {
+                        FileUtils.syncDir(stagingLibDir);
+                    } catch (IOException e) {
+                        VLog.e(TAG, "Unable to sync %s: %s", stagingLibDir.getPath(), e.getMessage());
+                        result = -1;
+                    }
+                }
+                return result;
+            }
+        });
+        sNativeCopyExecutor.execute(copyNativeTask);
+        VPackage pkg;
+        try {
+            pkg = analysis.verifySignatures();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            waitForNativeCopy(copyNativeTask);
+            FileUtils.deleteDir(stagingLibDir);
+            install.result = InstallResult.makeFailure(InstallResult.INSTALL_FAILED_NO_CERTIFICATES,
+                    "Unable to verify the signatures of the package.");
+            return;
         }
+        VLog.d(TAG, "Analyzed %s: %d splits, abis %s, primary %s, signer %s", packageName,
+                splits.size(), abis, abi, analysis.getSignatureDigest());
         boolean dependSystem = (flags & InstallStrategy.DEPEND_SYSTEM_IF_EXIST) != 0
-                && VirtualCore.get().isOutsideInstalled(pkg.packageName);
+                && VirtualCore.get().isOutsideInstalled(packageName);
 
         if (existSetting != null && existSetting.dependSystem) {
             dependSystem = false;
         }
 
-        NativeLibraryHelperCompat.copyNativeBinaries(new File(path), libDir);
+        File packageFile = analysis.getApkFile();
+        File stagedPackageFile = null;
         if (!dependSystem) {
             File privatePackageFile = new File(appDir, "base.apk");
-            File parentFolder = privatePackageFile.getParentFile();
+            stagedPackageFile = new File(appDir, "base.apk.tmp");
+            File parentFolder = stagedPackageFile.getParentFile();
             if (!parentFolder.exists() && !parentFolder.mkdirs()) {
-                VLog.w(TAG, "Warning: unable to create folder : " + privatePackageFile.getPath());
-            } else if (privatePackageFile.exists() && !privatePackageFile.delete()) {
-                VLog.w(TAG, "Warning: unable to delete file : " + privatePackageFile.getPath());
+                VLog.w(TAG, "Warning: unable to create folder : " + stagedPackageFile.getPath());
+            } else if (stagedPackageFile.exists() && !stagedPackageFile.delete()) {
+                VLog.w(TAG, "Warning: unable to delete file : " + stagedPackageFile.getPath());
             }
             try {
-                FileUtils.copyFile(packageFile, privatePackageFile);
+                long copyStart = SystemClock.elapsedRealtime();
+                int method;
+                if ((flags & InstallStrategy.MOVE_SOURCE) != 0) {
+                    method = FileCopier.move(packageFile, stagedPackageFile, listener);
+                } else {
+                    method = FileCopier.copy(packageFile, stagedPackageFile,
+                            (flags & InstallStrategy.ALLOW_HARD_LINK) != 0, listener);
+                }
+                VLog.d(TAG, "Copied %s with method %d in %d ms", packageName, method,
+                        SystemClock.elapsedRealtime() - copyStart);
             } catch (IOException e) {
-                privatePackageFile.delete();
-                return InstallResult.makeFailure("Unable to copy the package file.");
+                stagedPackageFile.delete();
+                waitForNativeCopy(copyNativeTask);
+                FileUtils.deleteDir(stagingLibDir);
+                install.result = InstallResult.makeFailure("Unable to copy the package file.");
+                return;
             }
             packageFile = privatePackageFile;
         }
-        if (existOne != null) {
-            PackageCacheManager.remove(pkg.packageName);
-        }
-        chmodPackageDictionary(packageFile);
-        PackageSetting ps;
-        if (existSetting != null) {
-            ps = existSetting;
-        } else {
-            ps = new PackageSetting();
-        }
-        ps.dependSystem = dependSystem;
-        ps.apkPath = packageFile.getPath();
-        ps.libPath = libDir.getPath();
-        ps.packageName = pkg.packageName;
-        ps.appId = VUserHandle.getAppId(mUidSystem.getOrCreateUid(pkg));
-        if (res.isUpdate) {
-            ps.lastUpdateTime = installTime;
-        } else {
-            ps.firstInstallTime = installTime;
-            ps.lastUpdateTime = installTime;
-            for (int userId : VUserManagerService.get().getUserIds()) {
-                boolean installed = userId == 0;
-                ps.setUserState(userId, false/*launched*/, false/*hidden*/, installed);
-            }
-        }
-        PackageParserEx.savePackageCache(pkg);
-        PackageCacheManager.put(pkg, ps);
-        mPersistenceLayer.save();
-        if (!dependSystem) {
-            boolean runDexOpt = false;
-            if (VirtualRuntime.isArt()) {
-                try {
-                    ArtDexOptimizer.compileDex2Oat(ps.apkPath, VEnvironment.getOdexFile(ps.packageName).getPath());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    runDexOpt = true;
-                }
+        if (!waitForNativeCopy(copyNativeTask)) {
+            if (stagedPackageFile != null) {
+                stagedPackageFile.delete();
+            }
+            FileUtils.deleteDir(stagingLibDir);
+            install.result = abi == null && !abis.isEmpty()
+                    ? InstallResult.makeFailure(InstallResult.INSTALL_FAILED_NO_MATCHING_ABIS,
+                    "No native libraries for the abis of this device.")
+                    : InstallResult.makeFailure("Unable to copy the native libraries.");
+            return;
+        }
+        if (stagedPackageFile != null) {
+            chmodPackageDictionary(stagedPackageFile);
+        }
+        if (!res.isUpdate) {
+            // Nothing reads the cache of a new package before it is committed.
+            PackageParserEx.savePackageCache(pkg);
+        }
+        install.dependSystem = dependSystem;
+        install.packageFile = packageFile;
+        install.stagedPackageFile = stagedPackageFile;
+        install.libDir = libDir;
+        install.stagingLibDir = stagingLibDir;
+        install.pkg = pkg;
+    }
+
+    /**
+     * Move the staged files of a prepared install in place. An update stops the
+     * old version first, whose apk, libraries and cache are only now replaced.
+     * <p>
+     * Should guard by this.
+     *
+     * @return whether the files are in place, the result is set otherwise
+     */
+    private boolean moveStagedFilesLocked(PendingInstall install) {
+        String packageName = install.pkg.packageName;
+        if (install.result.isUpdate) {
+            DexOptScheduler.get().cancel(packageName);
+            VActivityManagerService.get().killAppByPkg(packageName, VUserHandle.USER_ALL);
+            VEnvironment.getOdexFile(packageName).delete();
+        }
+        File oldLibDir = new File(install.libDir.getParentFile(), "lib.old");
+        FileUtils.deleteDir(oldLibDir);
+        if (install.libDir.exists() && !install.libDir.renameTo(oldLibDir)) {
+            install.result = InstallResult.makeFailure("Unable to create lib dir.");
+            return false;
+        }
+        if (!install.stagingLibDir.renameTo(install.libDir)) {
+            oldLibDir.renameTo(install.libDir);
+            install.result = InstallResult.makeFailure("Unable to create lib dir.");
+            return false;
+        }
+        install.stagingLibDir = null;
+        if (install.stagedPackageFile != null) {
+            if (!install.stagedPackageFile.renameTo(install.packageFile)) {
+                FileUtils.deleteDir(install.libDir);
+                oldLibDir.renameTo(install.libDir);
+                install.result = InstallResult.makeFailure("Unable to copy the package file.");
+                return false;
+            }
+            install.stagedPackageFile = null;
+        }
+        FileUtils.deleteDir(oldLibDir);
+        if (install.result.isUpdate) {
+            PackageParserEx.savePackageCache(install.pkg);
+        }
+        return true;
+    }
+
+    /**
+     * Register prepared packages, with a single publication and a single write
+     * of the package list.
+     * <p>
+     * Should guard by this.
+     */
+    private void commitInstallsLocked(List<PendingInstall> installs, long installTime, boolean notify) {
+        if (installs.isEmpty()) {
+            return;
+        }
+        List<PendingInstall> committed = new ArrayList<>(installs.size());
+        List<VPackage> packages = new ArrayList<>(installs.size());
+        List<PackageSetting> settings = new ArrayList<>(installs.size());
+        for (PendingInstall install : installs) {
+            if (!moveStagedFilesLocked(install)) {
+                continue;
+            }
+            VPackage pkg = install.pkg;
+            PackageSetting ps;
+            if (install.existSetting != null) {
+                // the published setting stays as it is until the new one replaces it
+                ps = new PackageSetting(install.existSetting);
             } else {
-                runDexOpt = true;
+                ps = new PackageSetting();
             }
-            if (runDexOpt) {
-                try {
-                    DexFile.loadDex(ps.apkPath, VEnvironment.getOdexFile(ps.packageName).getPath(), 0).close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            ps.dependSystem = install.dependSystem;
+            ps.apkPath = install.packageFile.getPath();
+            ps.libPath = install.libDir.getPath();
+            ps.packageName = pkg.packageName;
+            ps.appId = VUserHandle.getAppId(mUidSystem.getOrCreateUid(pkg));
+            if (install.result.isUpdate) {
+                ps.lastUpdateTime = installTime;
+            } else {
+                ps.firstInstallTime = installTime;
+                ps.lastUpdateTime = installTime;
+                for (int userId : VUserManagerService.get().getUserIds()) {
+                    boolean installed = userId == 0;
+                    ps.setUserState(userId, false/*launched*/, false/*hidden*/, installed);
                 }
             }
+            committed.add(install);
+            packages.add(pkg);
+            settings.add(ps);
+        }
+        if (committed.isEmpty()) {
+            return;
+        }
+        // An update replaces the old package in the same publication.
+        PackageCacheManager.putAll(packages, settings);
+        mPersistenceLayer.save();
+        for (int i = 0; i < committed.size(); i++) {
+            PackageSetting ps = settings.get(i);
+            PendingInstall install = committed.get(i);
+            if (!install.dependSystem) {
+                // The quick compilation makes the package runnable, off the service lock.
+                DexOptScheduler.get().schedule(ps.packageName, ps.apkPath,
+                        (install.flags & InstallStrategy.SKIP_DEX_OPT) == 0);
+            }
+            BroadcastSystem.get().startApp(packages.get(i));
         }
-        BroadcastSystem.get().startApp(pkg);
-        if (notify) {
-            notifyAppInstalled(ps, -1);
+        notifyPackageGenerationChanged();
+        for (int i = 0; i < committed.size(); i++) {
+            if (notify) {
+                notifyAppInstalled(settings.get(i), -1);
+            }
+            committed.get(i).result.isSuccess = true;
         }
-        res.isSuccess = true;
-        return res;
     }
 
-
     @Override
     public synchronized boolean installPackageAsUser(int userId, String packageName) {
         if (VUserManagerService.get().exists(userId)) {
@@ -276,8 +845,9 @@ public class VAppManagerService extends IAppManager.Stub {
             if (ps != null) {
                 if (!ps.isInstalled(userId)) {
                     ps.setInstalled(userId, true);
+                    notifyPackageGenerationChanged();
                     notifyAppInstalled(ps, userId);
-                    mPersistenceLayer.save();
+                    mPersistenceLayer.scheduleSave();
                     return true;
                 }
             }
@@ -285,6 +855,34 @@ public class VAppManagerService extends IAppManager.Stub {
         return false;
     }
 
+    /**
+     * Wait for the extraction of the native libraries. The wait goes on through an
+     * interrupt, as the staging dir is only deleted once the extraction stopped
+     * writing to it, but the interrupt fails the install and is restored.
+     *
+     * @return whether all the libraries were extracted
+     */
+    private static boolean waitForNativeCopy(FutureTask<Integer> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Integer result = task.get();
+                    return !interrupted && result != null && result == 0;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     private void chmodPackageDictionary(File packageFile) {
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -299,9 +897,9 @@ public class VAppManagerService extends IAppManager.Stub {
         }
     }
 
-    private boolean canUpdate(VPackage existOne, VPackage newOne, int flags) {
+    private boolean canUpdate(VPackage existOne, int newVersionCode, int flags) {
         if ((flags & InstallStrategy.COMPARE_VERSION) != 0) {
-            if (existOne.mVersionCode < newOne.mVersionCode) {
+            if (existOne.mVersionCode < newVersionCode) {
                 return true;
             }
         }
@@ -317,6 +915,10 @@ public class VAppManagerService extends IAppManager.Stub {
 
     @Override
     public synchronized boolean uninstallPackage(String packageName) {
+        if (mInstallingPackages.contains(packageName)) {
+            VLog.w(TAG, "Unable to uninstall %s while it is being installed.", packageName);
+            return false;
+        }
         PackageSetting ps = PackageCacheManager.getSetting(packageName);
         if (ps != null) {
             uninstallPackageFully(ps);
@@ -342,7 +944,8 @@ public class VAppManagerService extends IAppManager.Stub {
                 // Just hidden it
                 VActivityManagerService.get().killAppByPkg(packageName, userId);
                 ps.setInstalled(userId, false);
-                mPersistenceLayer.save();
+                notifyPackageGenerationChanged();
+                mPersistenceLayer.scheduleSave();
                 FileUtils.deleteDir(VEnvironment.getDataUserPackageDirectory(userId, packageName));
                 FileUtils.deleteDir(VEnvironment.getVirtualPrivateStorageDir(userId, packageName));
             }
@@ -379,13 +982,18 @@ public class VAppManagerService extends IAppManager.Stub {
                 return false;
             }
             if (userIds.length == 1) {
+                if (mInstallingPackages.contains(packageName)) {
+                    VLog.w(TAG, "Unable to uninstall %s while it is being installed.", packageName);
+                    return false;
+                }
                 uninstallPackageFully(ps);
             } else {
                 // Just hidden it
                 VActivityManagerService.get().killAppByPkg(packageName, userId);
                 ps.setInstalled(userId, false);
+                notifyPackageGenerationChanged();
                 notifyAppUninstalled(ps, userId);
-                mPersistenceLayer.save();
+                mPersistenceLayer.scheduleSave();
                 FileUtils.deleteDir(VEnvironment.getDataUserPackageDirectory(userId, packageName));
                 FileUtils.deleteDir(VEnvironment.getVirtualPrivateStorageDir(userId, packageName));
             }
@@ -397,6 +1005,7 @@ public class VAppManagerService extends IAppManager.Stub {
     private void uninstallPackageFully(PackageSetting ps) {
         String packageName = ps.packageName;
         try {
+            DexOptScheduler.get().cancel(packageName);
             BroadcastSystem.get().stopApp(packageName);
             VActivityManagerService.get().killAppByPkg(packageName, VUserHandle.USER_ALL);
             VEnvironment.getPackageResourcePath(packageName).delete();
@@ -410,6 +1019,7 @@ public class VAppManagerService extends IAppManager.Stub {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            notifyPackageGenerationChanged();
             notifyAppUninstalled(ps, -1);
         }
     }
@@ -432,8 +1042,9 @@ public class VAppManagerService extends IAppManager.Stub {
 
     @Override
     public List<InstalledAppInfo> getInstalledApps(int flags) {
-        List<InstalledAppInfo> infoList = new ArrayList<>(getInstalledAppCount());
-        for (VPackage p : PackageCacheManager.PACKAGE_CACHE.values()) {
+        Map<String, VPackage> packages = PackageCacheManager.getAll();
+        List<InstalledAppInfo> infoList = new ArrayList<>(packages.size());
+        for (VPackage p : packages.values()) {
             PackageSetting setting = (PackageSetting) p.mExtras;
             infoList.add(setting.getAppInfo());
         }
@@ -442,8 +1053,9 @@ public class VAppManagerService extends IAppManager.Stub {
 
     @Override
     public List<InstalledAppInfo> getInstalledAppsAsUser(int userId, int flags) {
-        List<InstalledAppInfo> infoList = new ArrayList<>(getInstalledAppCount());
-        for (VPackage p : PackageCacheManager.PACKAGE_CACHE.values()) {
+        Map<String, VPackage> packages = PackageCacheManager.getAll();
+        List<InstalledAppInfo> infoList = new ArrayList<>(packages.size());
+        for (VPackage p : packages.values()) {
             PackageSetting setting = (PackageSetting) p.mExtras;
             boolean visible = setting.isInstalled(userId);
             if ((flags & VirtualCore.GET_HIDDEN_APP) == 0 && setting.isHidden(userId)) {
@@ -458,12 +1070,12 @@ public class VAppManagerService extends IAppManager.Stub {
 
     @Override
     public int getInstalledAppCount() {
-        return PackageCacheManager.PACKAGE_CACHE.size();
+        return PackageCacheManager.size();
     }
 
     @Override
     public boolean isAppInstalled(String packageName) {
-        return packageName != null && PackageCacheManager.PACKAGE_CACHE.containsKey(packageName);
+        return packageName != null && PackageCacheManager.get(packageName) != null;
     }
 
     @Override
@@ -478,6 +1090,22 @@ public class VAppManagerService extends IAppManager.Stub {
         return setting.isInstalled(userId);
     }
 
+    private void notifyPackageGenerationChanged() {
+        long generation = mPackageGeneration.incrementAndGet();
+        VPackageManagerService.get().onPackageStateChanged();
+        synchronized (mGenerationObservers) {
+            int N = mGenerationObservers.beginBroadcast();
+            while (N-- > 0) {
+                try {
+                    mGenerationObservers.getBroadcastItem(N).onPackageGenerationChanged(generation);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+            mGenerationObservers.finishBroadcast();
+        }
+    }
+
     private void notifyAppInstalled(PackageSetting setting, int userId) {
         final String pkg = setting.packageName;
         int N = mRemoteCallbackList.beginBroadcast();
@@ -550,6 +1178,27 @@ public class VAppManagerService extends IAppManager.Stub {
         }
     }
 
+    @Override
+    public long registerGenerationObserver(IPackageObserver observer) {
+        mGenerationObservers.register(observer);
+        return mPackageGeneration.get();
+    }
+
+    @Override
+    public int getCompileState(String packageName) {
+        return DexOptScheduler.get().getState(packageName);
+    }
+
+    @Override
+    public void prioritizeCompile(String packageName) {
+        DexOptScheduler.get().prioritize(packageName);
+    }
+
+    @Override
+    public void cancelCompile(String packageName) {
+        DexOptScheduler.get().cancel(packageName);
+    }
+
     @Override
     public IAppRequestListener getAppRequestListener() {
         return mAppRequestListener;
@@ -580,15 +1229,13 @@ public class VAppManagerService extends IAppManager.Stub {
 
     @Override
     public InstalledAppInfo getInstalledAppInfo(String packageName, int flags) {
-        synchronized (PackageCacheManager.class) {
-            if (packageName != null) {
-                PackageSetting setting = PackageCacheManager.getSetting(packageName);
-                if (setting != null) {
-                    return setting.getAppInfo();
-                }
+        if (packageName != null) {
+            PackageSetting setting = PackageCacheManager.getSetting(packageName);
+            if (setting != null) {
+                return setting.getAppInfo();
             }
-            return null;
         }
+        return null;
     }
 
     public boolean isPackageLaunched(int userId, String packageName) {
@@ -600,7 +1247,8 @@ public class VAppManagerService extends IAppManager.Stub {
         PackageSetting ps = PackageCacheManager.getSetting(packageName);
         if (ps != null && VUserManagerService.get().exists(userId)) {
             ps.setHidden(userId, hidden);
-            mPersistenceLayer.save();
+            notifyPackageGenerationChanged();
+            mPersistenceLayer.scheduleSave();
         }
     }
 
@@ -618,6 +1266,6 @@ public class VAppManagerService extends IAppManager.Stub {
     }
 
     public void savePersistenceData() {
-        mPersistenceLayer.save();
+        mPersistenceLayer.scheduleSave();
     }
 }
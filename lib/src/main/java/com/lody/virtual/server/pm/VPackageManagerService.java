@@ -82,18 +82,13 @@ public class VPackageManagerService extends IPackageManager.Stub {
 
     private final ResolveInfo mResolveInfo;
 
-    private final ActivityIntentResolver mActivities = new ActivityIntentResolver();
-    private final ServiceIntentResolver mServices = new ServiceIntentResolver();
-    private final ActivityIntentResolver mReceivers = new ActivityIntentResolver();
-    private final ProviderIntentResolver mProviders = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? new ProviderIntentResolver() : null;
-
-    private final HashMap<ComponentName, VPackage.ProviderComponent> mProvidersByComponent = new HashMap<>();
-
-    private final HashMap<String, VPackage.PermissionComponent> mPermissions = new HashMap<>();
-    private final HashMap<String, VPackage.PermissionGroupComponent> mPermissionGroups = new HashMap<>();
-    private final HashMap<String, VPackage.ProviderComponent> mProvidersByAuthority = new HashMap<>();
-
-    private final Map<String, VPackage> mPackages = PackageCacheManager.PACKAGE_CACHE;
+    private final IntentResolutionCache mResolveCache = new IntentResolutionCache();
+    /**
+     * Published state of the installed packages. Readers take the reference once
+     * and never lock, writers build a complete new snapshot and swap it in.
+     */
+    private volatile Snapshot mSnapshot = new Snapshot(Collections.<String, VPackage>emptyMap());
+    private final Object mUsersLock = new Object();
 
 
     public VPackageManagerService() {
@@ -104,7 +99,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
 
     public static void systemReady() {
         VPackageManagerService instance = new VPackageManagerService();
-        new VUserManagerService(VirtualCore.get().getContext(), instance, new char[0], instance.mPackages);
+        new VUserManagerService(VirtualCore.get().getContext(), instance, new char[0], instance.mUsersLock);
         gService.set(instance);
     }
 
@@ -112,118 +107,33 @@ public class VPackageManagerService extends IPackageManager.Stub {
         return gService.get();
     }
 
-
-    void analyzePackageLocked(VPackage pkg) {
-        int N = pkg.activities.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.activities.get(i);
-            if (a.info.processName == null) {
-                a.info.processName = a.info.packageName;
-            }
-            mActivities.addActivity(a, "activity");
-        }
-        N = pkg.services.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ServiceComponent a = pkg.services.get(i);
-            if (a.info.processName == null) {
-                a.info.processName = a.info.packageName;
-            }
-            mServices.addService(a);
-        }
-        N = pkg.receivers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.receivers.get(i);
-            if (a.info.processName == null) {
-                a.info.processName = a.info.packageName;
-            }
-            mReceivers.addActivity(a, "receiver");
-        }
-
-        N = pkg.providers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ProviderComponent p = pkg.providers.get(i);
-            if (p.info.processName == null) {
-                p.info.processName = p.info.packageName;
-            }
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                mProviders.addProvider(p);
-            }
-            String names[] = p.info.authority.split(";");
-            for (String name : names) {
-                if (!mProvidersByAuthority.containsKey(name)) {
-                    mProvidersByAuthority.put(name, p);
-                }
-            }
-            mProvidersByComponent.put(p.getComponentName(), p);
-        }
-
-        N = pkg.permissions.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionComponent permission = pkg.permissions.get(i);
-            mPermissions.put(permission.className, permission);
-        }
-        N = pkg.permissionGroups.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionGroupComponent group = pkg.permissionGroups.get(i);
-            mPermissionGroups.put(group.className, group);
-        }
+    /**
+     * Called when the per-user state of a package changed, the cached
+     * resolutions may include or omit it.
+     */
+    void onPackageStateChanged() {
+        mResolveCache.invalidate();
     }
 
-    void deletePackageLocked(String packageName) {
-        VPackage pkg = mPackages.get(packageName);
-        if (pkg == null) {
-            return;
-        }
-        int N = pkg.activities.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.activities.get(i);
-            mActivities.removeActivity(a, "activity");
-        }
-        N = pkg.services.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ServiceComponent a = pkg.services.get(i);
-            mServices.removeService(a);
-        }
-        N = pkg.receivers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ActivityComponent a = pkg.receivers.get(i);
-            mReceivers.removeActivity(a, "receiver");
-        }
-
-        N = pkg.providers.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.ProviderComponent p = pkg.providers.get(i);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                mProviders.removeProvider(p);
-            }
-            String names[] = p.info.authority.split(";");
-            for (String name : names) {
-                mProvidersByAuthority.remove(name);
-            }
-            mProvidersByComponent.remove(p.getComponentName());
-        }
 
-        N = pkg.permissions.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionComponent permission = pkg.permissions.get(i);
-            mPermissions.remove(permission.className);
-        }
-        N = pkg.permissionGroups.size();
-        for (int i = 0; i < N; i++) {
-            VPackage.PermissionGroupComponent group = pkg.permissionGroups.get(i);
-            mPermissionGroups.remove(group.className);
-        }
+    /**
+     * Publish a new set of packages, indexed on first query. Callers serialize on
+     * {@link PackageCacheManager}.
+     */
+    void publishPackages(Map<String, VPackage> packages) {
+        mSnapshot = new Snapshot(packages);
+        // after the swap, so that no result computed against the old snapshot survives
+        mResolveCache.invalidate();
     }
 
     @Override
     public List<String> getSharedLibraries(String packageName) {
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                return p.usesLibraries;
-            }
-            return null;
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(packageName);
+        if (p != null) {
+            return p.usesLibraries;
         }
+        return null;
     }
 
     @Override
@@ -238,12 +148,11 @@ public class VPackageManagerService extends IPackageManager.Stub {
     @Override
     public PackageInfo getPackageInfo(String packageName, int flags, int userId) {
         checkUserId(userId);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                return generatePackageInfo(p, ps, flags, userId);
-            }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(packageName);
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            return generatePackageInfo(p, ps, flags, userId);
         }
         return null;
     }
@@ -284,16 +193,15 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ActivityInfo getActivityInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ActivityComponent a = mActivities.mActivities.get(component);
-                if (a != null) {
-                    ActivityInfo activityInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, activityInfo, userId);
-                    return activityInfo;
-                }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ActivityComponent a = findComponent(p.getActivities(), component.getClassName());
+            if (a != null) {
+                ActivityInfo activityInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(ps, activityInfo, userId);
+                return activityInfo;
             }
         }
         return null;
@@ -301,35 +209,34 @@ public class VPackageManagerService extends IPackageManager.Stub {
 
     @Override
     public boolean activitySupportsIntent(ComponentName component, Intent intent, String resolvedType) {
-        synchronized (mPackages) {
-            VPackage.ActivityComponent a = mActivities.mActivities.get(component);
-            if (a == null) {
-                return false;
-            }
-            for (int i = 0; i < a.intents.size(); i++) {
-                if (a.intents.get(i).filter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(),
-                        intent.getCategories(), TAG) >= 0) {
-                    return true;
-                }
-            }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        VPackage.ActivityComponent a = p != null ? findComponent(p.getActivities(), component.getClassName()) : null;
+        if (a == null) {
             return false;
         }
+        for (int i = 0; i < a.intents.size(); i++) {
+            if (a.intents.get(i).filter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(),
+                    intent.getCategories(), TAG) >= 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public ActivityInfo getReceiverInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ActivityComponent a = mReceivers.mActivities.get(component);
-                if (a != null) {
-                    ActivityInfo receiverInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, receiverInfo, userId);
-                    return receiverInfo;
-                }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ActivityComponent a = findComponent(p.getReceivers(), component.getClassName());
+            if (a != null) {
+                ActivityInfo receiverInfo = PackageParserEx.generateActivityInfo(a, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(ps, receiverInfo, userId);
+                return receiverInfo;
             }
         }
         return null;
@@ -339,16 +246,15 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ServiceInfo getServiceInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ServiceComponent s = mServices.mServices.get(component);
-                if (s != null) {
-                    ServiceInfo serviceInfo = PackageParserEx.generateServiceInfo(s, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, serviceInfo, userId);
-                    return serviceInfo;
-                }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ServiceComponent s = findComponent(p.getServices(), component.getClassName());
+            if (s != null) {
+                ServiceInfo serviceInfo = PackageParserEx.generateServiceInfo(s, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(ps, serviceInfo, userId);
+                return serviceInfo;
             }
         }
         return null;
@@ -358,16 +264,15 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ProviderInfo getProviderInfo(ComponentName component, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(component.getPackageName());
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                VPackage.ProviderComponent provider = mProvidersByComponent.get(component);
-                if (provider != null) {
-                    ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
-                    ComponentFixer.fixComponentInfo(ps, providerInfo, userId);
-                    return providerInfo;
-                }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(component.getPackageName());
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            VPackage.ProviderComponent provider = findComponent(p.getProviders(), component.getClassName());
+            if (provider != null) {
+                ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
+                ComponentFixer.fixComponentInfo(ps, providerInfo, userId);
+                return providerInfo;
             }
         }
         return null;
@@ -440,18 +345,27 @@ public class VPackageManagerService extends IPackageManager.Stub {
             return list;
         }
 
+        IntentResolutionCache.Ticket ticket = mResolveCache.begin(IntentResolutionCache.KIND_ACTIVITY,
+                intent, resolvedType, flags, userId);
+        List<ResolveInfo> cached = mResolveCache.get(ticket);
+        if (cached != null) {
+            return cached;
+        }
+        List<ResolveInfo> result;
         // reader
-        synchronized (mPackages) {
-            final String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mActivities.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
+        Snapshot snapshot = mSnapshot;
+        final String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            result = snapshot.activities().queryIntent(intent, resolvedType, flags, userId);
+        } else {
+            final VPackage pkg = snapshot.packages.get(pkgName);
             if (pkg != null) {
-                return mActivities.queryIntentForPackage(intent, resolvedType, flags, pkg.activities, userId);
+                result = snapshot.activities().queryIntentForPackage(intent, resolvedType, flags, pkg.getActivities(), userId);
+            } else {
+                result = Collections.emptyList();
             }
-            return Collections.emptyList();
         }
+        return mResolveCache.put(ticket, result);
     }
 
     @Override
@@ -478,18 +392,27 @@ public class VPackageManagerService extends IPackageManager.Stub {
             return list;
         }
 
+        IntentResolutionCache.Ticket ticket = mResolveCache.begin(IntentResolutionCache.KIND_RECEIVER,
+                intent, resolvedType, flags, userId);
+        List<ResolveInfo> cached = mResolveCache.get(ticket);
+        if (cached != null) {
+            return cached;
+        }
+        List<ResolveInfo> result;
         // reader
-        synchronized (mPackages) {
-            String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mReceivers.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
+        Snapshot snapshot = mSnapshot;
+        String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            result = snapshot.receivers().queryIntent(intent, resolvedType, flags, userId);
+        } else {
+            final VPackage pkg = snapshot.packages.get(pkgName);
             if (pkg != null) {
-                return mReceivers.queryIntentForPackage(intent, resolvedType, flags, pkg.receivers, userId);
+                result = snapshot.receivers().queryIntentForPackage(intent, resolvedType, flags, pkg.getReceivers(), userId);
+            } else {
+                result = Collections.emptyList();
             }
-            return Collections.emptyList();
         }
+        return mResolveCache.put(ticket, result);
     }
 
     @Override
@@ -531,18 +454,27 @@ public class VPackageManagerService extends IPackageManager.Stub {
             return list;
         }
 
+        IntentResolutionCache.Ticket ticket = mResolveCache.begin(IntentResolutionCache.KIND_SERVICE,
+                intent, resolvedType, flags, userId);
+        List<ResolveInfo> cached = mResolveCache.get(ticket);
+        if (cached != null) {
+            return cached;
+        }
+        List<ResolveInfo> result;
         // reader
-        synchronized (mPackages) {
-            String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mServices.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
+        Snapshot snapshot = mSnapshot;
+        String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            result = snapshot.services().queryIntent(intent, resolvedType, flags, userId);
+        } else {
+            final VPackage pkg = snapshot.packages.get(pkgName);
             if (pkg != null) {
-                return mServices.queryIntentForPackage(intent, resolvedType, flags, pkg.services, userId);
+                result = snapshot.services().queryIntentForPackage(intent, resolvedType, flags, pkg.getServices(), userId);
+            } else {
+                result = Collections.emptyList();
             }
-            return Collections.emptyList();
         }
+        return mResolveCache.put(ticket, result);
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -569,18 +501,27 @@ public class VPackageManagerService extends IPackageManager.Stub {
             }
             return list;
         }
+        IntentResolutionCache.Ticket ticket = mResolveCache.begin(IntentResolutionCache.KIND_PROVIDER,
+                intent, resolvedType, flags, userId);
+        List<ResolveInfo> cached = mResolveCache.get(ticket);
+        if (cached != null) {
+            return cached;
+        }
+        List<ResolveInfo> result;
         // reader
-        synchronized (mPackages) {
-            String pkgName = intent.getPackage();
-            if (pkgName == null) {
-                return mProviders.queryIntent(intent, resolvedType, flags, userId);
-            }
-            final VPackage pkg = mPackages.get(pkgName);
+        Snapshot snapshot = mSnapshot;
+        String pkgName = intent.getPackage();
+        if (pkgName == null) {
+            result = snapshot.providers().queryIntent(intent, resolvedType, flags, userId);
+        } else {
+            final VPackage pkg = snapshot.packages.get(pkgName);
             if (pkg != null) {
-                return mProviders.queryIntentForPackage(intent, resolvedType, flags, pkg.providers, userId);
+                result = snapshot.providers().queryIntentForPackage(intent, resolvedType, flags, pkg.getProviders(), userId);
+            } else {
+                result = Collections.emptyList();
             }
-            return Collections.emptyList();
         }
+        return mResolveCache.put(ticket, result);
     }
 
     @Override
@@ -590,10 +531,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
         flags = updateFlagsNought(flags);
         ArrayList<ProviderInfo> finalList = new ArrayList<>(3);
         // reader
-        synchronized (mPackages) {
-            for (VPackage.ProviderComponent p : mProvidersByComponent.values()) {
-                PackageSetting ps = (PackageSetting) p.owner.mExtras;
-                if (processName == null || ps.appId == VUserHandle.getAppId(vuid) && p.info.processName.equals(processName)) {
+        Snapshot snapshot = mSnapshot;
+        int appId = VUserHandle.getAppId(vuid);
+        for (VPackage pkg : snapshot.packages.values()) {
+            PackageSetting ps = (PackageSetting) pkg.mExtras;
+            if (processName != null && ps.appId != appId) {
+                // the providers of the other apps are not decoded
+                continue;
+            }
+            for (VPackage.ProviderComponent p : pkg.getProviders()) {
+                if (processName == null || p.info.processName.equals(processName)) {
                     ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(p, flags, ps.readUserState(userId), userId);
                     finalList.add(providerInfo);
                 }
@@ -608,14 +555,13 @@ public class VPackageManagerService extends IPackageManager.Stub {
     @Override
     public VParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId) {
         checkUserId(userId);
-        ArrayList<PackageInfo> pkgList = new ArrayList<>(mPackages.size());
-        synchronized (mPackages) {
-            for (VPackage p : mPackages.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                PackageInfo info = generatePackageInfo(p, ps, flags, userId);
-                if (info != null) {
-                    pkgList.add(info);
-                }
+        Snapshot snapshot = mSnapshot;
+        ArrayList<PackageInfo> pkgList = new ArrayList<>(snapshot.packages.size());
+        for (VPackage p : snapshot.packages.values()) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            PackageInfo info = generatePackageInfo(p, ps, flags, userId);
+            if (info != null) {
+                pkgList.add(info);
             }
         }
         return new VParceledListSlice<>(pkgList);
@@ -625,73 +571,66 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public VParceledListSlice<ApplicationInfo> getInstalledApplications(int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        ArrayList<ApplicationInfo> list = new ArrayList<>(mPackages.size());
-        synchronized (mPackages) {
-            for (VPackage p : mPackages.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                ApplicationInfo info = PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId), userId);
-                list.add(info);
-            }
+        Snapshot snapshot = mSnapshot;
+        ArrayList<ApplicationInfo> list = new ArrayList<>(snapshot.packages.size());
+        for (VPackage p : snapshot.packages.values()) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            ApplicationInfo info = PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId), userId);
+            list.add(info);
         }
         return new VParceledListSlice<>(list);
     }
 
     @Override
     public PermissionInfo getPermissionInfo(String name, int flags) {
-        synchronized (mPackages) {
-            VPackage.PermissionComponent p = mPermissions.get(name);
-            if (p != null) {
-                return new PermissionInfo(p.info);
-            }
+        Snapshot snapshot = mSnapshot;
+        VPackage.PermissionComponent p = snapshot.permissions().get(name);
+        if (p != null) {
+            return new PermissionInfo(p.info);
         }
         return null;
     }
 
     @Override
     public List<PermissionInfo> queryPermissionsByGroup(String group, int flags) {
-        synchronized (mPackages) {
-            return null;
-        }
+        return null;
     }
 
     @Override
     public PermissionGroupInfo getPermissionGroupInfo(String name, int flags) {
-        synchronized (mPackages) {
-            VPackage.PermissionGroupComponent p = mPermissionGroups.get(name);
-            if (p != null) {
-                return new PermissionGroupInfo(p.info);
-            }
+        Snapshot snapshot = mSnapshot;
+        VPackage.PermissionGroupComponent p = snapshot.permissionGroups().get(name);
+        if (p != null) {
+            return new PermissionGroupInfo(p.info);
         }
         return null;
     }
 
     @Override
     public List<PermissionGroupInfo> getAllPermissionGroups(int flags) {
-        synchronized (mPackages) {
-            final int N = mPermissionGroups.size();
-            ArrayList<PermissionGroupInfo> out = new ArrayList<>(N);
-            for (VPackage.PermissionGroupComponent pg : mPermissionGroups.values()) {
-                out.add(new PermissionGroupInfo(pg.info));
-            }
-            return out;
+        Snapshot snapshot = mSnapshot;
+        Map<String, VPackage.PermissionGroupComponent> permissionGroups = snapshot.permissionGroups();
+        ArrayList<PermissionGroupInfo> out = new ArrayList<>(permissionGroups.size());
+        for (VPackage.PermissionGroupComponent pg : permissionGroups.values()) {
+            out.add(new PermissionGroupInfo(pg.info));
         }
+        return out;
     }
 
     @Override
     public ProviderInfo resolveContentProvider(String name, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            final VPackage.ProviderComponent provider = mProvidersByAuthority.get(name);
-            if (provider != null) {
-                PackageSetting ps = (PackageSetting) provider.owner.mExtras;
-                ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
-                if (providerInfo != null) {
-                    VPackage p = mPackages.get(providerInfo.packageName);
-                    PackageSetting settings = (PackageSetting) p.mExtras;
-                    ComponentFixer.fixComponentInfo(settings, providerInfo, userId);
-                    return providerInfo;
-                }
+        Snapshot snapshot = mSnapshot;
+        final VPackage.ProviderComponent provider = snapshot.providersByAuthority().get(name);
+        if (provider != null) {
+            PackageSetting ps = (PackageSetting) provider.owner.mExtras;
+            ProviderInfo providerInfo = PackageParserEx.generateProviderInfo(provider, flags, ps.readUserState(userId), userId);
+            if (providerInfo != null) {
+                VPackage p = snapshot.packages.get(providerInfo.packageName);
+                PackageSetting settings = (PackageSetting) p.mExtras;
+                ComponentFixer.fixComponentInfo(settings, providerInfo, userId);
+                return providerInfo;
             }
         }
         return null;
@@ -701,12 +640,11 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public ApplicationInfo getApplicationInfo(String packageName, int flags, int userId) {
         checkUserId(userId);
         flags = updateFlagsNought(flags);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                return PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId), userId);
-            }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(packageName);
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            return PackageParserEx.generateApplicationInfo(p, flags, ps.readUserState(userId), userId);
         }
         return null;
     }
@@ -715,62 +653,58 @@ public class VPackageManagerService extends IPackageManager.Stub {
     public String[] getPackagesForUid(int uid) {
         int userId = VUserHandle.getUserId(uid);
         checkUserId(userId);
-        synchronized (this) {
-            List<String> pkgList = new ArrayList<>(2);
-            for (VPackage p : mPackages.values()) {
-                PackageSetting settings = (PackageSetting) p.mExtras;
-                if (VUserHandle.getUid(userId, settings.appId) == uid) {
-                    pkgList.add(p.packageName);
-                }
+        Snapshot snapshot = mSnapshot;
+        List<String> pkgList = new ArrayList<>(2);
+        for (VPackage p : snapshot.packages.values()) {
+            PackageSetting settings = (PackageSetting) p.mExtras;
+            if (VUserHandle.getUid(userId, settings.appId) == uid) {
+                pkgList.add(p.packageName);
             }
-            return pkgList.toArray(new String[pkgList.size()]);
         }
+        return pkgList.toArray(new String[pkgList.size()]);
     }
 
     @Override
     public int getPackageUid(String packageName, int userId) {
         checkUserId(userId);
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p != null) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                return VUserHandle.getUid(userId, ps.appId);
-            }
-            return -1;
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(packageName);
+        if (p != null) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            return VUserHandle.getUid(userId, ps.appId);
         }
+        return -1;
     }
 
     @Override
     public String getNameForUid(int uid) {
         int appId = VUserHandle.getAppId(uid);
-        synchronized (mPackages) {
-            for (VPackage p : mPackages.values()) {
-                PackageSetting ps = (PackageSetting) p.mExtras;
-                if (ps.appId == appId) {
-                    return ps.packageName;
-                }
+        Snapshot snapshot = mSnapshot;
+        for (VPackage p : snapshot.packages.values()) {
+            PackageSetting ps = (PackageSetting) p.mExtras;
+            if (ps.appId == appId) {
+                return ps.packageName;
             }
-            return null;
         }
+        return null;
     }
 
 
     @Override
     public List<String> querySharedPackages(String packageName) {
-        synchronized (mPackages) {
-            VPackage p = mPackages.get(packageName);
-            if (p == null || p.mSharedUserId == null) {
-                // noinspection unchecked
-                return Collections.EMPTY_LIST;
-            }
-            ArrayList<String> list = new ArrayList<>();
-            for (VPackage one : mPackages.values()) {
-                if (TextUtils.equals(one.mSharedUserId, p.mSharedUserId)) {
-                    list.add(one.packageName);
-                }
+        Snapshot snapshot = mSnapshot;
+        VPackage p = snapshot.packages.get(packageName);
+        if (p == null || p.mSharedUserId == null) {
+            // noinspection unchecked
+            return Collections.EMPTY_LIST;
+        }
+        ArrayList<String> list = new ArrayList<>();
+        for (VPackage one : snapshot.packages.values()) {
+            if (TextUtils.equals(one.mSharedUserId, p.mSharedUserId)) {
+                list.add(one.packageName);
             }
-            return list;
         }
+        return list;
     }
 
     @Override
@@ -789,41 +723,201 @@ public class VPackageManagerService extends IPackageManager.Stub {
     }
 
     void createNewUser(int userId, File userPath) {
-        for (VPackage p : mPackages.values()) {
+        for (VPackage p : mSnapshot.packages.values()) {
             PackageSetting setting = (PackageSetting) p.mExtras;
             setting.modifyUserState(userId);
         }
     }
 
     void cleanUpUser(int userId) {
-        for (VPackage p : mPackages.values()) {
+        for (VPackage p : mSnapshot.packages.values()) {
             PackageSetting ps = (PackageSetting) p.mExtras;
             ps.removeUser(userId);
         }
     }
 
-    private final class ActivityIntentResolver extends IntentResolver<VPackage.ActivityIntentInfo, ResolveInfo> {
-        // Keys are String (activity class name), values are Activity.
-        private final HashMap<ComponentName, VPackage.ActivityComponent> mActivities = new HashMap<>();
-        private int mFlags;
-
-        public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
-            mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
-            return super.queryIntent(intent, resolvedType, defaultOnly, userId);
+    private static <C extends VPackage.Component<?>> C findComponent(List<C> components, String className) {
+        for (C component : components) {
+            if (className.equals(component.className)) {
+                return component;
+            }
         }
+        return null;
+    }
 
-        List<ResolveInfo> queryIntent(Intent intent, String resolvedType, int flags, int userId) {
-            mFlags = flags;
-            return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
+    /**
+     * The packages, and their components indexed per kind. An index is built, and
+     * the component tables it needs decoded, on its first query; the lookups of a
+     * single component only decode the tables of its package. Never modified once
+     * built.
+     */
+    private final class Snapshot {
+        final Map<String, VPackage> packages;
+        private volatile ActivityIntentResolver mActivities;
+        private volatile ServiceIntentResolver mServices;
+        private volatile ActivityIntentResolver mReceivers;
+        private volatile ProviderIntentResolver mProviders;
+        private volatile Map<String, VPackage.ProviderComponent> mProvidersByAuthority;
+        private volatile Map<String, VPackage.PermissionComponent> mPermissions;
+        private volatile Map<String, VPackage.PermissionGroupComponent> mPermissionGroups;
+
+        Snapshot(Map<String, VPackage> packages) {
+            this.packages = packages;
+        }
+
+        ActivityIntentResolver activities() {
+            ActivityIntentResolver resolver = mActivities;
+            if (resolver == null) {
+                synchronized (this) {
+                    resolver = mActivities;
+                    if (resolver == null) {
+                        resolver = new ActivityIntentResolver();
+                        for (VPackage pkg : packages.values()) {
+                            for (VPackage.ActivityComponent a : pkg.getActivities()) {
+                                resolver.addActivity(a, "activity");
+                                mResolveCache.noteFilters(a.intents);
+                            }
+                        }
+                        mActivities = resolver;
+                    }
+                }
+            }
+            return resolver;
+        }
+
+        ServiceIntentResolver services() {
+            ServiceIntentResolver resolver = mServices;
+            if (resolver == null) {
+                synchronized (this) {
+                    resolver = mServices;
+                    if (resolver == null) {
+                        resolver = new ServiceIntentResolver();
+                        for (VPackage pkg : packages.values()) {
+                            for (VPackage.ServiceComponent s : pkg.getServices()) {
+                                resolver.addService(s);
+                                mResolveCache.noteFilters(s.intents);
+                            }
+                        }
+                        mServices = resolver;
+                    }
+                }
+            }
+            return resolver;
+        }
+
+        ActivityIntentResolver receivers() {
+            ActivityIntentResolver resolver = mReceivers;
+            if (resolver == null) {
+                synchronized (this) {
+                    resolver = mReceivers;
+                    if (resolver == null) {
+                        resolver = new ActivityIntentResolver();
+                        for (VPackage pkg : packages.values()) {
+                            for (VPackage.ActivityComponent a : pkg.getReceivers()) {
+                                resolver.addActivity(a, "receiver");
+                                mResolveCache.noteFilters(a.intents);
+                            }
+                        }
+                        mReceivers = resolver;
+                    }
+                }
+            }
+            return resolver;
+        }
+
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        ProviderIntentResolver providers() {
+            ProviderIntentResolver resolver = mProviders;
+            if (resolver == null) {
+                synchronized (this) {
+                    resolver = mProviders;
+                    if (resolver == null) {
+                        resolver = new ProviderIntentResolver();
+                        for (VPackage pkg : packages.values()) {
+                            for (VPackage.ProviderComponent p : pkg.getProviders()) {
+                                resolver.addProvider(p);
+                                mResolveCache.noteFilters(p.intents);
+                            }
+                        }
+                        mProviders = resolver;
+                    }
+                }
+            }
+            return resolver;
+        }
+
+        Map<String, VPackage.ProviderComponent> providersByAuthority() {
+            Map<String, VPackage.ProviderComponent> map = mProvidersByAuthority;
+            if (map == null) {
+                synchronized (this) {
+                    map = mProvidersByAuthority;
+                    if (map == null) {
+                        map = new HashMap<>();
+                        for (VPackage pkg : packages.values()) {
+                            for (VPackage.ProviderComponent p : pkg.getProviders()) {
+                                String names[] = p.info.authority.split(";");
+                                for (String name : names) {
+                                    if (!map.containsKey(name)) {
+                                        map.put(name, p);
+                                    }
+                                }
+                            }
+                        }
+                        mProvidersByAuthority = map;
+                    }
+                }
+            }
+            return map;
+        }
+
+        Map<String, VPackage.PermissionComponent> permissions() {
+            Map<String, VPackage.PermissionComponent> map = mPermissions;
+            if (map == null) {
+                synchronized (this) {
+                    map = mPermissions;
+                    if (map == null) {
+                        map = new HashMap<>();
+                        for (VPackage pkg : packages.values()) {
+                            for (VPackage.PermissionComponent permission : pkg.getPermissions()) {
+                                map.put(permission.className, permission);
+                            }
+                        }
+                        mPermissions = map;
+                    }
+                }
+            }
+            return map;
+        }
+
+        Map<String, VPackage.PermissionGroupComponent> permissionGroups() {
+            Map<String, VPackage.PermissionGroupComponent> map = mPermissionGroups;
+            if (map == null) {
+                synchronized (this) {
+                    map = mPermissionGroups;
+                    if (map == null) {
+                        map = new HashMap<>();
+                        for (VPackage pkg : packages.values()) {
+                            for (VPackage.PermissionGroupComponent group : pkg.getPermissionGroups()) {
+                                map.put(group.className, group);
+                            }
+                        }
+                        mPermissionGroups = map;
+                    }
+                }
+            }
+            return map;
         }
+    }
+
+    private final class ActivityIntentResolver extends IntentResolver<VPackage.ActivityIntentInfo, ResolveInfo> {
+        // Keys are String (activity class name), values are Activity.
+        private final HashMap<ComponentName, VPackage.ActivityComponent> mActivities = new HashMap<>();
 
         List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
                                                 ArrayList<VPackage.ActivityComponent> packageActivities, int userId) {
             if (packageActivities == null) {
                 return null;
             }
-            mFlags = flags;
-            final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
             final int N = packageActivities.size();
             ArrayList<VPackage.ActivityIntentInfo[]> listCut = new ArrayList<VPackage.ActivityIntentInfo[]>(
                     N);
@@ -838,7 +932,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
                     listCut.add(array);
                 }
             }
-            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
+            return super.queryIntentFromList(intent, resolvedType, flags, listCut, userId);
         }
 
         public final void addActivity(VPackage.ActivityComponent a, String type) {
@@ -855,15 +949,6 @@ public class VPackageManagerService extends IPackageManager.Stub {
             }
         }
 
-        public final void removeActivity(VPackage.ActivityComponent a, String type) {
-            mActivities.remove(a.getComponentName());
-            final int NI = a.intents.size();
-            for (int j = 0; j < NI; j++) {
-                VPackage.ActivityIntentInfo intent = a.intents.get(j);
-                removeFilter(intent);
-            }
-        }
-
         @Override
         protected boolean allowFilterResult(VPackage.ActivityIntentInfo filter, List<ResolveInfo> dest) {
             ActivityInfo filterAi = filter.activity.info;
@@ -892,16 +977,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
 
         @Override
-        protected ResolveInfo newResult(VPackage.ActivityIntentInfo info, int match, int userId) {
+        protected ResolveInfo newResult(VPackage.ActivityIntentInfo info, int match, int flags, int userId) {
             final VPackage.ActivityComponent activity = info.activity;
             PackageSetting ps = (PackageSetting) activity.owner.mExtras;
-            ActivityInfo ai = PackageParserEx.generateActivityInfo(activity, mFlags, ps.readUserState(userId), userId);
+            ActivityInfo ai = PackageParserEx.generateActivityInfo(activity, flags, ps.readUserState(userId), userId);
             if (ai == null) {
                 return null;
             }
             final ResolveInfo res = new ResolveInfo();
             res.activityInfo = ai;
-            if ((mFlags & PackageManager.GET_RESOLVED_FILTER) != 0) {
+            if ((flags & PackageManager.GET_RESOLVED_FILTER) != 0) {
                 res.filter = info.filter;
             }
             res.priority = info.filter.getPriority();
@@ -937,25 +1022,12 @@ public class VPackageManagerService extends IPackageManager.Stub {
     private final class ServiceIntentResolver extends IntentResolver<VPackage.ServiceIntentInfo, ResolveInfo> {
         // Keys are String (activity class name), values are Activity.
         private final HashMap<ComponentName, VPackage.ServiceComponent> mServices = new HashMap<>();
-        private int mFlags;
-
-        public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, boolean defaultOnly, int userId) {
-            mFlags = defaultOnly ? PackageManager.MATCH_DEFAULT_ONLY : 0;
-            return super.queryIntent(intent, resolvedType, defaultOnly, userId);
-        }
-
-        public List<ResolveInfo> queryIntent(Intent intent, String resolvedType, int flags, int userId) {
-            mFlags = flags;
-            return super.queryIntent(intent, resolvedType, (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0, userId);
-        }
 
         public List<ResolveInfo> queryIntentForPackage(Intent intent, String resolvedType, int flags,
                                                        ArrayList<VPackage.ServiceComponent> packageServices, int userId) {
             if (packageServices == null) {
                 return null;
             }
-            mFlags = flags;
-            final boolean defaultOnly = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
             final int N = packageServices.size();
             ArrayList<VPackage.ServiceIntentInfo[]> listCut = new ArrayList<VPackage.ServiceIntentInfo[]>(N);
 
@@ -968,7 +1040,7 @@ public class VPackageManagerService extends IPackageManager.Stub {
                     listCut.add(array);
                 }
             }
-            return super.queryIntentFromList(intent, resolvedType, defaultOnly, listCut, userId);
+            return super.queryIntentFromList(intent, resolvedType, flags, listCut, userId);
         }
 
         public final void addService(VPackage.ServiceComponent s) {
@@ -981,16 +1053,6 @@ public class VPackageManagerService extends IPackageManager.Stub {
             }
         }
 
-        public final void removeService(VPackage.ServiceComponent s) {
-            mServices.remove(s.getComponentName());
-            final int NI = s.intents.size();
-            int j;
-            for (j = 0; j < NI; j++) {
-                VPackage.ServiceIntentInfo intent = s.intents.get(j);
-                removeFilter(intent);
-            }
-        }
-
         @Override
         protected boolean allowFilterResult(VPackage.ServiceIntentInfo filter, List<ResolveInfo> dest) {
             ServiceInfo filterSi = filter.service.info;
@@ -1020,16 +1082,16 @@ public class VPackageManagerService extends IPackageManager.Stub {
         }
 
         @Override
-        protected ResolveInfo newResult(VPackage.ServiceIntentInfo filter, int match, int userId) {
+        protected ResolveInfo newResult(VPackage.ServiceIntentInfo filter, int match, int flags, int userId) {
             final VPackage.ServiceComponent service = filter.service;
             PackageSetting ps = (PackageSetting) service.owner.mExtras;
-            ServiceInfo si = PackageParserEx.generateServiceInfo(service, mFlags, ps.readUserState(userId), userId);
+            ServiceInfo si = PackageParserEx.generateServiceInfo(service, flags, ps.readUserState(userId), userId);
             if (si == null) {
                 return null;
             }
             final ResolveInfo res = new ResolveInfo();
             res.serviceInfo = si;
-            if ((mFlags & PackageManager.GET_RESOLVED_FILTER) != 0) {
+            if ((flags & PackageManager.GET_RESOLVED_FILTER) != 0) {
                 res.filter = filter.filter;
             }
             res.priority = filter.filter.getPriority();
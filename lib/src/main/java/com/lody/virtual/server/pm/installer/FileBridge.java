@@ -50,6 +50,14 @@ public class FileBridge extends Thread {
     private final FileDescriptor mClient = new FileDescriptor();
 
     private volatile boolean mClosed;
+    private ProgressListener mListener;
+
+    public interface ProgressListener {
+        /**
+         * Called on the bridge thread as the bytes are written to the target.
+         */
+        void onBytesWritten(long bytes);
+    }
 
 
     public FileBridge() {
@@ -75,6 +83,10 @@ public class FileBridge extends Thread {
         mTarget = target;
     }
 
+    public void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
     public FileDescriptor getClientSocket() {
         return mClient;
     }
@@ -87,7 +99,8 @@ public class FileBridge extends Thread {
                 final int cmd = FileUtils.peekInt(temp, 0, ByteOrder.BIG_ENDIAN);
                 if (cmd == CMD_WRITE) {
                     // Shuttle data into local file
-                    int len = FileUtils.peekInt(temp, 4, ByteOrder.BIG_ENDIAN);
+                    final int total = FileUtils.peekInt(temp, 4, ByteOrder.BIG_ENDIAN);
+                    int len = total;
                     while (len > 0) {
                         int n = read(mServer, temp, 0, Math.min(temp.length, len));
                         if (n == -1) {
@@ -97,6 +110,9 @@ public class FileBridge extends Thread {
                         write(mTarget, temp, 0, n);
                         len -= n;
                     }
+                    if (mListener != null) {
+                        mListener.onBytesWritten(total);
+                    }
 
                 } else if (cmd == CMD_FSYNC) {
                     // Sync and echo back to confirm
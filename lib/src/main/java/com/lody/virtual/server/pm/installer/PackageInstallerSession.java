@@ -2,7 +2,6 @@ package com.lody.virtual.server.pm.installer;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.Intent;
 import android.content.IntentSender;
 import android.content.pm.IPackageInstallObserver2;
 import android.content.pm.IPackageInstallerSession;
@@ -18,8 +17,12 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.text.TextUtils;
 
+import com.lody.virtual.client.core.InstallStrategy;
+import com.lody.virtual.helper.utils.FileCopier;
 import com.lody.virtual.helper.utils.FileUtils;
 import com.lody.virtual.helper.utils.VLog;
+import com.lody.virtual.remote.InstallResult;
+import com.lody.virtual.server.pm.VAppManagerService;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -71,12 +74,22 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
     private final Object mLock = new Object();
 
     private float mClientProgress = 0;
+    /**
+     * Bytes written through {@link #openWrite}, and the ones announced by its callers.
+     */
+    private long mStagedBytes = 0;
+    private long mExpectedBytes = 0;
     private float mInternalProgress = 0;
     private float mProgress = 0;
     private float mReportedProgress = -1;
     private boolean mPrepared = false;
     private boolean mSealed = false;
     private boolean mDestroyed = false;
+    /**
+     * Set while the staged files are handed to the install, the session can't be
+     * abandoned meanwhile.
+     */
+    private boolean mCommitting = false;
     private int mFinalStatus;
     private String mFinalMessage;
 
@@ -94,6 +107,15 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
     private File mResolvedBaseFile;
     private final List<File> mResolvedStagedFiles = new ArrayList<>();
 
+    private final FileBridge.ProgressListener mStagingListener = new FileBridge.ProgressListener() {
+        @Override
+        public void onBytesWritten(long bytes) {
+            synchronized (mLock) {
+                mStagedBytes += bytes;
+                computeProgressLocked(false);
+            }
+        }
+    };
 
     private final Handler.Callback mHandlerCallback = new Handler.Callback() {
         @Override
@@ -102,17 +124,16 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
                 if (msg.obj != null) {
                     mRemoteObserver = (IPackageInstallObserver2) msg.obj;
                 }
-                try {
-                    commitLocked();
-                } catch (PackageManagerException e) {
-                    final String completeMsg = getCompleteMessage(e);
-                    VLog.e(TAG, "Commit of session " + sessionId + " failed: " + completeMsg);
-                    destroyInternal();
-                    dispatchSessionFinished(e.error, completeMsg, null);
-                }
-
-                return true;
             }
+            try {
+                commitInternal();
+            } catch (PackageManagerException e) {
+                final String completeMsg = getCompleteMessage(e);
+                VLog.e(TAG, "Commit of session " + sessionId + " failed: " + completeMsg);
+                destroyInternal();
+                dispatchSessionFinished(e.error, completeMsg, null);
+            }
+            return true;
         }
     };
 
@@ -149,36 +170,66 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
         return info;
     }
 
-    private void commitLocked() throws PackageManagerException {
-        if (mDestroyed) {
-            throw new PackageManagerException(INSTALL_FAILED_INTERNAL_ERROR, "Session destroyed");
-        }
-        if (!mSealed) {
-            throw new PackageManagerException(INSTALL_FAILED_INTERNAL_ERROR, "Session not sealed");
-        }
-        try {
-            resolveStageDir();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Install the staged files. Only the checks hold mLock, the install runs
+     * without it, so that the session keeps answering its progress and info.
+     */
+    private void commitInternal() throws PackageManagerException {
+        final List<File> stagedFiles;
+        synchronized (mLock) {
+            if (mDestroyed) {
+                throw new PackageManagerException(INSTALL_FAILED_INTERNAL_ERROR, "Session destroyed");
+            }
+            if (!mSealed) {
+                throw new PackageManagerException(INSTALL_FAILED_INTERNAL_ERROR, "Session not sealed");
+            }
+            try {
+                resolveStageDir();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            validateInstallLocked();
+            mInternalProgress = 0.5f;
+            computeProgressLocked(true);
+            stagedFiles = new ArrayList<>(mResolvedStagedFiles);
+            mCommitting = true;
         }
-        validateInstallLocked();
-        mInternalProgress = 0.5f;
-        computeProgressLocked(true);
-        // We've reached point of no return; call into PMS to install the stage.
+        // We've reached point of no return; hand the staged files over to the install.
         // Regardless of success or failure we always destroy session.
-        final IPackageInstallObserver2 localObserver = new IPackageInstallObserver2.Stub() {
-            @Override
-            public void onUserActionRequired(Intent intent) {
-                throw new IllegalStateException();
-            }
-
-            @Override
-            public void onPackageInstalled(String basePackageName, int returnCode, String msg,
-                                           Bundle extras) {
-                destroyInternal();
-                dispatchSessionFinished(returnCode, msg, extras);
+        InstallResult res;
+        try {
+            res = VAppManagerService.get().installStagedPackage(
+                    stagedFiles, InstallStrategy.UPDATE_IF_EXIST,
+                    new FileCopier.ProgressListener() {
+                        @Override
+                        public void onProgress(long copied, long total) {
+                            synchronized (mLock) {
+                                if (total > 0) {
+                                    mInternalProgress = 0.5f + 0.5f * copied / total;
+                                    computeProgressLocked(false);
+                                }
+                            }
+                        }
+                    });
+        } finally {
+            synchronized (mLock) {
+                mCommitting = false;
             }
-        };
+        }
+        if (!res.isSuccess) {
+            throw new PackageManagerException(res.errorCode != 0 ? res.errorCode
+                    : INSTALL_FAILED_INTERNAL_ERROR, res.error);
+        }
+        mPackageName = res.packageName;
+        if (userId != 0) {
+            VAppManagerService.get().installPackageAsUser(userId, res.packageName);
+        }
+        synchronized (mLock) {
+            mInternalProgress = 1f;
+            computeProgressLocked(true);
+        }
+        destroyInternal();
+        dispatchSessionFinished(INSTALL_SUCCEEDED, null, null);
     }
 
     private void validateInstallLocked() throws PackageManagerException {
@@ -189,19 +240,22 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
             throw new PackageManagerException(INSTALL_FAILED_INVALID_APK, "No packages staged");
         }
         for (File addedFile : addedFiles) {
-            if (!addedFile.isDirectory()) {
-                final String targetName = "base.apk";
-                final File targetFile = new File(mResolvedStageDir, targetName);
-                if (!addedFile.equals(targetFile)) {
-                    addedFile.renameTo(targetFile);
-                }
-                mResolvedBaseFile = targetFile;
-                mResolvedStagedFiles.add(targetFile);
+            if (addedFile.isDirectory() || addedFile.getName().endsWith(REMOVE_SPLIT_MARKER_EXTENSION)) {
+                continue;
+            }
+            if ("base.apk".equals(addedFile.getName())) {
+                mResolvedBaseFile = addedFile;
+                // the install looks for the base in order
+                mResolvedStagedFiles.add(0, addedFile);
+            } else {
+                mResolvedStagedFiles.add(addedFile);
             }
         }
-        if (mResolvedBaseFile == null) {
-            throw new PackageManagerException(INSTALL_FAILED_INVALID_APK,
-                    "Full install must include a base package");
+        if (mResolvedStagedFiles.isEmpty()) {
+            throw new PackageManagerException(INSTALL_FAILED_INVALID_APK, "No packages staged");
+        }
+        if (mResolvedBaseFile == null && mResolvedStagedFiles.size() == 1) {
+            mResolvedBaseFile = mResolvedStagedFiles.get(0);
         }
     }
 
@@ -221,7 +275,13 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
     }
 
     private void computeProgressLocked(boolean forcePublish) {
-        mProgress = constrain(mClientProgress * 0.8f, 0f, 0.8f)
+        float clientProgress = mClientProgress;
+        long expectedBytes = params.sizeBytes > 0 ? params.sizeBytes : mExpectedBytes;
+        if (expectedBytes > 0) {
+            // The bytes staged so far, for the clients which don't report their progress.
+            clientProgress = Math.max(clientProgress, (float) mStagedBytes / expectedBytes);
+        }
+        mProgress = constrain(clientProgress * 0.8f, 0f, 0.8f)
                 + constrain(mInternalProgress * 0.2f, 0f, 0.2f);
 
         // Only publish when meaningful change
@@ -297,6 +357,9 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
 
             bridge = new FileBridge();
             mBridges.add(bridge);
+            if (lengthBytes > 0) {
+                mExpectedBytes += lengthBytes;
+            }
         }
         try {
             final File target = new File(resolveStageDir(), name);
@@ -313,6 +376,7 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
                 Os.lseek(targetFd, offsetBytes, OsConstants.SEEK_SET);
             }
             bridge.setTargetFile(targetFd);
+            bridge.setProgressListener(mStagingListener);
             bridge.start();
             return ParcelFileDescriptor.dup(bridge.getClientSocket());
 
@@ -419,6 +483,14 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
 
     @Override
     public void abandon() throws RemoteException {
+        synchronized (mLock) {
+            if (mCommitting) {
+                VLog.w(TAG, "Session " + sessionId + " is being committed, it finishes on its own");
+                return;
+            }
+            // a commit checks this before it starts
+            mDestroyed = true;
+        }
         destroyInternal();
         dispatchSessionFinished(INSTALL_FAILED_ABORTED, "Session was abandoned", null);
     }
@@ -29,6 +29,7 @@ import com.lody.virtual.remote.VParceledListSlice;
 import com.lody.virtual.server.IPackageInstaller;
 import com.lody.virtual.server.pm.VAppManagerService;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -115,7 +116,7 @@ public class VPackageInstallerService extends IPackageInstaller.Stub {
                         "Too many active sessions for UID " + callingUid);
             }
             sessionId = allocateSessionIdLocked();
-            session = new PackageInstallerSession(mInternalCallback, mContext, mInstallHandler.getLooper(), installerPackageName, sessionId, userId, callingUid, params, VEnvironment.getPackageInstallerStageDir());
+            session = new PackageInstallerSession(mInternalCallback, mContext, mInstallHandler.getLooper(), installerPackageName, sessionId, userId, callingUid, params, new File(VEnvironment.getPackageInstallerStageDir(), "vmdl" + sessionId + ".tmp"));
         }
         mCallbacks.notifySessionCreated(session.sessionId, session.userId);
         return sessionId;
@@ -0,0 +1,262 @@
+package com.lody.virtual.server.pm.parser;
+
+import android.content.pm.PackageParser;
+import android.content.pm.Signature;
+import android.os.Build;
+
+import com.lody.virtual.helper.compat.PackageParserCompat;
+import com.lody.virtual.helper.utils.FileUtils;
+import com.lody.virtual.helper.utils.VLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import mirror.dalvik.system.VMRuntime;
+
+/**
+ * What the install path needs to know about an apk.
+ * <p>
+ * The central directory is read once, for the native libraries of every abi,
+ * and the zip is kept open to extract them. The manifest is parsed up front,
+ * while the signatures are only verified by {@link #verifySignatures()}, which
+ * may run while {@link #extractNativeLibraries(File, String)} copies the libraries.
+ * This is not a single pass over the apk: PackageParser opens it again through
+ * its own asset manager, and so does the certificate check, neither can be
+ * handed this zip.
+ * The splits of an installer session only contribute their native libraries,
+ * so their manifest is not parsed.
+ */
+public class ApkAnalysis implements Closeable {
+
+    private static final String TAG = ApkAnalysis.class.getSimpleName();
+
+    private static final String MANIFEST_NAME = "AndroidManifest.xml";
+    private static final String LIB_PREFIX = "lib/";
+    private static final String LIB_SUFFIX = ".so";
+
+    private final File mApkFile;
+    private final ZipFile mZipFile;
+    /**
+     * The lib/&lt;abi&gt;/&lt;name&gt;.so entries, by abi.
+     */
+    private final Map<String, List<ZipEntry>> mNativeLibraries = new HashMap<>();
+    private PackageParser mParser;
+    private PackageParser.Package mPackage;
+    private String mSignatureDigest;
+
+    private ApkAnalysis(File apkFile, boolean parseManifest) throws Throwable {
+        mApkFile = apkFile;
+        mZipFile = new ZipFile(apkFile);
+        try {
+            boolean hasManifest = false;
+            Enumeration<? extends ZipEntry> entries = mZipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (MANIFEST_NAME.equals(name)) {
+                    hasManifest = true;
+                } else if (name.startsWith(LIB_PREFIX) && name.endsWith(LIB_SUFFIX)
+                        && !entry.isDirectory() && !name.contains("../")) {
+                    addNativeLibrary(entry);
+                }
+            }
+            if (!hasManifest) {
+                throw new IOException("No manifest in " + apkFile.getPath());
+            }
+            if (parseManifest) {
+                mParser = PackageParserCompat.createParser(apkFile);
+                mPackage = PackageParserCompat.parsePackage(mParser, apkFile, 0);
+            }
+        } catch (Throwable e) {
+            FileUtils.closeQuietly(mZipFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Read the central directory and parse the manifest of the apk.
+     */
+    public static ApkAnalysis analyze(File apkFile) throws Throwable {
+        return new ApkAnalysis(apkFile, true);
+    }
+
+    /**
+     * Read the central directory of a split apk.
+     */
+    public static ApkAnalysis analyzeSplit(File apkFile) throws IOException {
+        try {
+            return new ApkAnalysis(apkFile, false);
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void addNativeLibrary(ZipEntry entry) {
+        String name = entry.getName();
+        int slash = name.indexOf('/', LIB_PREFIX.length());
+        // only lib/<abi>/<name>.so, like the system installer
+        if (slash <= LIB_PREFIX.length() || name.indexOf('/', slash + 1) >= 0) {
+            return;
+        }
+        String abi = name.substring(LIB_PREFIX.length(), slash);
+        List<ZipEntry> libraries = mNativeLibraries.get(abi);
+        if (libraries == null) {
+            libraries = new ArrayList<>();
+            mNativeLibraries.put(abi, libraries);
+        }
+        libraries.add(entry);
+    }
+
+    public File getApkFile() {
+        return mApkFile;
+    }
+
+    /**
+     * @return the package name, null for a split.
+     */
+    public String getPackageName() {
+        return mPackage != null ? mPackage.packageName : null;
+    }
+
+    public int getVersionCode() {
+        return mPackage != null ? mPackage.mVersionCode : 0;
+    }
+
+    public Set<String> getAbis() {
+        return mNativeLibraries.keySet();
+    }
+
+    /**
+     * @return the abi whose libraries are extracted, null if the apks have none
+     * this device can run.
+     */
+    public static String selectAbi(Set<String> abis) {
+        if (abis.isEmpty()) {
+            return null;
+        }
+        boolean is64Bit = VMRuntime.is64Bit.call(VMRuntime.getRuntime.call());
+        String[] supportedAbis = is64Bit && containsAny(abis, Build.SUPPORTED_64_BIT_ABIS)
+                ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
+        for (String abi : supportedAbis) {
+            if (abis.contains(abi)) {
+                return abi;
+            }
+        }
+        return null;
+    }
+
+    private static boolean containsAny(Set<String> abis, String[] candidates) {
+        for (String abi : candidates) {
+            if (abis.contains(abi)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Verify the signatures and build the package.
+     */
+    public VPackage verifySignatures() throws Throwable {
+        if (mPackage == null) {
+            throw new IllegalStateException("Not a base apk: " + mApkFile.getPath());
+        }
+        PackageParserEx.collectCertificates(mParser, mPackage);
+        VPackage pkg = PackageParserEx.buildPackageCache(mPackage);
+        mSignatureDigest = digestOf(pkg.mSignatures);
+        return pkg;
+    }
+
+    /**
+     * @return the SHA-256 of the signing certificates, once verified.
+     */
+    public String getSignatureDigest() {
+        return mSignatureDigest;
+    }
+
+    private static String digestOf(Signature[] signatures) {
+        if (signatures == null || signatures.length == 0) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Signature signature : signatures) {
+                digest.update(signature.toByteArray());
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copy the libraries of the given abi, chosen by {@link #selectAbi(Set)},
+     * into the given directory. They are not synced one by one, the caller syncs
+     * the directory once all the apks are extracted.
+     *
+     * @return 0 on success, or if there is nothing to copy, -1 otherwise
+     */
+    public int extractNativeLibraries(File libDir, String abi) {
+        if (mNativeLibraries.isEmpty()) {
+            return 0;
+        }
+        if (abi == null) {
+            VLog.e(TAG, "Not match any abi [%s].", mApkFile.getPath());
+            return -1;
+        }
+        List<ZipEntry> libraries = mNativeLibraries.get(abi);
+        if (libraries == null) {
+            return 0;
+        }
+        byte[] buffer = new byte[64 * 1024];
+        for (ZipEntry entry : libraries) {
+            String name = entry.getName();
+            File target = new File(libDir, name.substring(name.lastIndexOf('/') + 1));
+            InputStream in = null;
+            FileOutputStream out = null;
+            try {
+                in = mZipFile.getInputStream(entry);
+                out = new FileOutputStream(target);
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                VLog.e(TAG, "Unable to extract %s: %s", name, e.getMessage());
+                return -1;
+            } finally {
+                FileUtils.closeQuietly(in);
+                FileUtils.closeQuietly(out);
+            }
+            try {
+                FileUtils.chmod(target.getPath(), FileUtils.FileMode.MODE_755);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        FileUtils.closeQuietly(mZipFile);
+    }
+}
@@ -0,0 +1,251 @@
+package com.lody.virtual.server.pm.parser;
+
+import android.os.Parcel;
+
+import com.lody.virtual.helper.utils.AtomicFile;
+import com.lody.virtual.helper.utils.VLog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The package cache file, mapped and decoded a table at a time.
+ * <p>
+ * Layout, big-endian: magic, format version, table count, CRC32 of the index,
+ * then the index, an offset, a length and a CRC32 per table, then the tables, each
+ * a marshalled parcel. The last table holds the package without its components
+ * and is decoded when the file is read. The component tables are only decoded by
+ * {@link VPackage} once they are used, so they cost neither boot time nor heap
+ * until then.
+ * <p>
+ * The files of format 1, a single checksummed parcel, and the bare parcels written
+ * before, are read in full and written again in the current format.
+ */
+final class PackageCacheFile {
+
+    private static final String TAG = PackageCacheFile.class.getSimpleName();
+
+    private static final int MAGIC = 0x56504b43; // VPKC
+    private static final int FORMAT_VERSION = 2;
+    private static final int FORMAT_VERSION_PARCEL = 1;
+    /**
+     * The version a bare parcel starts with, in the native byte order.
+     */
+    private static final int LEGACY_PARCEL_VERSION = 4;
+    private static final int HEADER_SIZE = 20;
+    private static final int PARCEL_HEADER_SIZE = 20;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int TABLE_HEAD = VPackage.SECTION_COUNT;
+    private static final int TABLE_COUNT = VPackage.SECTION_COUNT + 1;
+
+    private final File mFile;
+    private final ByteBuffer mBuffer;
+
+    private PackageCacheFile(File file, ByteBuffer buffer) {
+        mFile = file;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Map the cache file and decode the package, without its component tables.
+     *
+     * @throws IOException if the file is missing or damaged
+     */
+    static VPackage read(File file) throws IOException {
+        ByteBuffer buffer = map(file);
+        int size = buffer.capacity();
+        if (size >= 8 && buffer.getInt(0) == MAGIC) {
+            int version = buffer.getInt(4);
+            if (version == FORMAT_VERSION) {
+                PackageCacheFile cacheFile = new PackageCacheFile(file, buffer);
+                cacheFile.verifyIndex();
+                VPackage pkg = new VPackage();
+                Parcel p = cacheFile.readTable(TABLE_HEAD);
+                try {
+                    pkg.readHead(p);
+                } finally {
+                    p.recycle();
+                }
+                pkg.mCacheFile = cacheFile;
+                return pkg;
+            }
+            if (version == FORMAT_VERSION_PARCEL && size >= PARCEL_HEADER_SIZE) {
+                int length = buffer.getInt(8);
+                long checksum = buffer.getLong(12);
+                if (length != size - PARCEL_HEADER_SIZE) {
+                    throw damaged(file, "truncated");
+                }
+                return upgrade(file, readBytes(buffer, PARCEL_HEADER_SIZE, length, checksum, file));
+            }
+            throw damaged(file, "unknown format " + version);
+        }
+        // Only a file written before the header existed may lack the magic.
+        ByteBuffer nativeOrder = buffer.duplicate().order(ByteOrder.nativeOrder());
+        if (size >= 4 && nativeOrder.getInt(0) == LEGACY_PARCEL_VERSION) {
+            byte[] bytes = new byte[size];
+            buffer.duplicate().get(bytes);
+            return upgrade(file, bytes);
+        }
+        throw damaged(file, "bad magic");
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        FileInputStream in = new AtomicFile(file).openRead();
+        try {
+            FileChannel channel = in.getChannel();
+            // the mapping outlives the descriptor
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decode a package of the previous formats in full, and write it again.
+     */
+    private static VPackage upgrade(File file, byte[] bytes) throws IOException {
+        Parcel p = Parcel.obtain();
+        VPackage pkg;
+        try {
+            p.unmarshall(bytes, 0, bytes.length);
+            p.setDataPosition(0);
+            if (p.readInt() != LEGACY_PARCEL_VERSION) {
+                throw damaged(file, "bad parcel version");
+            }
+            pkg = new VPackage(p);
+        } catch (RuntimeException e) {
+            throw damaged(file, e.toString());
+        } finally {
+            p.recycle();
+        }
+        try {
+            write(pkg, file);
+        } catch (IOException e) {
+            VLog.w(TAG, "Unable to upgrade %s: %s", file.getPath(), e.getMessage());
+        }
+        return pkg;
+    }
+
+    private void verifyIndex() throws IOException {
+        int size = mBuffer.capacity();
+        if (size < HEADER_SIZE || mBuffer.getInt(8) != TABLE_COUNT
+                || size < HEADER_SIZE + TABLE_COUNT * INDEX_ENTRY_SIZE) {
+            throw damaged(mFile, "bad index");
+        }
+        byte[] index = new byte[TABLE_COUNT * INDEX_ENTRY_SIZE];
+        ByteBuffer in = mBuffer.duplicate();
+        in.position(HEADER_SIZE);
+        in.get(index);
+        CRC32 crc = new CRC32();
+        crc.update(index, 0, index.length);
+        if (crc.getValue() != mBuffer.getLong(12)) {
+            throw damaged(mFile, "index checksum mismatch");
+        }
+    }
+
+    /**
+     * Decode a component table into the package.
+     *
+     * @throws IOException if the table is damaged
+     */
+    void readSection(VPackage pkg, int section) throws IOException {
+        Parcel p = readTable(section);
+        try {
+            pkg.readSection(section, p);
+        } catch (RuntimeException e) {
+            throw damaged(mFile, "table " + section + ": " + e);
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private Parcel readTable(int table) throws IOException {
+        int entry = HEADER_SIZE + table * INDEX_ENTRY_SIZE;
+        int offset = mBuffer.getInt(entry);
+        int length = mBuffer.getInt(entry + 4);
+        long checksum = mBuffer.getLong(entry + 8);
+        int dataStart = HEADER_SIZE + TABLE_COUNT * INDEX_ENTRY_SIZE;
+        if (offset < dataStart || length < 0 || offset > mBuffer.capacity() - length) {
+            throw damaged(mFile, "table " + table + " out of bounds");
+        }
+        byte[] bytes = readBytes(mBuffer, offset, length, checksum, mFile);
+        Parcel p = Parcel.obtain();
+        p.unmarshall(bytes, 0, length);
+        p.setDataPosition(0);
+        return p;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int offset, int length, long checksum,
+                                    File file) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        in.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        if (crc.getValue() != checksum) {
+            throw damaged(file, "checksum mismatch");
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the package in the current format, decoding the tables it has not yet.
+     */
+    static void write(VPackage pkg, File file) throws IOException {
+        byte[][] tables = new byte[TABLE_COUNT][];
+        for (int table = 0; table < TABLE_COUNT; table++) {
+            Parcel p = Parcel.obtain();
+            try {
+                if (table == TABLE_HEAD) {
+                    pkg.writeHead(p);
+                } else {
+                    pkg.writeSection(table, p);
+                }
+                tables[table] = p.marshall();
+            } finally {
+                p.recycle();
+            }
+        }
+        ByteBuffer index = ByteBuffer.allocate(TABLE_COUNT * INDEX_ENTRY_SIZE);
+        int offset = HEADER_SIZE + index.capacity();
+        CRC32 crc = new CRC32();
+        for (byte[] table : tables) {
+            crc.reset();
+            crc.update(table, 0, table.length);
+            index.putInt(offset).putInt(table.length).putLong(crc.getValue());
+            offset += table.length;
+        }
+        crc.reset();
+        crc.update(index.array(), 0, index.capacity());
+        AtomicFile cacheFile = new AtomicFile(file);
+        FileOutputStream fos = cacheFile.startWrite();
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(TABLE_COUNT);
+            out.writeLong(crc.getValue());
+            out.write(index.array());
+            for (byte[] table : tables) {
+                out.write(table);
+            }
+            out.flush();
+            cacheFile.finishWrite(fos);
+        } catch (IOException e) {
+            cacheFile.failWrite(fos);
+            throw e;
+        }
+    }
+
+    private static IOException damaged(File file, String reason) {
+        return new IOException("Damaged package cache " + file.getPath() + ": " + reason);
+    }
+}
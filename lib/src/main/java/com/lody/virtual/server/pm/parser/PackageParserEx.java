@@ -30,7 +30,6 @@ import com.lody.virtual.server.pm.PackageUserState;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -53,6 +52,14 @@ public class PackageParserEx {
     public static VPackage parsePackage(File packageFile) throws Throwable {
         PackageParser parser = PackageParserCompat.createParser(packageFile);
         PackageParser.Package p = PackageParserCompat.parsePackage(parser, packageFile, 0);
+        collectCertificates(parser, p);
+        return buildPackageCache(p);
+    }
+
+    /**
+     * Verify the signatures of a parsed package, or apply its fake signature.
+     */
+    static void collectCertificates(PackageParser parser, PackageParser.Package p) throws Throwable {
         if (p.requestedPermissions.contains("android.permission.FAKE_PACKAGE_SIGNATURE")
                 && p.mAppMetaData != null
                 && p.mAppMetaData.containsKey("fake-signature")) {
@@ -72,7 +79,6 @@ public class PackageParserEx {
                 }
             }
         }
-        return buildPackageCache(p);
     }
 
     private static void buildSignature(PackageParser.Package p, Signature[] signatures) {
@@ -85,27 +91,48 @@ public class PackageParserEx {
         }
     }
 
+    /**
+     * Read the package from its cache file, its component tables are decoded once used.
+     *
+     * @return null if the cache file is missing or damaged
+     */
     public static VPackage readPackageCache(String packageName) {
-        Parcel p = Parcel.obtain();
         try {
-            File cacheFile = VEnvironment.getPackageCacheFile(packageName);
-            FileInputStream is = new FileInputStream(cacheFile);
-            byte[] bytes = FileUtils.toByteArray(is);
-            is.close();
-            p.unmarshall(bytes, 0, bytes.length);
-            p.setDataPosition(0);
-            if (p.readInt() != 4) {
-                throw new IllegalStateException("Invalid version.");
+            return PackageCacheFile.read(VEnvironment.getPackageCacheFile(packageName));
+        } catch (Exception e) {
+            VLog.w(TAG, "Unable to read the package cache: %s", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Parse the installed apk of a package again and rewrite its cache.
+     *
+     * @return null if the apk is gone or holds another package
+     */
+    public static VPackage rebuildPackageCache(String packageName, String apkPath) {
+        if (apkPath == null || !new File(apkPath).exists()) {
+            return null;
+        }
+        VLog.w(TAG, "Rebuilding package cache of " + packageName);
+        try {
+            VPackage pkg = parsePackage(new File(apkPath));
+            if (pkg == null || !packageName.equals(pkg.packageName)) {
+                return null;
             }
-            VPackage pkg = new VPackage(p);
-            addOwner(pkg);
+            savePackageCache(pkg);
             return pkg;
-        } catch (Exception e) {
+        } catch (Throwable e) {
             e.printStackTrace();
-        } finally {
-            p.recycle();
+            return null;
         }
-        return null;
+    }
+
+    static VPackage rebuildPackageCache(VPackage damaged) {
+        String apkPath = damaged.mExtras instanceof PackageSetting
+                ? ((PackageSetting) damaged.mExtras).apkPath
+                : VEnvironment.getPackageResourcePath(damaged.packageName).getPath();
+        return rebuildPackageCache(damaged.packageName, apkPath);
     }
 
     public static void readSignature(VPackage pkg) {
@@ -130,17 +157,10 @@ public class PackageParserEx {
 
     public static void savePackageCache(VPackage pkg) {
         final String packageName = pkg.packageName;
-        Parcel p = Parcel.obtain();
         try {
-            p.writeInt(4);
-            pkg.writeToParcel(p, 0);
-            FileOutputStream fos = new FileOutputStream(VEnvironment.getPackageCacheFile(packageName));
-            fos.write(p.marshall());
-            fos.close();
+            PackageCacheFile.write(pkg, VEnvironment.getPackageCacheFile(packageName));
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            p.recycle();
         }
         Signature[] signatures = pkg.mSignatures;
         if (signatures != null) {
@@ -148,7 +168,7 @@ public class PackageParserEx {
             if (signatureFile.exists() && !signatureFile.delete()) {
                 VLog.w(TAG, "Unable to delete the signatures of " + packageName);
             }
-            p = Parcel.obtain();
+            Parcel p = Parcel.obtain();
             try {
                 p.writeTypedArray(signatures, 0);
                 FileUtils.writeParcelToFile(p, signatureFile);
@@ -160,7 +180,7 @@ public class PackageParserEx {
         }
     }
 
-    private static VPackage buildPackageCache(PackageParser.Package p) {
+    static VPackage buildPackageCache(PackageParser.Package p) {
         VPackage cache = new VPackage();
         cache.activities = new ArrayList<>(p.activities.size());
         cache.services = new ArrayList<>(p.services.size());
@@ -224,7 +244,7 @@ public class PackageParserEx {
         cache.mAppMetaData = p.mAppMetaData;
         cache.configPreferences = p.configPreferences;
         cache.reqFeatures = p.reqFeatures;
-        addOwner(cache);
+        cache.link();
         return cache;
     }
 
@@ -282,42 +302,6 @@ public class PackageParserEx {
         }
     }
 
-    private static void addOwner(VPackage p) {
-        for (VPackage.ActivityComponent activity : p.activities) {
-            activity.owner = p;
-            for (VPackage.ActivityIntentInfo info : activity.intents) {
-                info.activity = activity;
-            }
-        }
-        for (VPackage.ServiceComponent service : p.services) {
-            service.owner = p;
-            for (VPackage.ServiceIntentInfo info : service.intents) {
-                info.service = service;
-            }
-        }
-        for (VPackage.ActivityComponent receiver : p.receivers) {
-            receiver.owner = p;
-            for (VPackage.ActivityIntentInfo info : receiver.intents) {
-                info.activity = receiver;
-            }
-        }
-        for (VPackage.ProviderComponent provider : p.providers) {
-            provider.owner = p;
-            for (VPackage.ProviderIntentInfo info : provider.intents) {
-                info.provider = provider;
-            }
-        }
-        for (VPackage.InstrumentationComponent instrumentation : p.instrumentation) {
-            instrumentation.owner = p;
-        }
-        for (VPackage.PermissionComponent permission : p.permissions) {
-            permission.owner = p;
-        }
-        for (VPackage.PermissionGroupComponent group : p.permissionGroups) {
-            group.owner = p;
-        }
-    }
-
     public static PackageInfo generatePackageInfo(VPackage p, int flags, long firstInstallTime, long lastUpdateTime, PackageUserState state, int userId) {
         if (!checkUseInstalledOrHidden(state, flags)) {
             return null;
@@ -356,60 +340,60 @@ public class PackageParserEx {
             }
         }
         if ((flags & PackageManager.GET_ACTIVITIES) != 0) {
-            final int N = p.activities.size();
+            final int N = p.getActivities().size();
             if (N > 0) {
                 int num = 0;
                 final ActivityInfo[] res = new ActivityInfo[N];
                 for (int i = 0; i < N; i++) {
-                    final VPackage.ActivityComponent a = p.activities.get(i);
+                    final VPackage.ActivityComponent a = p.getActivities().get(i);
                     res[num++] = generateActivityInfo(a, flags, state, userId);
                 }
                 pi.activities = res;
             }
         }
         if ((flags & PackageManager.GET_RECEIVERS) != 0) {
-            final int N = p.receivers.size();
+            final int N = p.getReceivers().size();
             if (N > 0) {
                 int num = 0;
                 final ActivityInfo[] res = new ActivityInfo[N];
                 for (int i = 0; i < N; i++) {
-                    final VPackage.ActivityComponent a = p.receivers.get(i);
+                    final VPackage.ActivityComponent a = p.getReceivers().get(i);
                     res[num++] = generateActivityInfo(a, flags, state, userId);
                 }
                 pi.receivers = res;
             }
         }
         if ((flags & PackageManager.GET_SERVICES) != 0) {
-            final int N = p.services.size();
+            final int N = p.getServices().size();
             if (N > 0) {
                 int num = 0;
                 final ServiceInfo[] res = new ServiceInfo[N];
                 for (int i = 0; i < N; i++) {
-                    final VPackage.ServiceComponent s = p.services.get(i);
+                    final VPackage.ServiceComponent s = p.getServices().get(i);
                     res[num++] = generateServiceInfo(s, flags, state, userId);
                 }
                 pi.services = res;
             }
         }
         if ((flags & PackageManager.GET_PROVIDERS) != 0) {
-            final int N = p.providers.size();
+            final int N = p.getProviders().size();
             if (N > 0) {
                 int num = 0;
                 final ProviderInfo[] res = new ProviderInfo[N];
                 for (int i = 0; i < N; i++) {
-                    final VPackage.ProviderComponent pr = p.providers.get(i);
+                    final VPackage.ProviderComponent pr = p.getProviders().get(i);
                     res[num++] = generateProviderInfo(pr, flags, state, userId);
                 }
                 pi.providers = res;
             }
         }
         if ((flags & PackageManager.GET_INSTRUMENTATION) != 0) {
-            int N = p.instrumentation.size();
+            int N = p.getInstrumentation().size();
             if (N > 0) {
                 pi.instrumentation = new InstrumentationInfo[N];
                 for (int i = 0; i < N; i++) {
                     pi.instrumentation[i] = generateInstrumentationInfo(
-                            p.instrumentation.get(i), flags);
+                            p.getInstrumentation().get(i), flags);
                 }
             }
         }
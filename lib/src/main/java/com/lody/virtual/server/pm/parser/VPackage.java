@@ -19,6 +19,8 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.lody.virtual.helper.utils.VLog;
+
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
@@ -40,13 +42,31 @@ public class VPackage implements Parcelable {
             return new VPackage[size];
         }
     };
-    public ArrayList<ActivityComponent> activities;
-    public ArrayList<ActivityComponent> receivers;
-    public ArrayList<ProviderComponent> providers;
-    public ArrayList<ServiceComponent> services;
-    public ArrayList<InstrumentationComponent> instrumentation;
-    public ArrayList<PermissionComponent> permissions;
-    public ArrayList<PermissionGroupComponent> permissionGroups;
+    /**
+     * The component tables, in the order of the parcel, each stored apart in the
+     * package cache file.
+     */
+    static final int SECTION_ACTIVITIES = 0;
+    static final int SECTION_RECEIVERS = 1;
+    static final int SECTION_PROVIDERS = 2;
+    static final int SECTION_SERVICES = 3;
+    static final int SECTION_INSTRUMENTATION = 4;
+    static final int SECTION_PERMISSIONS = 5;
+    static final int SECTION_PERMISSION_GROUPS = 6;
+    static final int SECTION_COUNT = 7;
+
+    private static final String TAG = VPackage.class.getSimpleName();
+
+    /**
+     * The component tables, null until decoded from {@link #mCacheFile}.
+     */
+    volatile ArrayList<ActivityComponent> activities;
+    volatile ArrayList<ActivityComponent> receivers;
+    volatile ArrayList<ProviderComponent> providers;
+    volatile ArrayList<ServiceComponent> services;
+    volatile ArrayList<InstrumentationComponent> instrumentation;
+    volatile ArrayList<PermissionComponent> permissions;
+    volatile ArrayList<PermissionGroupComponent> permissionGroups;
     public ArrayList<String> requestedPermissions;
     public ArrayList<String> protectedBroadcasts;
     public ApplicationInfo applicationInfo;
@@ -64,155 +84,281 @@ public class VPackage implements Parcelable {
     // Applications requested features
     public ArrayList<FeatureInfo> reqFeatures = null;
     public Object mExtras;
+    /**
+     * The mapped cache file the undecoded tables are read from, dropped once
+     * they all are. Should guard by this.
+     */
+    PackageCacheFile mCacheFile;
 
     public VPackage() {
     }
 
     protected VPackage(Parcel in) {
-        int N = in.readInt();
-        this.activities = new ArrayList<>(N);
-        while (N-- > 0) {
-            activities.add(new ActivityComponent(in));
-        }
-        N = in.readInt();
-        this.receivers = new ArrayList<>(N);
-        while (N-- > 0) {
-            receivers.add(new ActivityComponent(in));
-        }
-        N = in.readInt();
-        this.providers = new ArrayList<>(N);
-        while (N-- > 0) {
-            providers.add(new ProviderComponent(in));
-        }
-        N = in.readInt();
-        this.services = new ArrayList<>(N);
-        while (N-- > 0) {
-            services.add(new ServiceComponent(in));
-        }
-        N = in.readInt();
-        this.instrumentation = new ArrayList<>(N);
-        while (N-- > 0) {
-            instrumentation.add(new InstrumentationComponent(in));
-        }
-        N = in.readInt();
-        this.permissions = new ArrayList<>(N);
-        while (N-- > 0) {
-            permissions.add(new PermissionComponent(in));
-        }
-        N = in.readInt();
-        this.permissionGroups = new ArrayList<>(N);
-        while (N-- > 0) {
-            permissionGroups.add(new PermissionGroupComponent(in));
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            readSection(section, in);
         }
-        this.requestedPermissions = in.createStringArrayList();
-        this.protectedBroadcasts = in.createStringArrayList();
-        this.applicationInfo = in.readParcelable(ApplicationInfo.class.getClassLoader());
-        this.mAppMetaData = in.readBundle(Bundle.class.getClassLoader());
-        this.packageName = in.readString();
-        this.mPreferredOrder = in.readInt();
-        this.mVersionName = in.readString();
-        this.mSharedUserId = in.readString();
-        this.usesLibraries = in.createStringArrayList();
-        this.mVersionCode = in.readInt();
-        this.mSharedUserLabel = in.readInt();
-        this.configPreferences = in.createTypedArrayList(ConfigurationInfo.CREATOR);
-        this.reqFeatures = in.createTypedArrayList(FeatureInfo.CREATOR);
+        readHead(in);
     }
 
-    @Override
-    public int describeContents() {
-        return 0;
+    public ArrayList<ActivityComponent> getActivities() {
+        if (activities == null) {
+            decodeSection(SECTION_ACTIVITIES);
+        }
+        return activities;
     }
 
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(this.activities.size());
-        for (ActivityComponent component : activities) {
-            dest.writeParcelable(component.info, 0);
-            dest.writeString(component.className);
-            dest.writeBundle(component.metaData);
-            dest.writeInt(component.intents != null ? component.intents.size() : 0);
-            if (component.intents != null) {
-                for (ActivityIntentInfo info : component.intents) {
-                    info.writeToParcel(dest, flags);
-                }
+    public ArrayList<ActivityComponent> getReceivers() {
+        if (receivers == null) {
+            decodeSection(SECTION_RECEIVERS);
+        }
+        return receivers;
+    }
+
+    public ArrayList<ProviderComponent> getProviders() {
+        if (providers == null) {
+            decodeSection(SECTION_PROVIDERS);
+        }
+        return providers;
+    }
+
+    public ArrayList<ServiceComponent> getServices() {
+        if (services == null) {
+            decodeSection(SECTION_SERVICES);
+        }
+        return services;
+    }
+
+    public ArrayList<InstrumentationComponent> getInstrumentation() {
+        if (instrumentation == null) {
+            decodeSection(SECTION_INSTRUMENTATION);
+        }
+        return instrumentation;
+    }
+
+    public ArrayList<PermissionComponent> getPermissions() {
+        if (permissions == null) {
+            decodeSection(SECTION_PERMISSIONS);
+        }
+        return permissions;
+    }
+
+    public ArrayList<PermissionGroupComponent> getPermissionGroups() {
+        if (permissionGroups == null) {
+            decodeSection(SECTION_PERMISSION_GROUPS);
+        }
+        return permissionGroups;
+    }
+
+    private boolean hasSection(int section) {
+        switch (section) {
+            case SECTION_ACTIVITIES:
+                return activities != null;
+            case SECTION_RECEIVERS:
+                return receivers != null;
+            case SECTION_PROVIDERS:
+                return providers != null;
+            case SECTION_SERVICES:
+                return services != null;
+            case SECTION_INSTRUMENTATION:
+                return instrumentation != null;
+            case SECTION_PERMISSIONS:
+                return permissions != null;
+            case SECTION_PERMISSION_GROUPS:
+                return permissionGroups != null;
+            default:
+                throw new IllegalArgumentException("Unknown section " + section);
+        }
+    }
+
+    /**
+     * Decode a component table on its first use. A damaged table is taken from
+     * the apk instead, along with the tables not decoded yet.
+     */
+    private synchronized void decodeSection(int section) {
+        if (hasSection(section)) {
+            return;
+        }
+        PackageCacheFile cacheFile = mCacheFile;
+        if (cacheFile != null) {
+            try {
+                cacheFile.readSection(this, section);
+            } catch (Exception e) {
+                VLog.w(TAG, "Damaged table %d in the cache of %s: %s", section, packageName, e.getMessage());
+                takeSections(PackageParserEx.rebuildPackageCache(this));
             }
+        } else {
+            // the apk could not be parsed again either
+            takeSections(null);
         }
-        dest.writeInt(this.receivers.size());
-        for (ActivityComponent component : receivers) {
-            dest.writeParcelable(component.info, 0);
-            dest.writeString(component.className);
-            dest.writeBundle(component.metaData);
-            dest.writeInt(component.intents != null ? component.intents.size() : 0);
-            if (component.intents != null) {
-                for (ActivityIntentInfo info : component.intents) {
-                    info.writeToParcel(dest, flags);
-                }
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            if (!hasSection(i)) {
+                return;
             }
         }
-        dest.writeInt(this.providers.size());
-        for (ProviderComponent component : providers) {
-            dest.writeParcelable(component.info, 0);
-            dest.writeString(component.className);
-            dest.writeBundle(component.metaData);
-            dest.writeInt(component.intents != null ? component.intents.size() : 0);
-            if (component.intents != null) {
-                for (ProviderIntentInfo info : component.intents) {
-                    info.writeToParcel(dest, flags);
+        mCacheFile = null;
+    }
+
+    /**
+     * Take the tables not decoded yet from a package parsed again, or leave them
+     * empty if it could not be.
+     */
+    private void takeSections(VPackage from) {
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            if (hasSection(section)) {
+                continue;
+            }
+            Parcel p = Parcel.obtain();
+            try {
+                if (from != null) {
+                    from.writeSection(section, p);
+                } else {
+                    p.writeInt(0);
                 }
+                p.setDataPosition(0);
+                readSection(section, p);
+            } finally {
+                p.recycle();
             }
         }
-        dest.writeInt(this.services.size());
-        for (ServiceComponent component : services) {
-            dest.writeParcelable(component.info, 0);
-            dest.writeString(component.className);
-            dest.writeBundle(component.metaData);
-            dest.writeInt(component.intents != null ? component.intents.size() : 0);
-            if (component.intents != null) {
-                for (ServiceIntentInfo info : component.intents) {
-                    info.writeToParcel(dest, flags);
+        mCacheFile = null;
+    }
+
+    /**
+     * Read a component table, link it to this package and publish it.
+     */
+    void readSection(int section, Parcel in) {
+        int N = in.readInt();
+        switch (section) {
+            case SECTION_ACTIVITIES:
+            case SECTION_RECEIVERS: {
+                ArrayList<ActivityComponent> list = new ArrayList<>(N);
+                while (N-- > 0) {
+                    list.add(new ActivityComponent(in));
+                }
+                linkActivities(list);
+                if (section == SECTION_ACTIVITIES) {
+                    activities = list;
+                } else {
+                    receivers = list;
                 }
+                break;
             }
-        }
-        dest.writeInt(this.instrumentation.size());
-        for (InstrumentationComponent component : instrumentation) {
-            dest.writeParcelable(component.info, 0);
-            dest.writeString(component.className);
-            dest.writeBundle(component.metaData);
-            dest.writeInt(component.intents != null ? component.intents.size() : 0);
-            if (component.intents != null) {
-                for (IntentInfo info : component.intents) {
-                    info.writeToParcel(dest, flags);
+            case SECTION_PROVIDERS: {
+                ArrayList<ProviderComponent> list = new ArrayList<>(N);
+                while (N-- > 0) {
+                    list.add(new ProviderComponent(in));
                 }
+                linkProviders(list);
+                providers = list;
+                break;
             }
-        }
-        dest.writeInt(this.permissions.size());
-        for (PermissionComponent component : permissions) {
-            dest.writeParcelable(component.info, 0);
-            dest.writeString(component.className);
-            dest.writeBundle(component.metaData);
-            dest.writeInt(component.intents != null ? component.intents.size() : 0);
-            if (component.intents != null) {
-                for (IntentInfo info : component.intents) {
-                    info.writeToParcel(dest, flags);
+            case SECTION_SERVICES: {
+                ArrayList<ServiceComponent> list = new ArrayList<>(N);
+                while (N-- > 0) {
+                    list.add(new ServiceComponent(in));
+                }
+                linkServices(list);
+                services = list;
+                break;
+            }
+            case SECTION_INSTRUMENTATION: {
+                ArrayList<InstrumentationComponent> list = new ArrayList<>(N);
+                while (N-- > 0) {
+                    list.add(new InstrumentationComponent(in));
+                }
+                linkComponents(list);
+                instrumentation = list;
+                break;
+            }
+            case SECTION_PERMISSIONS: {
+                ArrayList<PermissionComponent> list = new ArrayList<>(N);
+                while (N-- > 0) {
+                    list.add(new PermissionComponent(in));
                 }
+                linkComponents(list);
+                permissions = list;
+                break;
             }
+            case SECTION_PERMISSION_GROUPS: {
+                ArrayList<PermissionGroupComponent> list = new ArrayList<>(N);
+                while (N-- > 0) {
+                    list.add(new PermissionGroupComponent(in));
+                }
+                linkComponents(list);
+                permissionGroups = list;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown section " + section);
+        }
+    }
+
+    void writeSection(int section, Parcel dest) {
+        switch (section) {
+            case SECTION_ACTIVITIES:
+                writeComponents(dest, getActivities());
+                break;
+            case SECTION_RECEIVERS:
+                writeComponents(dest, getReceivers());
+                break;
+            case SECTION_PROVIDERS:
+                writeComponents(dest, getProviders());
+                break;
+            case SECTION_SERVICES:
+                writeComponents(dest, getServices());
+                break;
+            case SECTION_INSTRUMENTATION:
+                writeComponents(dest, getInstrumentation());
+                break;
+            case SECTION_PERMISSIONS:
+                writeComponents(dest, getPermissions());
+                break;
+            case SECTION_PERMISSION_GROUPS:
+                writeComponents(dest, getPermissionGroups());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown section " + section);
         }
-        dest.writeInt(this.permissionGroups.size());
-        for (PermissionGroupComponent component : permissionGroups) {
-            dest.writeParcelable(component.info, 0);
+    }
+
+    private static void writeComponents(Parcel dest, ArrayList<? extends Component<?>> components) {
+        dest.writeInt(components.size());
+        for (Component<?> component : components) {
+            dest.writeParcelable(component.getInfo(), 0);
             dest.writeString(component.className);
             dest.writeBundle(component.metaData);
             dest.writeInt(component.intents != null ? component.intents.size() : 0);
             if (component.intents != null) {
                 for (IntentInfo info : component.intents) {
-                    info.writeToParcel(dest, flags);
+                    info.writeToParcel(dest, 0);
                 }
             }
         }
+    }
+
+    /**
+     * Read everything but the component tables.
+     */
+    void readHead(Parcel in) {
+        this.requestedPermissions = in.createStringArrayList();
+        this.protectedBroadcasts = in.createStringArrayList();
+        this.applicationInfo = in.readParcelable(ApplicationInfo.class.getClassLoader());
+        this.mAppMetaData = in.readBundle(Bundle.class.getClassLoader());
+        this.packageName = in.readString();
+        this.mPreferredOrder = in.readInt();
+        this.mVersionName = in.readString();
+        this.mSharedUserId = in.readString();
+        this.usesLibraries = in.createStringArrayList();
+        this.mVersionCode = in.readInt();
+        this.mSharedUserLabel = in.readInt();
+        this.configPreferences = in.createTypedArrayList(ConfigurationInfo.CREATOR);
+        this.reqFeatures = in.createTypedArrayList(FeatureInfo.CREATOR);
+    }
+
+    void writeHead(Parcel dest) {
         dest.writeStringList(this.requestedPermissions);
         dest.writeStringList(this.protectedBroadcasts);
-        dest.writeParcelable(this.applicationInfo, flags);
+        dest.writeParcelable(this.applicationInfo, 0);
         dest.writeBundle(this.mAppMetaData);
         dest.writeString(this.packageName);
         dest.writeInt(this.mPreferredOrder);
@@ -225,6 +371,74 @@ public class VPackage implements Parcelable {
         dest.writeTypedList(this.reqFeatures);
     }
 
+    /**
+     * Link the tables of a package built from the parser.
+     */
+    void link() {
+        linkActivities(activities);
+        linkActivities(receivers);
+        linkProviders(providers);
+        linkServices(services);
+        linkComponents(instrumentation);
+        linkComponents(permissions);
+        linkComponents(permissionGroups);
+    }
+
+    private void linkActivities(ArrayList<ActivityComponent> list) {
+        for (ActivityComponent activity : list) {
+            activity.owner = this;
+            if (activity.info.processName == null) {
+                activity.info.processName = activity.info.packageName;
+            }
+            for (ActivityIntentInfo info : activity.intents) {
+                info.activity = activity;
+            }
+        }
+    }
+
+    private void linkServices(ArrayList<ServiceComponent> list) {
+        for (ServiceComponent service : list) {
+            service.owner = this;
+            if (service.info.processName == null) {
+                service.info.processName = service.info.packageName;
+            }
+            for (ServiceIntentInfo info : service.intents) {
+                info.service = service;
+            }
+        }
+    }
+
+    private void linkProviders(ArrayList<ProviderComponent> list) {
+        for (ProviderComponent provider : list) {
+            provider.owner = this;
+            if (provider.info.processName == null) {
+                provider.info.processName = provider.info.packageName;
+            }
+            for (ProviderIntentInfo info : provider.intents) {
+                info.provider = provider;
+            }
+        }
+    }
+
+    private void linkComponents(ArrayList<? extends Component<?>> list) {
+        for (Component<?> component : list) {
+            component.owner = this;
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            writeSection(section, dest);
+        }
+        writeHead(dest);
+    }
+
     public static class ActivityIntentInfo extends IntentInfo {
 
         public ActivityComponent activity;
@@ -324,7 +538,7 @@ public class VPackage implements Parcelable {
         }
     }
 
-    public static class Component<II extends IntentInfo> {
+    public abstract static class Component<II extends IntentInfo> {
         public VPackage owner;
         public ArrayList<II> intents;
         public String className;
@@ -351,6 +565,7 @@ public class VPackage implements Parcelable {
             return componentName;
         }
 
+        abstract Parcelable getInfo();
     }
 
     public static class ActivityComponent extends Component<ActivityIntentInfo> {
@@ -377,6 +592,11 @@ public class VPackage implements Parcelable {
                 intents.add(new ActivityIntentInfo(src));
             }
         }
+
+        @Override
+        Parcelable getInfo() {
+            return info;
+        }
     }
 
     public static class ServiceComponent extends Component<ServiceIntentInfo> {
@@ -403,6 +623,11 @@ public class VPackage implements Parcelable {
                 intents.add(new ServiceIntentInfo(src));
             }
         }
+
+        @Override
+        Parcelable getInfo() {
+            return info;
+        }
     }
 
     public static class ProviderComponent extends Component<ProviderIntentInfo> {
@@ -429,6 +654,11 @@ public class VPackage implements Parcelable {
                 intents.add(new ProviderIntentInfo(src));
             }
         }
+
+        @Override
+        Parcelable getInfo() {
+            return info;
+        }
     }
 
     public static class InstrumentationComponent extends Component<IntentInfo> {
@@ -449,6 +679,11 @@ public class VPackage implements Parcelable {
                 intents.add(new IntentInfo(src));
             }
         }
+
+        @Override
+        Parcelable getInfo() {
+            return info;
+        }
     }
 
     public static class PermissionComponent extends Component<IntentInfo> {
@@ -512,6 +747,11 @@ public class VPackage implements Parcelable {
                 intents.add(new IntentInfo(src));
             }
         }
+
+        @Override
+        Parcelable getInfo() {
+            return info;
+        }
     }
 
     public static class PermissionGroupComponent extends Component<IntentInfo> {
@@ -533,5 +773,10 @@ public class VPackage implements Parcelable {
                 intents.add(new IntentInfo(src));
             }
         }
+
+        @Override
+        Parcelable getInfo() {
+            return info;
+        }
     }
 }
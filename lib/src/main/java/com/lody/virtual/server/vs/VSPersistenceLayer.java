@@ -45,13 +45,15 @@ class VSPersistenceLayer extends PersistenceLayer {
     @Override
     public void writePersistenceData(Parcel p) {
         final SparseArray<HashMap<String, VSConfig>> configs = mService.getConfigs();
-        int N = configs.size();
-        p.writeInt(N);
-        while (N-- > 0) {
-            int userId = configs.keyAt(N);
-            Map<String, VSConfig> userMap = configs.valueAt(N);
-            p.writeInt(userId);
-            p.writeMap(userMap);
+        synchronized (configs) {
+            int N = configs.size();
+            p.writeInt(N);
+            while (N-- > 0) {
+                int userId = configs.keyAt(N);
+                Map<String, VSConfig> userMap = configs.valueAt(N);
+                p.writeInt(userId);
+                p.writeMap(userMap);
+            }
         }
 
     }
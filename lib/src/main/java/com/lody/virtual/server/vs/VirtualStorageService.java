@@ -36,7 +36,7 @@ public class VirtualStorageService extends IVirtualStorageService.Stub {
         synchronized (mConfigs) {
             VSConfig config = getOrCreateVSConfigLocked(packageName, userId);
             config.vsPath = vsPath;
-            mLayer.save();
+            mLayer.scheduleSave();
         }
     }
 
@@ -71,7 +71,7 @@ public class VirtualStorageService extends IVirtualStorageService.Stub {
         synchronized (mConfigs) {
             VSConfig config = getOrCreateVSConfigLocked(packageName, userId);
             config.enable = enable;
-            mLayer.save();
+            mLayer.scheduleSave();
         }
 
     }
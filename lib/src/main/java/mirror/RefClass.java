@@ -1,32 +1,24 @@
 package mirror;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
 
+/**
+ * Binds the static Ref* fields of a mirror class to the members of the class it mirrors.
+ * <p>
+ * A mirror class is bound by its own static initializer, so only on its first use,
+ * not with the rest of its package. Its fields are then bound all at once, and not
+ * one by one on first call, as a field left null is how the callers test whether
+ * a member exists on this platform.
+ * <p>
+ * The calls go through {@link Method#invoke}. There is no build step generating
+ * typed accessors: MethodHandle is only available from Oreo, the hidden classes
+ * can't be linked against at build time, and the call() methods keep returning
+ * null on failure as their callers expect, callWithException() propagates instead.
+ */
 public final class RefClass {
 
-    private static HashMap<Class<?>,Constructor<?>> REF_TYPES = new HashMap<Class<?>, Constructor<?>>();
-    static {
-        try {
-            REF_TYPES.put(RefObject.class, RefObject.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefMethod.class, RefMethod.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefInt.class, RefInt.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefLong.class, RefLong.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefFloat.class, RefFloat.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefDouble.class, RefDouble.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefBoolean.class, RefBoolean.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefStaticObject.class, RefStaticObject.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefStaticInt.class, RefStaticInt.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefStaticMethod.class, RefStaticMethod.class.getConstructor(Class.class, Field.class));
-            REF_TYPES.put(RefConstructor.class, RefConstructor.class.getConstructor(Class.class, Field.class));
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
     public static Class<?> load(Class<?> mappingClass, String className) {
         try {
             return load(mappingClass, Class.forName(className));
@@ -38,20 +30,78 @@ public final class RefClass {
 
     public static Class load(Class mappingClass, Class<?> realClass) {
         Field[] fields = mappingClass.getDeclaredFields();
+        DeclaredMethods methods = new DeclaredMethods(realClass);
         for (Field field : fields) {
             try {
                 if (Modifier.isStatic(field.getModifiers())) {
-                    Constructor<?> constructor = REF_TYPES.get(field.getType());
-                    if (constructor != null) {
-                        field.set(null, constructor.newInstance(realClass, field));
+                    Object ref = newRef(field.getType(), realClass, field, methods);
+                    if (ref != null) {
+                        field.set(null, ref);
                     }
                 }
-            }
-            catch (Exception e) {
+            } catch (Throwable e) {
                 // Ignore
             }
         }
         return realClass;
     }
 
-}
\ No newline at end of file
+    /**
+     * Construct the mirror for a field directly instead of through Constructor.newInstance.
+     */
+    private static Object newRef(Class<?> type, Class<?> realClass, Field field, DeclaredMethods methods) throws Exception {
+        if (type == RefObject.class) {
+            return new RefObject(realClass, field);
+        } else if (type == RefMethod.class) {
+            return new RefMethod(realClass, field, methods);
+        } else if (type == RefStaticMethod.class) {
+            return new RefStaticMethod(realClass, field, methods);
+        } else if (type == RefStaticObject.class) {
+            return new RefStaticObject(realClass, field);
+        } else if (type == RefInt.class) {
+            return new RefInt(realClass, field);
+        } else if (type == RefStaticInt.class) {
+            return new RefStaticInt(realClass, field);
+        } else if (type == RefConstructor.class) {
+            return new RefConstructor(realClass, field);
+        } else if (type == RefBoolean.class) {
+            return new RefBoolean(realClass, field);
+        } else if (type == RefLong.class) {
+            return new RefLong(realClass, field);
+        } else if (type == RefFloat.class) {
+            return new RefFloat(realClass, field);
+        } else if (type == RefDouble.class) {
+            return new RefDouble(realClass, field);
+        }
+        return null;
+    }
+
+    /**
+     * The declared methods of the class being bound, copied at most once by one
+     * {@link #load} for all its name-only RefMethod/RefStaticMethod fields.
+     */
+    static final class DeclaredMethods {
+        private final Class<?> mClass;
+        private Method[] mMethods;
+
+        DeclaredMethods(Class<?> cls) {
+            mClass = cls;
+        }
+
+        /**
+         * Find the first declared method of the given name, as the name-only mirrors always did.
+         */
+        Method find(String name) {
+            if (mMethods == null) {
+                mMethods = mClass.getDeclaredMethods();
+            }
+            for (Method method : mMethods) {
+                if (method.getName().equals(name)) {
+                    return method;
+                }
+            }
+            return null;
+        }
+    }
+
+}
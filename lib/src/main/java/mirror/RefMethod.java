@@ -8,9 +8,15 @@ import static mirror.RefStaticMethod.getProtoType;
 
 @SuppressWarnings("unchecked")
 public class RefMethod<T> {
+    static final Object[] NO_ARGS = new Object[0];
+
     private Method method;
 
     public RefMethod(Class<?> cls, Field field) throws NoSuchMethodException {
+        this(cls, field, new RefClass.DeclaredMethods(cls));
+    }
+
+    RefMethod(Class<?> cls, Field field, RefClass.DeclaredMethods methods) throws NoSuchMethodException {
         if (field.isAnnotationPresent(MethodParams.class)) {
             Class<?>[] types = field.getAnnotation(MethodParams.class).value();
             for (int i = 0; i < types.length; i++) {
@@ -45,12 +51,9 @@ public class RefMethod<T> {
             this.method.setAccessible(true);
         }
         else {
-            for (Method method : cls.getDeclaredMethods()) {
-                if (method.getName().equals(field.getName())) {
-                    this.method = method;
-                    this.method.setAccessible(true);
-                    break;
-                }
+            this.method = methods.find(field.getName());
+            if (this.method != null) {
+                this.method.setAccessible(true);
             }
         }
         if (this.method == null) {
@@ -58,6 +61,13 @@ public class RefMethod<T> {
         }
     }
 
+    /**
+     * Call a method without arguments, without allocating the varargs array.
+     */
+    public T call(Object receiver) {
+        return call(receiver, NO_ARGS);
+    }
+
     public T call(Object receiver, Object... args) {
         try {
             return (T) this.method.invoke(receiver, args);
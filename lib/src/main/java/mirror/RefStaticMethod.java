@@ -9,6 +9,10 @@ public class RefStaticMethod<T> {
     private Method method;
 
     public RefStaticMethod(Class<?> cls, Field field) throws NoSuchMethodException {
+        this(cls, field, new RefClass.DeclaredMethods(cls));
+    }
+
+    RefStaticMethod(Class<?> cls, Field field, RefClass.DeclaredMethods methods) throws NoSuchMethodException {
         if (field.isAnnotationPresent(MethodParams.class)) {
             Class<?>[] types = field.getAnnotation(MethodParams.class).value();
             for (int i = 0; i < types.length; i++) {
@@ -67,12 +71,9 @@ public class RefStaticMethod<T> {
             }
             this.method.setAccessible(true);
         } else {
-            for (Method method : cls.getDeclaredMethods()) {
-                if (method.getName().equals(field.getName())) {
-                    this.method = method;
-                    this.method.setAccessible(true);
-                    break;
-                }
+            this.method = methods.find(field.getName());
+            if (this.method != null) {
+                this.method.setAccessible(true);
             }
         }
 
@@ -113,6 +114,13 @@ public class RefStaticMethod<T> {
     }
 
 
+    /**
+     * Call a method without arguments, without allocating the varargs array.
+     */
+    public T call() {
+        return call(RefMethod.NO_ARGS);
+    }
+
     public T call(Object... params) {
         T obj = null;
         try {
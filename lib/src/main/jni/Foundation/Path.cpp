@@ -1,5 +1,4 @@
 #include "Path.h"
-#define MAX_PATH_SIZE 4096
 
 /* returns last slash position in @s or -1 if there is no one */
 int get_last_slash_pos(char *s) {
@@ -69,4 +68,19 @@ char *canonicalize_filename(const char *str) {
         cprev = c;
     }
     return strndup(result, MAX_PATH_SIZE - 1);
-}
\ No newline at end of file
+}
+
+bool is_canonical_filename(const char *str, size_t *length) {
+    char cprev = '\0';
+    size_t i = 0;
+    for (; str[i]; ++i) {
+        char c = str[i];
+        if ((c == '/' || c == '.') && c == cprev) {
+            return false;
+        }
+        cprev = c;
+    }
+    *length = i;
+    // canonicalize_filename truncates the longer ones
+    return i < MAX_PATH_SIZE - 1;
+}
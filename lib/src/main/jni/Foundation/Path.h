@@ -7,9 +7,14 @@
 
 #include <string.h>
 
+#define MAX_PATH_SIZE 4096
+
 int get_last_slash_pos(char *s);
 
 char* canonicalize_filename(const char *str);
 
+/* whether canonicalize_filename would return @str unchanged, its length is put in @length */
+bool is_canonical_filename(const char *str, size_t *length);
+
 
 #endif //FOUNDATION_PATH
@@ -1,4 +1,7 @@
 #include <stdlib.h>
+#include <stdint.h>
+#include <time.h>
+#include <pthread.h>
 #include "SandboxFs.h"
 #include "Path.h"
 
@@ -9,7 +12,69 @@ int keep_item_count;
 int forbidden_item_count;
 int replace_item_count;
 
+/*
+ * relocate_path walks a byte trie of every item instead of scanning the items.
+ * The trie is rebuilt on the first lookup after the items changed and published
+ * whole, so lookups never take a lock. The tries it replaces are leaked, since a
+ * lookup may still walk them; items are added in a burst at startup so this is
+ * one or two of them.
+ */
+#define NO_ITEM (-1)
+
+typedef struct TrieNode {
+    char c;
+    int first_child;
+    int next_sibling;
+    // the first registered item of each kind ending on this node
+    int keep;
+    int forbid;
+    int replace;
+} TrieNode;
+
+typedef struct PathTrie {
+    unsigned int generation;
+    TrieNode *nodes;
+    int node_count;
+    // copied so that a lookup never reads the arrays being reallocated
+    ReplaceItem *replace_items;
+} PathTrie;
+
+static pthread_mutex_t items_lock = PTHREAD_MUTEX_INITIALIZER;
+static unsigned int items_generation = 1;
+static PathTrie *current_trie;
+
+/*
+ * Small per thread cache of the last results, a hooked call often looks up the
+ * same path several times in a row (stat then open, access then open...).
+ */
+#define CACHE_SIZE 16
+#define CACHE_PATH_SIZE 256
+
+typedef struct CacheEntry {
+    unsigned int generation;
+    uint32_t hash;
+    int result;
+    int replace;
+    char path[CACHE_PATH_SIZE];
+} CacheEntry;
+
+static pthread_once_t cache_key_once = PTHREAD_ONCE_INIT;
+static pthread_key_t cache_key;
+
+// One lookup out of SAMPLE_INTERVAL is timed.
+#define SAMPLE_INTERVAL 64
+
+static uint64_t lookup_count;
+static uint64_t cache_hit_count;
+static uint64_t sampled_count;
+static uint64_t sampled_ns;
+
+static void items_changed_locked() {
+    __atomic_add_fetch(&items_generation, 1, __ATOMIC_RELEASE);
+}
+
 int add_keep_item(const char *path) {
+    pthread_mutex_lock(&items_lock);
     char keep_env_name[25];
     sprintf(keep_env_name, "V_KEEP_ITEM_%d", keep_item_count);
     setenv(keep_env_name, path, 1);
@@ -18,10 +83,15 @@ int add_keep_item(const char *path) {
     PathItem &item = keep_items[keep_item_count];
     item.path = strdup(path);
     item.size = strlen(path);
-    return ++keep_item_count;
+    item.is_folder = (path[strlen(path) - 1] == '/');
+    int count = ++keep_item_count;
+    items_changed_locked();
+    pthread_mutex_unlock(&items_lock);
+    return count;
 }
 
 int add_forbidden_item(const char *path) {
+    pthread_mutex_lock(&items_lock);
     char forbidden_env_name[25];
     sprintf(forbidden_env_name, "V_FORBID_ITEM_%d", forbidden_item_count);
     setenv(forbidden_env_name, path, 1);
@@ -32,10 +102,14 @@ int add_forbidden_item(const char *path) {
     item.path = strdup(path);
     item.size = strlen(path);
     item.is_folder = (path[strlen(path) - 1] == '/');
-    return ++forbidden_item_count;
+    int count = ++forbidden_item_count;
+    items_changed_locked();
+    pthread_mutex_unlock(&items_lock);
+    return count;
 }
 
 int add_replace_item(const char *orig_path, const char *new_path) {
+    pthread_mutex_lock(&items_lock);
     char src_env_name[25];
     char dst_env_name[25];
     sprintf(src_env_name, "V_REPLACE_ITEM_SRC_%d", replace_item_count);
@@ -52,7 +126,10 @@ int add_replace_item(const char *orig_path, const char *new_path) {
     item.new_path = strdup(new_path);
     item.new_size = strlen(new_path);
     item.is_folder = (orig_path[strlen(orig_path) - 1] == '/');
-    return ++replace_item_count;
+    int count = ++replace_item_count;
+    items_changed_locked();
+    pthread_mutex_unlock(&items_lock);
+    return count;
 }
 
 
@@ -91,42 +168,239 @@ inline bool match_path(bool is_folder, size_t size, char *item_path, char *path)
 }
 
 
-const char *relocate_path(const char *_path, int *result) {
-    if (_path == NULL) {
-        *result = NOT_MATCH;
-        return NULL;
+static int trie_child(PathTrie *trie, int node, char c) {
+    for (int i = trie->nodes[node].first_child; i != NO_ITEM; i = trie->nodes[i].next_sibling) {
+        if (trie->nodes[i].c == c) {
+            return i;
+        }
     }
-    char *path = canonicalize_filename(_path);
-    for (int i = 0; i < keep_item_count; ++i) {
-        PathItem &item = keep_items[i];
-        if (match_path(item.is_folder, item.size, item.path, path)) {
-            *result = KEEP;
-            free(path);
-            return _path;
+    return NO_ITEM;
+}
+
+static int trie_insert(PathTrie *trie, int *capacity, const char *path) {
+    int node = 0;
+    for (const char *p = path; *p; ++p) {
+        int child = trie_child(trie, node, *p);
+        if (child == NO_ITEM) {
+            if (trie->node_count == *capacity) {
+                *capacity *= 2;
+                trie->nodes = (TrieNode *) realloc(trie->nodes, *capacity * sizeof(TrieNode));
+            }
+            child = trie->node_count++;
+            TrieNode &n = trie->nodes[child];
+            n.c = *p;
+            n.first_child = NO_ITEM;
+            n.keep = n.forbid = n.replace = NO_ITEM;
+            n.next_sibling = trie->nodes[node].first_child;
+            trie->nodes[node].first_child = child;
         }
+        node = child;
     }
-    for (int i = 0; i < forbidden_item_count; ++i) {
-        PathItem &item = forbidden_items[i];
-        if (match_path(item.is_folder, item.size, item.path, path)) {
-            *result = FORBID;
-            // Permission denied
-            errno = 13;
-            free(path);
+    return node;
+}
+
+static PathTrie *build_trie_locked(unsigned int generation) {
+    PathTrie *trie = (PathTrie *) malloc(sizeof(PathTrie));
+    int capacity = 256;
+    trie->generation = generation;
+    trie->nodes = (TrieNode *) malloc(capacity * sizeof(TrieNode));
+    trie->node_count = 1;
+    TrieNode &root = trie->nodes[0];
+    root.c = '\0';
+    root.first_child = root.next_sibling = NO_ITEM;
+    root.keep = root.forbid = root.replace = NO_ITEM;
+    // inserted backwards, so that the first registered item wins a node
+    for (int i = keep_item_count - 1; i >= 0; --i) {
+        int node = trie_insert(trie, &capacity, keep_items[i].path);
+        trie->nodes[node].keep = i;
+    }
+    for (int i = forbidden_item_count - 1; i >= 0; --i) {
+        int node = trie_insert(trie, &capacity, forbidden_items[i].path);
+        trie->nodes[node].forbid = i;
+    }
+    for (int i = replace_item_count - 1; i >= 0; --i) {
+        int node = trie_insert(trie, &capacity, replace_items[i].orig_path);
+        trie->nodes[node].replace = i;
+    }
+    trie->replace_items = (ReplaceItem *) malloc((replace_item_count + 1) * sizeof(ReplaceItem));
+    memcpy(trie->replace_items, replace_items, replace_item_count * sizeof(ReplaceItem));
+    return trie;
+}
+
+static PathTrie *get_trie() {
+    unsigned int generation = __atomic_load_n(&items_generation, __ATOMIC_ACQUIRE);
+    PathTrie *trie = __atomic_load_n(&current_trie, __ATOMIC_ACQUIRE);
+    if (trie != NULL && trie->generation == generation) {
+        return trie;
+    }
+    pthread_mutex_lock(&items_lock);
+    generation = items_generation;
+    trie = current_trie;
+    if (trie == NULL || trie->generation != generation) {
+        trie = build_trie_locked(generation);
+        __atomic_store_n(&current_trie, trie, __ATOMIC_RELEASE);
+    }
+    pthread_mutex_unlock(&items_lock);
+    return trie;
+}
+
+static inline void note_match(const TrieNode &node, int *keep, int *forbid, int *replace) {
+    if (node.keep != NO_ITEM) {
+        *keep = node.keep;
+    }
+    if (node.forbid != NO_ITEM) {
+        *forbid = node.forbid;
+    }
+    if (node.replace != NO_ITEM && (*replace == NO_ITEM || node.replace < *replace)) {
+        *replace = node.replace;
+    }
+}
+
+/*
+ * Same rules as matching the items one by one: an item matches the paths it is a
+ * prefix of, and a folder item also matches its path without the last '/'. Keep
+ * items win over forbidden ones, which win over the first matching replace item.
+ */
+static int trie_lookup(PathTrie *trie, const char *path, int *replace) {
+    int keep = NO_ITEM;
+    int forbid = NO_ITEM;
+    *replace = NO_ITEM;
+    int node = 0;
+    const char *p = path;
+    for (; *p; ++p) {
+        node = trie_child(trie, node, *p);
+        if (node == NO_ITEM) {
+            break;
+        }
+        note_match(trie->nodes[node], &keep, &forbid, replace);
+    }
+    if (node != NO_ITEM) {
+        int folder = trie_child(trie, node, '/');
+        if (folder != NO_ITEM) {
+            note_match(trie->nodes[folder], &keep, &forbid, replace);
+        }
+    }
+    if (keep != NO_ITEM) {
+        return KEEP;
+    }
+    if (forbid != NO_ITEM) {
+        return FORBID;
+    }
+    return *replace != NO_ITEM ? MATCH : NOT_MATCH;
+}
+
+static void create_cache_key() {
+    pthread_key_create(&cache_key, free);
+}
+
+static CacheEntry *get_cache_entry(uint32_t hash) {
+    pthread_once(&cache_key_once, create_cache_key);
+    CacheEntry *cache = (CacheEntry *) pthread_getspecific(cache_key);
+    if (cache == NULL) {
+        cache = (CacheEntry *) calloc(CACHE_SIZE, sizeof(CacheEntry));
+        if (cache == NULL) {
             return NULL;
         }
+        pthread_setspecific(cache_key, cache);
     }
-    for (int i = 0; i < replace_item_count; ++i) {
-        ReplaceItem &item = replace_items[i];
-        if (match_path(item.is_folder, item.orig_size, item.orig_path, path)) {
+    return &cache[hash % CACHE_SIZE];
+}
+
+static inline uint32_t hash_path(const char *path, size_t length) {
+    // FNV-1a
+    uint32_t hash = 2166136261u;
+    for (size_t i = 0; i < length; ++i) {
+        hash = (hash ^ (uint8_t) path[i]) * 16777619u;
+    }
+    return hash;
+}
+
+static inline uint64_t now_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000000ull + ts.tv_nsec;
+}
+
+static const char *do_relocate_path(const char *_path, int *result) {
+    size_t length;
+    char *canonical = NULL;
+    const char *path = _path;
+    if (!is_canonical_filename(_path, &length)) {
+        canonical = canonicalize_filename(_path);
+        path = canonical;
+        length = strlen(canonical);
+    }
+    PathTrie *trie = get_trie();
+    int replace = NO_ITEM;
+    CacheEntry *entry = NULL;
+    if (length < CACHE_PATH_SIZE) {
+        uint32_t hash = hash_path(path, length);
+        entry = get_cache_entry(hash);
+        if (entry != NULL && entry->generation == trie->generation && entry->hash == hash
+            && strcmp(entry->path, path) == 0) {
+            __atomic_add_fetch(&cache_hit_count, 1, __ATOMIC_RELAXED);
+            *result = entry->result;
+            replace = entry->replace;
+        } else if (entry != NULL) {
+            *result = trie_lookup(trie, path, &replace);
+            entry->generation = trie->generation;
+            entry->hash = hash;
+            entry->result = *result;
+            entry->replace = replace;
+            memcpy(entry->path, path, length + 1);
+        } else {
+            *result = trie_lookup(trie, path, &replace);
+        }
+    } else {
+        *result = trie_lookup(trie, path, &replace);
+    }
+    const char *ret = _path;
+    switch (*result) {
+        case FORBID:
+            // Permission denied
+            errno = 13;
+            ret = NULL;
+            break;
+        case MATCH: {
+            ReplaceItem &item = trie->replace_items[replace];
             std::string redirect_path(item.new_path);
-            redirect_path += path + item.orig_size;
-            *result = MATCH;
-            free(path);
-            return strdup(redirect_path.c_str());
+            // a folder matched without its last '/' leaves nothing to append
+            if (length > item.orig_size) {
+                redirect_path += path + item.orig_size;
+            }
+            ret = strdup(redirect_path.c_str());
+            break;
         }
+        default:
+            break;
     }
-    *result = NOT_MATCH;
-    return _path;
+    if (canonical != NULL) {
+        free(canonical);
+    }
+    return ret;
+}
+
+const char *relocate_path(const char *_path, int *result) {
+    if (_path == NULL) {
+        *result = NOT_MATCH;
+        return NULL;
+    }
+    uint64_t count = __atomic_add_fetch(&lookup_count, 1, __ATOMIC_RELAXED);
+    if (count % SAMPLE_INTERVAL != 0) {
+        return do_relocate_path(_path, result);
+    }
+    uint64_t start = now_ns();
+    const char *ret = do_relocate_path(_path, result);
+    __atomic_add_fetch(&sampled_ns, now_ns() - start, __ATOMIC_RELAXED);
+    __atomic_add_fetch(&sampled_count, 1, __ATOMIC_RELAXED);
+    return ret;
+}
+
+void get_relocate_stats(RelocateStats *stats) {
+    stats->lookups = __atomic_load_n(&lookup_count, __ATOMIC_RELAXED);
+    stats->cache_hits = __atomic_load_n(&cache_hit_count, __ATOMIC_RELAXED);
+    uint64_t samples = __atomic_load_n(&sampled_count, __ATOMIC_RELAXED);
+    stats->average_ns = samples > 0 ? __atomic_load_n(&sampled_ns, __ATOMIC_RELAXED) / samples : 0;
 }
 
 
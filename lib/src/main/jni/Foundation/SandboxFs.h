@@ -3,6 +3,7 @@
 
 #include <string>
 #include <errno.h>
+#include <stdint.h>
 
 typedef struct PathItem {
     char *path;
@@ -25,11 +26,20 @@ enum RelocateResult {
     KEEP
 };
 
+typedef struct RelocateStats {
+    uint64_t lookups;
+    uint64_t cache_hits;
+    // of a sample of the lookups
+    uint64_t average_ns;
+} RelocateStats;
+
 
 const char *relocate_path(const char *_path, int *result);
 
 int relocate_path_inplace(char *_path, size_t size, int *result);
 
+void get_relocate_stats(RelocateStats *stats);
+
 const char *reverse_relocate_path(const char *_path);
 
 int reverse_relocate_path_inplace(char *_path, size_t size);
@@ -2,6 +2,7 @@
 // VirtualApp Native Project
 //
 #include <Foundation/IOUniformer.h>
+#include <Foundation/SandboxFs.h>
 #include <fb/include/fb/Build.h>
 #include <fb/include/fb/ALog.h>
 #include <fb/include/fb/fbjni.h>
@@ -59,6 +60,18 @@ static jstring jni_nativeReverseRedirectedPath(alias_ref<jclass> jclazz, jstring
     return Environment::current()->NewStringUTF(orig_path);
 }
 
+static jlongArray jni_nativeGetRedirectStats(alias_ref<jclass> jclazz) {
+    RelocateStats stats;
+    get_relocate_stats(&stats);
+    jlong values[] = {(jlong) stats.lookups, (jlong) stats.cache_hits, (jlong) stats.average_ns};
+    JNIEnv *env = Environment::current();
+    jlongArray array = env->NewLongArray(3);
+    if (array != NULL) {
+        env->SetLongArrayRegion(array, 0, 3, values);
+    }
+    return array;
+}
+
 
 alias_ref<jclass> nativeEngineClass;
 
@@ -86,6 +99,8 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *) {
                                          jni_nativeGetRedirectedPath),
                         makeNativeMethod("nativeReverseRedirectedPath",
                                          jni_nativeReverseRedirectedPath),
+                        makeNativeMethod("nativeGetRedirectStats",
+                                         jni_nativeGetRedirectStats),
                         makeNativeMethod("nativeLaunchEngine",
                                          jni_nativeLaunchEngine),
                         makeNativeMethod("disableJit", jni_disableJit)